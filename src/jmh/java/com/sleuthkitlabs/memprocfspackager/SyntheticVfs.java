@@ -0,0 +1,203 @@
+/*
+ * memprocfs_packager
+ * 
+ * Copyright (C) 2024  Sleuth Kit Labs
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.sleuthkitlabs.memprocfspackager;
+
+import java.lang.reflect.Proxy;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.LockSupport;
+
+import vmm.IVmm;
+import vmm.VmmException;
+import vmm.entry.Vmm_VfsListEntry;
+
+/**
+ * An in-memory MemProcFS VFS for the benchmarks, served through a fake IVmm
+ * so no memory image or native library is needed.
+ *
+ * The tree has the layout the collection rules expect: \sys, a \pid
+ * directory per process, completed \forensic output and a USB registry key
+ * with a configurable fan-out and depth. Every file has the same size and
+ * CSV-like content. Each VFS call can be delayed to simulate the latency of
+ * MemProcFS on a real image.
+ */
+final class SyntheticVfs {
+
+    private static final String[] FORENSIC_FILES = {
+        "\\forensic\\csv\\process.csv",
+        "\\forensic\\csv\\services.csv",
+        "\\forensic\\csv\\tasks.csv",
+        "\\forensic\\csv\\net.csv",
+        "\\forensic\\csv\\findevil.csv",
+        "\\forensic\\prefetch\\00-prefetch-summary.txt",
+        "\\forensic\\ntfs\\ntfs_files.txt",
+        "\\forensic\\web\\web.txt",
+        "\\forensic\\yara\\result.txt"
+    };
+
+    // Directories below each process that no rule collects
+    private static final String[] PROCESS_NOISE = {"handles", "modules", "threads", "vmemd"};
+
+    private static final String USB_KEY = "\\registry\\HKLM\\SYSTEM\\ControlSet001\\Enum\\USB";
+
+    private final Map<String, Map<String, Vmm_VfsListEntry>> directories = new LinkedHashMap<>();
+    private final byte[] content;
+    private final long latencyNanos;
+
+    /**
+     * @param processCount   number of directories below \pid
+     * @param registryFanOut number of subkeys of every registry key below USB
+     * @param registryDepth  number of registry key levels below USB
+     * @param fileSize       size of every file
+     * @param latencyMicros  delay of every VFS call
+     */
+    SyntheticVfs(int processCount, int registryFanOut, int registryDepth, int fileSize, long latencyMicros) {
+        this.content = content(fileSize);
+        this.latencyNanos = latencyMicros * 1000;
+
+        addFile("\\sys\\users\\users.txt");
+        addFile("\\sys\\drivers\\drivers.txt");
+        addFile("\\sys\\sysinfo\\sysinfo.txt");
+        addFile("\\sys\\services\\services.txt");
+
+        for (int pid = 4; pid < 4 + processCount * 4; pid += 4) {
+            addFile("\\pid\\" + pid + "\\token\\sid-all.txt");
+            for (String noise : PROCESS_NOISE) {
+                addFile("\\pid\\" + pid + "\\" + noise + "\\" + noise + ".txt");
+            }
+        }
+
+        for (String forensicFile : FORENSIC_FILES) {
+            addFile(forensicFile);
+        }
+        addFile("\\forensic\\progress_percent.txt", "100".getBytes(StandardCharsets.US_ASCII).length);
+
+        addRegistryKeys(USB_KEY, registryFanOut, registryDepth);
+    }
+
+    /**
+     * Returns a fake IVmm serving this VFS. Methods the packager does not use
+     * throw UnsupportedOperationException.
+     */
+    IVmm asVmm() {
+        return (IVmm) Proxy.newProxyInstance(IVmm.class.getClassLoader(), new Class<?>[]{IVmm.class}, (proxy, method, args) -> {
+            switch (method.getName()) {
+                case "vfsList":
+                    return list((String) args[0]);
+                case "vfsRead":
+                    return read((String) args[0], (Long) args[1], (Integer) args[2]);
+                case "isValid":
+                    return true;
+                case "close":
+                    return null;
+                case "hashCode":
+                    return System.identityHashCode(proxy);
+                case "equals":
+                    return proxy == args[0];
+                case "toString":
+                    return "SyntheticVfs";
+                default:
+                    throw new UnsupportedOperationException(method.getName());
+            }
+        });
+    }
+
+    int fileSize() {
+        return content.length;
+    }
+
+    List<Vmm_VfsListEntry> list(String path) {
+        delay();
+        String key = path.endsWith("\\") ? path : path + "\\";
+        Map<String, Vmm_VfsListEntry> listing = directories.get(key);
+        if (listing == null) {
+            throw new VmmException("Directory not found: " + path);
+        }
+        return new ArrayList<>(listing.values());
+    }
+
+    byte[] read(String file, long offset, int size) {
+        delay();
+        if (file.endsWith("progress_percent.txt")) {
+            return "100".getBytes(StandardCharsets.US_ASCII);
+        }
+        if (offset >= content.length) {
+            return new byte[0];
+        }
+        return Arrays.copyOfRange(content, (int) offset, (int) Math.min(content.length, offset + size));
+    }
+
+    private void addRegistryKeys(String key, int fanOut, int depth) {
+        addFile(key + "\\(Default).txt");
+        if (depth == 0) {
+            return;
+        }
+        for (int i = 0; i < fanOut; i++) {
+            addRegistryKeys(key + "\\VID_" + i, fanOut, depth - 1);
+        }
+    }
+
+    private void addFile(String path) {
+        addFile(path, content.length);
+    }
+
+    // Adds the file and all its parent directories
+    private void addFile(String path, long size) {
+        String name = path;
+        boolean isFile = true;
+        while (!name.isEmpty()) {
+            int separator = name.lastIndexOf('\\');
+            String parent = name.substring(0, separator + 1);
+
+            Vmm_VfsListEntry entry = new Vmm_VfsListEntry();
+            entry.name = name.substring(separator + 1);
+            entry.isFile = isFile;
+            entry.size = isFile ? size : 0;
+            directories.computeIfAbsent(parent, key -> new LinkedHashMap<>()).putIfAbsent(entry.name, entry);
+
+            name = parent.substring(0, Math.max(0, parent.length() - 1));
+            isFile = false;
+        }
+    }
+
+    private void delay() {
+        if (latencyNanos > 0) {
+            LockSupport.parkNanos(latencyNanos);
+        }
+    }
+
+    // CSV-like text that compresses about as well as real MemProcFS output
+    private static byte[] content(int size) {
+        byte[] content = new byte[size];
+        byte[] line = "1234,svchost.exe,C:\\Windows\\System32\\svchost.exe,NT AUTHORITY\\SYSTEM,2024-01-01 00:00:00\n"
+                .getBytes(StandardCharsets.US_ASCII);
+        for (int i = 0; i < size; i++) {
+            content[i] = line[i % line.length];
+        }
+        // Vary the content a little so it is not trivially compressible
+        for (int i = 0; i < size; i += 997) {
+            content[i] = (byte) ('0' + i % 10);
+        }
+        return content;
+    }
+}
@@ -0,0 +1,79 @@
+/*
+ * memprocfs_packager
+ * 
+ * Copyright (C) 2024  Sleuth Kit Labs
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.sleuthkitlabs.memprocfspackager;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import vmm.IVmm;
+
+/**
+ * Resolving the collection rules against the VFS, including the ** walk of
+ * the USB registry key. Every invocation starts with an empty listing cache.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TraversalBenchmark {
+
+    @Param({"100", "1000"})
+    public int processCount;
+
+    @Param({"4"})
+    public int registryFanOut;
+
+    @Param({"2", "5"})
+    public int registryDepth;
+
+    @Param({"0", "50"})
+    public long latencyMicros;
+
+    private IVmm vmm;
+    private GlobTrie trie;
+
+    @Setup
+    public void setup() {
+        vmm = new SyntheticVfs(processCount, registryFanOut, registryDepth, 16, latencyMicros).asVmm();
+        List<CollectionRule> rules = new MemProcFSPackager(null, null, null, null, null).getFilesToCollect();
+        trie = GlobTrie.compile(rules);
+    }
+
+    @Benchmark
+    public void walk(Blackhole blackhole) {
+        VfsListingCache listingCache = new VfsListingCache(new VmmVfsSource(vmm, null));
+        listingCache.setForensicComplete();
+        trie.walk(listingCache::list, (parentPath, entry) -> blackhole.consume(parentPath + entry.name));
+    }
+}
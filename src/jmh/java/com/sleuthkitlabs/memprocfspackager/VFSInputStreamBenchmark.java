@@ -0,0 +1,79 @@
+/*
+ * memprocfs_packager
+ * 
+ * Copyright (C) 2024  Sleuth Kit Labs
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.sleuthkitlabs.memprocfspackager;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import vmm.IVmm;
+
+/**
+ * Throughput of reading a single file through VFSInputStream.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class VFSInputStreamBenchmark {
+
+    private static final String FILE = "\\forensic\\ntfs\\ntfs_files.txt";
+
+    @Param({"65536", "16777216", "134217728"})
+    public int fileSize;
+
+    @Param({"0", "200"})
+    public long latencyMicros;
+
+    private IVmm vmm;
+
+    @Setup
+    public void setup() {
+        vmm = new SyntheticVfs(1, 1, 0, fileSize, latencyMicros).asVmm();
+    }
+
+    @Benchmark
+    public byte[] readAllBytes() throws IOException {
+        try (InputStream inputStream = new VFSInputStream(FILE, fileSize, vmm)) {
+            return inputStream.readAllBytes();
+        }
+    }
+
+    @Benchmark
+    public long transferTo() throws IOException {
+        try (InputStream inputStream = new VFSInputStream(FILE, fileSize, vmm)) {
+            return inputStream.transferTo(OutputStream.nullOutputStream());
+        }
+    }
+}
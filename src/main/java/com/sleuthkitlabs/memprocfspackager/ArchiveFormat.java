@@ -0,0 +1,55 @@
+/*
+ * memprocfs_packager
+ * 
+ * Copyright (C) 2024  Sleuth Kit Labs
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.sleuthkitlabs.memprocfspackager;
+
+import java.io.OutputStream;
+import java.util.Locale;
+
+/**
+ * Container format of the output package.
+ */
+public enum ArchiveFormat {
+    ZIP,
+    TAR;
+
+    /**
+     * Creates a writer for this format on top of the given stream. Neither
+     * format needs to seek, so the stream may be a pipe. ZIP output to a
+     * {@link PackageFile} seeks anyway to fill in the entry headers.
+     */
+    ArchiveWriter createWriter(OutputStream outputStream) {
+        switch (this) {
+            case TAR:
+                return new TarArchiveWriter(outputStream);
+            default:
+                if (outputStream instanceof PackageFile packageFile) {
+                    return new ZipArchiveWriter(packageFile.seekableChannel());
+                }
+                return new ZipArchiveWriter(outputStream);
+        }
+    }
+
+    public static ArchiveFormat fromString(String value) {
+        try {
+            return valueOf(value.trim().toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException ex) {
+            throw new IllegalArgumentException("Unknown archive format: " + value);
+        }
+    }
+}
@@ -0,0 +1,96 @@
+/*
+ * memprocfs_packager
+ * 
+ * Copyright (C) 2024  Sleuth Kit Labs
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.sleuthkitlabs.memprocfspackager;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Writes collected entries into an output package. Implementations are not
+ * thread safe, all calls are made from the single writer thread of the
+ * CollectionEngine.
+ */
+interface ArchiveWriter extends Closeable {
+
+    /**
+     * Writes an entry whose content has already been compressed.
+     */
+    void writeEntry(CollectionItem item, CompressedContent content, long time) throws IOException;
+
+    /**
+     * Writes an entry by streaming and compressing its content on the fly.
+     * Used for files too large to be buffered in memory.
+     *
+     * @param level DEFLATE level chosen by the compression policy, or
+     *              CompressionPolicy.STORED
+     * @return the number of bytes of content written
+     */
+    long writeStreamed(CollectionItem item, InputStream inputStream, int level, long time) throws IOException;
+
+    /**
+     * Writes an entry whose content is stored as is, with its size and CRC
+     * known up front. Used for content that is compressed already, such as
+     * seekable gzip files, which must stay byte for byte the same.
+     *
+     * @param crc CRC-32 of the content
+     */
+    void writeStored(CollectionItem item, InputStream inputStream, long size, long crc, long time) throws IOException;
+
+    /**
+     * Returns true if the output can be seeked, so stored entries can be
+     * started with openStored before their size and CRC are known.
+     */
+    default boolean isSeekable() {
+        return false;
+    }
+
+    /**
+     * Starts a stored entry whose size and CRC are filled in once the
+     * returned stream is closed, so content compressed on the fly does not
+     * have to be spooled first. Nothing else may be written until the stream
+     * is closed.
+     *
+     * @throws UnsupportedOperationException if the output can not be seeked
+     */
+    default OutputStream openStored(CollectionItem item, long time) throws IOException {
+        throw new UnsupportedOperationException("Stored entries need their size and CRC up front");
+    }
+
+    /**
+     * Writes a directory entry.
+     */
+    void writeDirectory(CollectionItem item, long time) throws IOException;
+
+    /**
+     * Writes an entry as a hard link to an entry written earlier with the
+     * same content. Returns false if the format has no links, the entry then
+     * has to be recorded some other way.
+     */
+    default boolean writeLink(CollectionItem item, CollectionItem target, long time) throws IOException {
+        return false;
+    }
+
+    /**
+     * Finishes the archive and closes the underlying stream.
+     */
+    @Override
+    void close() throws IOException;
+}
@@ -0,0 +1,366 @@
+/*
+ * memprocfs_packager
+ * 
+ * Copyright (C) 2024  Sleuth Kit Labs
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.sleuthkitlabs.memprocfspackager;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Packages a list of memory images, several at a time.
+ *
+ * Each image is written to its own package in the output directory, spread
+ * over several volumes if the output is sharded. The number of images
+ * processed at once is bounded by the number of cores, by a memory budget
+ * per image and, for jobs inside this process, by the heap they share. Jobs run either inside this process, with
+ * one IVmm instance per image, or in worker processes started from the
+ * same installation.
+ */
+class BatchRunner {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(BatchRunner.class);
+
+    static final long DEFAULT_JOB_MEMORY_MB = 4096;
+
+    static final String SUMMARY_FILE_NAME = "batch_summary.csv";
+
+    // Options that only apply to the batch itself and are not passed on to worker processes
+    private static final Set<String> BATCH_OPTIONS_WITH_VALUE = Set.of("-b", "--batch", "-o", "--output", "-i", "--input", "--batch-jobs", "--job-memory-mb", "--report");
+    private static final Set<String> BATCH_FLAGS = Set.of("--isolate", "-f", "--force", "-n", "--no-clobber");
+
+    enum Status {
+        SUCCEEDED,
+        FAILED,
+        SKIPPED
+    }
+
+    record BatchResult(Path input, Path output, Status status, long durationMillis, long outputBytes, String message) {
+
+    }
+
+    /**
+     * Packages a single image of the batch.
+     */
+    @FunctionalInterface
+    interface BatchJob {
+
+        void run(Path input, Path output) throws Exception;
+    }
+
+    private final List<Path> inputs;
+    private final Path outputDirectory;
+    private final ArchiveFormat archiveFormat;
+    private final boolean overwrite;
+    private final int concurrency;
+    private final int shardCount;
+
+    BatchRunner(List<Path> inputs, Path outputDirectory, ArchiveFormat archiveFormat, boolean overwrite, int concurrency, int shardCount) {
+        this.inputs = inputs;
+        this.outputDirectory = outputDirectory;
+        this.archiveFormat = archiveFormat;
+        this.overwrite = overwrite;
+        this.concurrency = concurrency;
+        this.shardCount = shardCount;
+    }
+
+    /**
+     * Runs the job for every input and writes the combined summary to the
+     * output directory.
+     */
+    List<BatchResult> run(BatchJob job) {
+        System.out.println("Packaging " + inputs.size() + " images, " + concurrency + " at a time");
+
+        ExecutorService executor = Executors.newFixedThreadPool(concurrency);
+        List<Future<BatchResult>> futures = new ArrayList<>();
+        Set<String> usedNames = new HashSet<>();
+        for (Path input : inputs) {
+            Path output = outputDirectory.resolve(outputName(input, usedNames));
+            futures.add(executor.submit(() -> runJob(job, input, output)));
+        }
+        executor.shutdown();
+
+        List<BatchResult> results = new ArrayList<>();
+        for (Future<BatchResult> future : futures) {
+            try {
+                results.add(future.get());
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                executor.shutdownNow();
+                break;
+            } catch (ExecutionException ex) {
+                // runJob catches everything, this is not expected
+                LOGGER.error("Batch job failed", ex);
+            }
+        }
+
+        writeSummary(results);
+        return results;
+    }
+
+    private BatchResult runJob(BatchJob job, Path input, Path output) {
+        Path existing = existingVolume(output);
+        if (existing != null && !overwrite) {
+            System.out.println("Skipping " + input + ", output file exists: " + existing);
+            return new BatchResult(input, output, Status.SKIPPED, 0, 0, "output file exists");
+        }
+
+        System.out.println("Starting " + input);
+        LOGGER.info("Starting batch job " + input + " -> " + output);
+        long start = System.currentTimeMillis();
+        try {
+            job.run(input, output);
+            long duration = System.currentTimeMillis() - start;
+            System.out.println("Completed " + input + " in " + (duration / 1000) + "s: " + output);
+            return new BatchResult(input, output, Status.SUCCEEDED, duration, outputBytes(output), "");
+        } catch (Exception ex) {
+            long duration = System.currentTimeMillis() - start;
+            LOGGER.error("Batch job failed for " + input, ex);
+            System.err.println("Failed " + input + ": " + ex.getMessage());
+            return new BatchResult(input, output, Status.FAILED, duration, 0, String.valueOf(ex.getMessage()));
+        }
+    }
+
+    // Returns the first volume of the package that exists already, null if none does
+    private Path existingVolume(Path output) {
+        for (int shard = 1; shard <= shardCount; shard++) {
+            Path volume = ShardedArchiveWriter.shardPath(output, shard);
+            if (Files.exists(volume)) {
+                return volume;
+            }
+        }
+        return null;
+    }
+
+    // Size of the package, all volumes together
+    private long outputBytes(Path output) throws IOException {
+        long bytes = 0;
+        for (int shard = 1; shard <= shardCount; shard++) {
+            bytes += Files.size(ShardedArchiveWriter.shardPath(output, shard));
+        }
+        return bytes;
+    }
+
+    private void writeSummary(List<BatchResult> results) {
+        Path summaryPath = outputDirectory.resolve(SUMMARY_FILE_NAME);
+        try (PrintWriter writer = new PrintWriter(Files.newBufferedWriter(summaryPath, StandardCharsets.UTF_8))) {
+            writer.println("input,output,status,duration_seconds,output_bytes,message");
+            for (BatchResult result : results) {
+                writer.println(String.join(",",
+                        csv(result.input().toString()),
+                        csv(result.output().toString()),
+                        result.status().name(),
+                        String.format(Locale.ROOT, "%.1f", result.durationMillis() / 1000.0),
+                        String.valueOf(result.outputBytes()),
+                        csv(result.message())));
+            }
+        } catch (IOException ex) {
+            LOGGER.error("Error writing batch summary", ex);
+            System.err.println("Error writing batch summary: " + ex.getMessage());
+        }
+
+        long succeeded = results.stream().filter(result -> result.status() == Status.SUCCEEDED).count();
+        long failed = results.stream().filter(result -> result.status() == Status.FAILED).count();
+        long skipped = results.stream().filter(result -> result.status() == Status.SKIPPED).count();
+        System.out.println("Batch completed: " + succeeded + " succeeded, " + failed + " failed, " + skipped + " skipped. Summary written to: " + summaryPath);
+    }
+
+    // Names the package after the image, adding a counter when two images share a name
+    private String outputName(Path input, Set<String> usedNames) {
+        String baseName = input.getFileName().toString();
+        int dot = baseName.lastIndexOf('.');
+        if (dot > 0) {
+            baseName = baseName.substring(0, dot);
+        }
+
+        String extension = "." + archiveFormat.name().toLowerCase(Locale.ROOT);
+        String name = baseName + extension;
+        for (int counter = 2; !usedNames.add(name.toLowerCase(Locale.ROOT)); counter++) {
+            name = baseName + "-" + counter + extension;
+        }
+        return name;
+    }
+
+    private static String csv(String value) {
+        if (value.contains(",") || value.contains("\"") || value.contains("\n")) {
+            return "\"" + value.replace("\"", "\"\"") + "\"";
+        }
+        return value;
+    }
+
+    /**
+     * Reads the batch inputs. A directory yields every regular file in it, a
+     * file is read as a list of image paths, one per line. Blank lines and
+     * lines starting with # are ignored.
+     */
+    static List<Path> readInputs(Path batchPath) throws IOException {
+        if (Files.isDirectory(batchPath)) {
+            try (Stream<Path> files = Files.list(batchPath)) {
+                return files.filter(Files::isRegularFile).sorted().collect(Collectors.toList());
+            }
+        }
+
+        if (!Files.exists(batchPath)) {
+            throw new IOException("File not found: " + batchPath);
+        }
+
+        List<Path> inputs = new ArrayList<>();
+        for (String line : Files.readAllLines(batchPath, StandardCharsets.UTF_8)) {
+            line = line.trim();
+            if (line.isEmpty() || line.startsWith("#")) {
+                continue;
+            }
+            Path input = Path.of(line);
+            if (!Files.exists(input)) {
+                throw new IOException("File not found: " + line);
+            }
+            inputs.add(input);
+        }
+        return inputs;
+    }
+
+    /**
+     * Returns the number of images to package at once: the requested number,
+     * or the number of cores, limited by how many job memory budgets fit into
+     * the physical memory of the machine. Jobs in this process also share its
+     * heap, so they are limited by how many of their in-flight budgets fit
+     * into the maximum heap size as well.
+     *
+     * @param jobHeapBytes heap taken by each job in this process, 0 if jobs
+     *                     run in worker processes
+     */
+    static int concurrency(Integer requestedJobs, long jobMemoryBytes, long jobHeapBytes) {
+        if (requestedJobs != null && requestedJobs < 1) {
+            throw new IllegalArgumentException("Batch jobs must be at least 1: " + requestedJobs);
+        }
+        if (jobMemoryBytes < 1) {
+            throw new IllegalArgumentException("Job memory must be positive: " + jobMemoryBytes);
+        }
+
+        int cores = Runtime.getRuntime().availableProcessors();
+        int jobs = requestedJobs != null ? requestedJobs : cores;
+
+        long totalMemory = ((com.sun.management.OperatingSystemMXBean) ManagementFactory.getOperatingSystemMXBean()).getTotalMemorySize();
+        long jobsByMemory = Math.max(1, totalMemory / jobMemoryBytes);
+        if (jobHeapBytes > 0) {
+            long jobsByHeap = Math.max(1, Runtime.getRuntime().maxMemory() / jobHeapBytes);
+            if (jobsByHeap < Math.min(jobs, jobsByMemory)) {
+                LOGGER.info("Limiting concurrent jobs to " + jobsByHeap + ", the heap of " + Runtime.getRuntime().maxMemory()
+                        + " bytes fits no more in-flight budgets of " + jobHeapBytes + " bytes");
+            }
+            jobsByMemory = Math.min(jobsByMemory, jobsByHeap);
+        }
+
+        return (int) Math.max(1, Math.min(jobs, jobsByMemory));
+    }
+
+    /**
+     * Runs each job in this process with its own MemProcFSPackager.
+     */
+    static BatchJob inProcessJob(String strPathToNativeBinaries, String yaraRulesPath, List<String> additionalOptions, PackagerSettings settings, int shardCount) {
+        return (input, output) -> {
+            List<OutputStream> shardOutputStreams = new ArrayList<>();
+            try (OutputStream outputStream = new PackageFile(output, settings.getFsyncPolicy())) {
+                MemProcFSPackager packager = new MemProcFSPackager(input.toString(), outputStream, strPathToNativeBinaries, yaraRulesPath, additionalOptions, settings);
+                packager.setReportFile(Path.of(output + Main.REPORT_FILE_SUFFIX));
+                Main.openShards(packager, output, shardCount, settings.getFsyncPolicy(), shardOutputStreams);
+                packager.run();
+            } finally {
+                Main.closeShards(shardOutputStreams);
+            }
+        };
+    }
+
+    /**
+     * Runs each job in a separate Java process started with the same
+     * runtime, class path and options as this one. The console output of
+     * each worker is written to a log file next to its package.
+     */
+    static BatchJob workerProcessJob(List<String> workerArguments) {
+        return (input, output) -> {
+            List<String> command = new ArrayList<>();
+            command.add(ProcessHandle.current().info().command().orElse("java"));
+            for (String jvmArgument : ManagementFactory.getRuntimeMXBean().getInputArguments()) {
+                // A debugger agent would make every worker try to listen on the same port
+                if (!jvmArgument.startsWith("-agentlib:jdwp")) {
+                    command.add(jvmArgument);
+                }
+            }
+            command.addAll(List.of("-cp", System.getProperty("java.class.path"), Main.class.getName()));
+            command.addAll(List.of("-i", input.toString(), "-o", output.toString(), "-f"));
+            command.addAll(workerArguments);
+
+            File logFile = new File(output.toString() + ".log");
+            Process process = new ProcessBuilder(command)
+                    .redirectErrorStream(true)
+                    .redirectOutput(logFile)
+                    .start();
+            try {
+                int exitCode = process.waitFor();
+                if (exitCode != 0) {
+                    throw new IOException("Worker process exited with code " + exitCode + ", see " + logFile);
+                }
+            } catch (InterruptedException ex) {
+                process.destroyForcibly();
+                throw ex;
+            }
+        };
+    }
+
+    /**
+     * Returns the command line arguments to pass on to worker processes, all
+     * arguments except the ones that control the batch itself.
+     */
+    static List<String> workerArguments(String[] args) {
+        List<String> workerArguments = new ArrayList<>();
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            String name = arg.contains("=") ? arg.substring(0, arg.indexOf('=')) : arg;
+            if (BATCH_OPTIONS_WITH_VALUE.contains(name)) {
+                if (!arg.contains("=")) {
+                    i++; // Skip the value as well
+                }
+                continue;
+            }
+            if (BATCH_FLAGS.contains(name)) {
+                continue;
+            }
+            workerArguments.add(arg);
+        }
+        return workerArguments;
+    }
+}
@@ -0,0 +1,107 @@
+/*
+ * memprocfs_packager
+ * 
+ * Copyright (C) 2024  Sleuth Kit Labs
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.sleuthkitlabs.memprocfspackager;
+
+import java.util.Deque;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.sun.jna.Memory;
+
+/**
+ * A pool of off-heap buffers for reading from the VFS, shared by all reader
+ * threads.
+ *
+ * Buffers are handed out in power of two size classes, so the chunk sizes
+ * used by VFSInputStream always find a matching buffer once the pool has
+ * warmed up. Released buffers are kept for reuse up to a total size limit,
+ * beyond that they are freed.
+ */
+class BufferPool {
+
+    static final int MIN_BUFFER_SIZE = VFSInputStream.MIN_CHUNK_SIZE;
+
+    private final long maxPooledBytes;
+    private final Map<Long, Deque<Memory>> free = new ConcurrentHashMap<>();
+    private final AtomicLong pooledBytes = new AtomicLong();
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    BufferPool(long maxPooledBytes) {
+        this.maxPooledBytes = maxPooledBytes;
+    }
+
+    /**
+     * Returns a buffer of at least the given size, reusing a pooled one if
+     * possible.
+     */
+    Memory acquire(int size) {
+        long sizeClass = sizeClass(size);
+        Deque<Memory> buffers = free.get(sizeClass);
+        Memory buffer = buffers != null ? buffers.pollFirst() : null;
+        if (buffer != null) {
+            pooledBytes.addAndGet(-sizeClass);
+            hits.increment();
+            return buffer;
+        }
+
+        misses.increment();
+        return new Memory(sizeClass);
+    }
+
+    /**
+     * Returns a buffer to the pool. The buffer must not be used afterwards.
+     */
+    void release(Memory buffer) {
+        long sizeClass = buffer.size();
+        if (pooledBytes.addAndGet(sizeClass) > maxPooledBytes) {
+            pooledBytes.addAndGet(-sizeClass);
+            buffer.close();
+            return;
+        }
+        free.computeIfAbsent(sizeClass, key -> new ConcurrentLinkedDeque<>()).offerFirst(buffer);
+    }
+
+    long getMaxPooledBytes() {
+        return maxPooledBytes;
+    }
+
+    long getPooledBytes() {
+        return pooledBytes.get();
+    }
+
+    long getHits() {
+        return hits.sum();
+    }
+
+    long getMisses() {
+        return misses.sum();
+    }
+
+    // Rounds up to the next power of two
+    static long sizeClass(int size) {
+        if (size <= MIN_BUFFER_SIZE) {
+            return MIN_BUFFER_SIZE;
+        }
+        return Long.highestOneBit(size - 1L) << 1;
+    }
+}
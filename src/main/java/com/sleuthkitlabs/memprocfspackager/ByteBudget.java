@@ -0,0 +1,77 @@
+/*
+ * memprocfs_packager
+ * 
+ * Copyright (C) 2024  Sleuth Kit Labs
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.sleuthkitlabs.memprocfspackager;
+
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A counting budget of bytes, used to cap how much file content is held in
+ * memory at once. Works like a semaphore with long permits.
+ */
+class ByteBudget {
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition released = lock.newCondition();
+    private final long capacity;
+    private long available;
+
+    ByteBudget(long capacity) {
+        this.capacity = capacity;
+        this.available = capacity;
+    }
+
+    long capacity() {
+        return capacity;
+    }
+
+    /**
+     * Blocks until the requested number of bytes is available. Requests larger
+     * than the capacity are clamped to the capacity so they can always proceed
+     * once everything else has been released.
+     *
+     * @return the number of bytes actually acquired, to be passed to release
+     */
+    long acquire(long bytes) throws InterruptedException {
+        long amount = Math.min(Math.max(bytes, 0), capacity);
+        lock.lockInterruptibly();
+        try {
+            while (available < amount) {
+                released.await();
+            }
+            available -= amount;
+            return amount;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    void release(long bytes) {
+        if (bytes <= 0) {
+            return;
+        }
+        lock.lock();
+        try {
+            available = Math.min(capacity, available + bytes);
+            released.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+}
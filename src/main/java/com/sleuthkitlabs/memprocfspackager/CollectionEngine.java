@@ -0,0 +1,749 @@
+/*
+ * memprocfs_packager
+ * 
+ * Copyright (C) 2024  Sleuth Kit Labs
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.sleuthkitlabs.memprocfspackager;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Pipelined collection of VFS files into an archive.
+ *
+ * A pool of reader threads pulls file contents from the VFS concurrently and
+ * hands them to a pool of compression threads, which DEFLATE each entry on its
+ * own. The compressed entries are then copied as is into the archive by a
+ * single writer thread, which is the only thread that touches the
+ * ArchiveWriter. The amount of file content held in memory between the stages
+ * is capped by a byte budget. Files that are larger than the whole budget are
+ * not buffered, the writer streams and compresses them directly from the VFS
+ * instead, with the next chunks read ahead on a separate thread while it
+ * compresses.
+ *
+ * Large text files can be written as seekable gzip files instead, whose
+ * blocks are compressed in parallel on a pool of their own while the writer
+ * reads the file, see {@link SeekableGzip}.
+ *
+ * Small files, which make up most entries, are read in a single call each.
+ * Consecutive small files of the same directory are batched, so they are
+ * read by one reader task and handed to one compression task together. Each
+ * file of a batch still gets its own read deadline.
+ *
+ * With a deadline, items that have not been read when it passes are skipped
+ * and listed in skipped.csv, and files still being read are cut short. The
+ * archive is finished as usual. Files that end before their listed size are
+ * listed in skipped.csv as well, and never go into the forensic result cache.
+ */
+class CollectionEngine implements Closeable {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(CollectionEngine.class);
+
+    // Marks the end of the completed entry queue
+    private static final CompletedEntry END = new CompletedEntry(null, null, null, 0, 0, 0, 0, false);
+
+    // Files up to this size are read in a single call, like the first chunk of a VFSInputStream
+    static final int SMALL_FILE_MAX_BYTES = VFSInputStream.MIN_CHUNK_SIZE;
+
+    static final int MAX_BATCH_FILES = 64;
+
+    static final long MAX_BATCH_BYTES = 1024 * 1024;
+
+    private final VfsSource source;
+    private final ArchiveWriter archiveWriter;
+    private final CompressionPolicy compressionPolicy;
+    private final RunReport report;
+
+    private final ByteBudget budget;
+
+    // Null when no manifest is written
+    private final Manifest manifest;
+
+    // Null unless identical files are stored once
+    private final DedupIndex dedupIndex;
+
+    // Duplicates whose original has not been written yet, only accessed from the writer thread
+    private final Map<String, List<CompletedEntry>> pendingDuplicates = new HashMap<>();
+    private final ExecutorService readers;
+    private final ExecutorService compressors;
+
+    // Null when streamed files are read without read-ahead
+    private final ExecutorService readAhead;
+    private final int readAheadChunks;
+
+    // Null unless large files are written as seekable gzip files
+    private final ExecutorService blockCompressors;
+    private final int blockCompressionThreads;
+    private final long seekableMinBytes;
+    private final BlockingQueue<CompletedEntry> completed = new LinkedBlockingQueue<>();
+
+    // Small files of one directory not handed to the readers yet, only accessed from the submitting thread
+    private List<CollectionItem> batch = new ArrayList<>();
+    private String batchDirectory;
+    private long batchBytes = 0;
+    private final Thread writer;
+
+    // Set when forensic results are copied into the forensic result cache
+    private volatile ForensicResultCache.EntryWriter cacheEntry;
+
+    // Files not collected in full because of the deadline or the per-file read timeout
+    private final SkippedFiles skippedFiles = new SkippedFiles();
+    private final long fileReadTimeoutMillis;
+    private volatile Deadline deadline = Deadline.NONE;
+
+    private volatile IOException writerError;
+    private long entriesWritten = 0;
+    private long bytesWritten = 0;
+
+    CollectionEngine(VfsSource source, ArchiveWriter archiveWriter, PackagerSettings settings, RunReport report) {
+        this.source = source;
+        this.archiveWriter = archiveWriter;
+        this.report = report;
+        this.compressionPolicy = settings.getCompressionPolicy();
+        this.budget = new ByteBudget(settings.getMaxInFlightBytes());
+        this.manifest = settings.isManifestEnabled() ? new Manifest(settings.isMd5Enabled(), settings.getManifestSigningKey()) : null;
+        this.dedupIndex = settings.isDedupEnabled() ? new DedupIndex() : null;
+        this.fileReadTimeoutMillis = settings.getFileReadTimeoutMillis();
+        this.readers = Executors.newFixedThreadPool(settings.getReaderThreads(), daemonThreadFactory("vfs-reader-"));
+        this.compressors = Executors.newFixedThreadPool(settings.getCompressionThreads(), daemonThreadFactory("compressor-"));
+        this.readAheadChunks = settings.getReadAheadChunks();
+        this.readAhead = readAheadChunks > 0 ? Executors.newCachedThreadPool(daemonThreadFactory("vfs-read-ahead-")) : null;
+        this.seekableMinBytes = settings.getSeekableMinBytes();
+        this.blockCompressionThreads = settings.getCompressionThreads();
+        this.blockCompressors = seekableMinBytes > 0
+                ? Executors.newFixedThreadPool(blockCompressionThreads, daemonThreadFactory("block-compressor-"))
+                : null;
+
+        this.writer = new Thread(this::writeLoop, "zip-writer");
+        this.writer.setDaemon(true);
+        this.writer.start();
+    }
+
+    /**
+     * Copies the forensic files collected from now on into a forensic result
+     * cache entry as well.
+     */
+    void setCacheEntry(ForensicResultCache.EntryWriter cacheEntry) {
+        this.cacheEntry = cacheEntry;
+    }
+
+    /**
+     * Stops collecting when the deadline passes. Items that have not been read
+     * by then are skipped.
+     */
+    void setDeadline(Deadline deadline) {
+        this.deadline = deadline;
+    }
+
+    /**
+     * Records an item that is not collected because of the deadline.
+     */
+    void skip(CollectionItem item) {
+        skippedFiles.add(item.vfsPath(), item.size(), 0, SkippedFiles.Reason.DEADLINE);
+        failCache(item);
+    }
+
+    /**
+     * Records a directory that is not listed because of the deadline, so the
+     * files below it are not known.
+     */
+    void skipListing(String vfsPath) {
+        failCache(new CollectionItem(vfsPath, vfsPath, false, 0));
+    }
+
+    // The forensic results are incomplete without the item, so they are not cached
+    private void failCache(CollectionItem item) {
+        ForensicResultCache.EntryWriter cache = cacheFor(item);
+        if (cache != null) {
+            cache.fail(item, new IOException("Deadline passed"));
+        }
+    }
+
+    /**
+     * Records a rule that is not resolved at all, so the files it would have
+     * matched are unknown.
+     */
+    void skip(CollectionRule rule, SkippedFiles.Reason reason) {
+        skippedFiles.add(rule.path(), -1, 0, reason);
+    }
+
+    /**
+     * Queues an item for collection. Returns immediately, the item is read and
+     * written to the archive in the background.
+     */
+    void submit(CollectionItem item) {
+        if (!item.isFile() || item.size() > budget.capacity() || isSeekable(item)) {
+            // Directories have no content, oversized and seekable files are streamed by the writer
+            completed.add(new CompletedEntry(item, null, null, 0, 0, 0, 0, false));
+            return;
+        }
+        if (item.size() <= SMALL_FILE_MAX_BYTES) {
+            addToBatch(item);
+            return;
+        }
+        readers.execute(() -> read(item));
+    }
+
+    /**
+     * Hands the small files held back for batching to the readers. Called
+     * before waiting on something else, so they are not held up by it.
+     */
+    void flush() {
+        if (batch.isEmpty()) {
+            return;
+        }
+        List<CollectionItem> items = batch;
+        readers.execute(() -> readBatch(items));
+        batch = new ArrayList<>();
+        batchBytes = 0;
+    }
+
+    private void addToBatch(CollectionItem item) {
+        String directory = parentOf(item.vfsPath());
+        if (!directory.equals(batchDirectory) || batch.size() >= MAX_BATCH_FILES
+                || batchBytes + item.size() > Math.min(MAX_BATCH_BYTES, budget.capacity())) {
+            flush();
+            batchDirectory = directory;
+        }
+        batch.add(item);
+        batchBytes += item.size();
+    }
+
+    private static String parentOf(String vfsPath) {
+        return vfsPath.substring(0, vfsPath.lastIndexOf('\\') + 1);
+    }
+
+    private void read(CollectionItem item) {
+        if (deadline.isExpired()) {
+            skip(item);
+            return;
+        }
+
+        long reserved;
+        try {
+            reserved = budget.acquire(item.size());
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            LOGGER.warn("Interrupted waiting to read: " + item.vfsPath());
+            return;
+        }
+
+        // The deadline may have passed while waiting for the budget
+        if (deadline.isExpired()) {
+            budget.release(reserved);
+            skip(item);
+            return;
+        }
+
+        ForensicResultCache.EntryWriter cache = cacheFor(item);
+        long readStart = System.nanoTime();
+        byte[] content;
+        try (InputStream inputStream = open(item)) {
+            content = inputStream.readAllBytes();
+            if (isTruncated(inputStream, item, content.length) && cache != null) {
+                cache.fail(item, truncatedError(item, content.length));
+            }
+        } catch (IOException | RuntimeException ex) {
+            budget.release(reserved);
+            LOGGER.error("Error reading file " + item.vfsPath(), ex);
+            if (cache != null) {
+                cache.fail(item, ex);
+            }
+            return;
+        }
+
+        if (cache != null) {
+            cache.write(item, content);
+        }
+
+        long readNanos = System.nanoTime() - readStart;
+        long time = System.currentTimeMillis();
+        int level = compressionPolicy.levelFor(item.zipPath(), content.length);
+        if (level == CompressionPolicy.STORED && manifest == null && dedupIndex == null) {
+            // Nothing to compress or hash, skip the hand-off to the compression pool
+            completed.add(new CompletedEntry(item, CompressedContent.compress(content, level), null, reserved, time, readNanos, 0, false));
+            return;
+        }
+
+        // Hashing runs on the compression pool as well, so it never holds up the readers
+        compressors.execute(() -> {
+            CompletedEntry entry = compress(item, content, reserved, time, readNanos);
+            if (entry != null) {
+                completed.add(entry);
+            }
+        });
+    }
+
+    // Reads a batch of small files, each with its own read deadline, and compresses them in one task
+    private void readBatch(List<CollectionItem> items) {
+        if (deadline.isExpired()) {
+            items.forEach(this::skip);
+            return;
+        }
+
+        long total = items.stream().mapToLong(CollectionItem::size).sum();
+        long reserved;
+        try {
+            reserved = budget.acquire(total);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            LOGGER.warn("Interrupted waiting to read " + items.size() + " files in " + parentOf(items.get(0).vfsPath()));
+            return;
+        }
+
+        // The budget is released per entry by the writer, so every file gets its share of the reservation
+        List<BatchRead> reads = new ArrayList<>(items.size());
+        long unassigned = reserved;
+        for (CollectionItem item : items) {
+            long share = Math.min(item.size(), unassigned);
+            unassigned -= share;
+
+            if (deadline.isExpired()) {
+                budget.release(share);
+                skip(item);
+                continue;
+            }
+
+            ForensicResultCache.EntryWriter cache = cacheFor(item);
+            long readStart = System.nanoTime();
+            byte[] content;
+            boolean truncated;
+            try (InputStream inputStream = open(item)) {
+                content = inputStream.readNBytes((int) item.size());
+                truncated = isTruncated(inputStream, item, content.length);
+            } catch (IOException | RuntimeException ex) {
+                budget.release(share);
+                LOGGER.error("Error reading file " + item.vfsPath(), ex);
+                if (cache != null) {
+                    cache.fail(item, ex);
+                }
+                continue;
+            }
+            if (truncated && cache != null) {
+                cache.fail(item, truncatedError(item, content.length));
+            } else if (cache != null) {
+                cache.write(item, content);
+            }
+            reads.add(new BatchRead(item, content, share, System.currentTimeMillis(), System.nanoTime() - readStart));
+        }
+        budget.release(unassigned);
+
+        if (reads.isEmpty()) {
+            return;
+        }
+        compressors.execute(() -> {
+            List<CompletedEntry> entries = new ArrayList<>(reads.size());
+            for (BatchRead read : reads) {
+                CompletedEntry entry = compress(read.item(), read.content(), read.reserved(), read.time(), read.readNanos());
+                if (entry != null) {
+                    entries.add(entry);
+                }
+            }
+            // The writer gets the files of the directory in one go
+            completed.addAll(entries);
+        });
+    }
+
+    // Hashes and compresses a file on the compression pool, returns null if that failed
+    private CompletedEntry compress(CollectionItem item, byte[] content, long reserved, long time, long readNanos) {
+        try {
+            ContentHasher.Hashes hashes = manifest != null || dedupIndex != null
+                    ? ContentHasher.hash(content, manifest != null && manifest.includesMd5())
+                    : null;
+
+            if (dedupIndex != null && content.length > 0 && !dedupIndex.claim(hashes.sha256())) {
+                // Another file has the same content, it is neither compressed nor stored again
+                budget.release(reserved);
+                return new CompletedEntry(item, null, hashes, 0, time, readNanos, 0, true);
+            }
+
+            int level = compressionPolicy.levelFor(item.zipPath(), content.length);
+            long compressStart = System.nanoTime();
+            CompressedContent compressed = CompressedContent.compress(content, level);
+            return new CompletedEntry(item, compressed, hashes, reserved, time, readNanos, System.nanoTime() - compressStart, false);
+        } catch (RuntimeException ex) {
+            budget.release(reserved);
+            LOGGER.error("Error compressing file " + item.vfsPath(), ex);
+            return null;
+        }
+    }
+
+    private void writeLoop() {
+        while (true) {
+            CompletedEntry entry;
+            try {
+                entry = completed.take();
+            } catch (InterruptedException ex) {
+                writerError = new InterruptedIOException("Interrupted writing archive");
+                return;
+            }
+
+            if (entry == END) {
+                writePendingDuplicates();
+                return;
+            }
+
+            try {
+                // After a write error keep draining the queue so readers waiting on the budget are released
+                if (writerError == null) {
+                    write(entry);
+                }
+            } catch (IOException ex) {
+                LOGGER.error("Error writing entry " + entry.item().zipPath(), ex);
+                writerError = ex;
+            } finally {
+                budget.release(entry.reserved());
+            }
+        }
+    }
+
+    private void write(CompletedEntry entry) throws IOException {
+        if (entry.duplicate()) {
+            String sha256 = entry.hashes().sha256();
+            CollectionItem original = dedupIndex.original(sha256);
+            if (original != null) {
+                writeDuplicate(entry, original);
+            } else {
+                // The file with this content is still being compressed
+                pendingDuplicates.computeIfAbsent(sha256, key -> new ArrayList<>()).add(entry);
+            }
+            return;
+        }
+
+        CollectionItem item = entry.item();
+        CompressedContent content = entry.content();
+        FileCollectedEvent event = new FileCollectedEvent();
+        event.begin();
+
+        if (content != null) {
+            // Already compressed by the compression pool, copied as is
+            archiveWriter.writeEntry(item, content, entry.time());
+            bytesWritten += content.size();
+            report.addEntry(item, content.size(), content.data().length, entry.readNanos(), entry.compressNanos(), false, event);
+            if (dedupIndex != null && entry.hashes() != null && content.size() > 0) {
+                recordOriginal(entry.hashes().sha256(), item);
+            }
+            if (manifest != null) {
+                manifest.add(item, entry.hashes(), entry.time());
+            }
+        } else if (item.isFile()) {
+            if (deadline.isExpired()) {
+                skip(item);
+                return;
+            }
+
+            int level = compressionPolicy.levelFor(item.zipPath(), item.size());
+            ForensicResultCache.EntryWriter cache = cacheFor(item);
+            ContentHasher hasher = manifest != null ? new ContentHasher(manifest.includesMd5()) : null;
+            long time = System.currentTimeMillis();
+            long streamStart = System.nanoTime();
+            CollectionItem written = item;
+            ContentHasher storedHasher = null;
+            try (InputStream source = open(item); InputStream inputStream = openStreamed(item, source, cache, hasher)) {
+                if (readAhead != null && source instanceof VFSInputStream vfsInputStream) {
+                    // The next chunks are read while the writer compresses this one
+                    vfsInputStream.setReadAhead(readAheadChunks, readAhead);
+                }
+                long size;
+                if (isSeekable(item)) {
+                    written = SeekableGzip.entryFor(item);
+                    storedHasher = hasher != null ? new ContentHasher(manifest.includesMd5()) : null;
+                    size = writeSeekable(written, inputStream, level, time, event, storedHasher);
+                } else {
+                    size = archiveWriter.writeStreamed(item, inputStream, level, time);
+                    bytesWritten += size;
+                    report.addEntry(item, size, RunReport.UNKNOWN_SIZE, System.nanoTime() - streamStart, 0, true, event);
+                }
+                if (isTruncated(source, item, size) && cache != null) {
+                    cache.fail(item, truncatedError(item, size));
+                }
+            } catch (IOException ex) {
+                if (cache != null) {
+                    cache.fail(item, ex);
+                }
+                throw ex;
+            }
+            if (storedHasher != null) {
+                manifest.add(written, storedHasher.finish(), hasher.finish(), time);
+            } else if (hasher != null) {
+                manifest.add(written, hasher.finish(), time);
+            }
+        } else {
+            ForensicResultCache.EntryWriter cache = cacheFor(item);
+            if (cache != null) {
+                cache.writeDirectory(item);
+            }
+            archiveWriter.writeDirectory(item, System.currentTimeMillis());
+        }
+        entriesWritten++;
+    }
+
+    // Compresses a file into blocks in parallel and writes it with its block index, the stored hasher
+    // if given hashes the gzip stream as it is written to the archive
+    private long writeSeekable(CollectionItem entry, InputStream inputStream, int level, long time, FileCollectedEvent event, ContentHasher storedHasher) throws IOException {
+        long start = System.nanoTime();
+        SeekableGzip gzip = new SeekableGzip(level, blockCompressors, blockCompressionThreads);
+
+        long size;
+        if (archiveWriter.isSeekable()) {
+            // The size and CRC of the entry are filled in once it is complete, so the blocks go straight into the archive
+            try (OutputStream outputStream = archiveWriter.openStored(entry, time)) {
+                size = gzip.compress(inputStream, storedHasher != null ? storedHasher.wrap(outputStream) : outputStream);
+            }
+        } else {
+            // A pipe needs the size and CRC of a stored entry up front, so the blocks are spooled first
+            Path spool = Files.createTempFile("memprocfs_packager", SeekableGzip.SUFFIX);
+            try {
+                try (OutputStream outputStream = new BufferedOutputStream(Files.newOutputStream(spool))) {
+                    size = gzip.compress(inputStream, outputStream);
+                }
+                try (InputStream spooled = storedHasher != null ? storedHasher.wrap(Files.newInputStream(spool)) : Files.newInputStream(spool)) {
+                    archiveWriter.writeStored(entry, spooled, gzip.getCompressedSize(), gzip.getCrc(), time);
+                }
+            } finally {
+                Files.deleteIfExists(spool);
+            }
+        }
+        bytesWritten += size;
+        report.addEntry(entry, size, gzip.getCompressedSize(), System.nanoTime() - start, 0, true, event);
+
+        String indexName = entry.zipPath() + SeekableGzip.INDEX_SUFFIX;
+        byte[] index = gzip.index();
+        writeGenerated(indexName, index);
+        if (manifest != null) {
+            // Random access into the entry relies on the index, so it is hashed as well
+            manifest.add(new CollectionItem(indexName, indexName, true, index.length), ContentHasher.hash(index, manifest.includesMd5()), time);
+        }
+        return size;
+    }
+
+    // Large files the compression policy deflates are written as seekable gzip files if enabled
+    private boolean isSeekable(CollectionItem item) {
+        return seekableMinBytes > 0 && item.isFile() && item.size() >= seekableMinBytes
+                && compressionPolicy.levelFor(item.zipPath(), item.size()) != CompressionPolicy.STORED;
+    }
+
+    private void recordOriginal(String sha256, CollectionItem item) throws IOException {
+        dedupIndex.recordOriginal(sha256, item);
+        List<CompletedEntry> duplicates = pendingDuplicates.remove(sha256);
+        if (duplicates != null) {
+            for (CompletedEntry duplicate : duplicates) {
+                writeDuplicate(duplicate, item);
+            }
+        }
+    }
+
+    private void writeDuplicate(CompletedEntry entry, CollectionItem original) throws IOException {
+        CollectionItem item = entry.item();
+        FileCollectedEvent event = new FileCollectedEvent();
+        event.begin();
+
+        if (!archiveWriter.writeLink(item, original, entry.time())) {
+            dedupIndex.addReference(item, original, entry.hashes());
+        }
+        if (manifest != null) {
+            manifest.add(item, entry.hashes(), entry.time());
+        }
+        report.addEntry(item, entry.hashes().size(), 0, entry.readNanos(), 0, false, event);
+        entriesWritten++;
+    }
+
+    // Duplicates of a file that failed to compress are read again and written in full
+    private void writePendingDuplicates() {
+        for (List<CompletedEntry> duplicates : pendingDuplicates.values()) {
+            for (CompletedEntry duplicate : duplicates) {
+                try {
+                    if (writerError == null) {
+                        write(new CompletedEntry(duplicate.item(), null, null, 0, duplicate.time(), 0, 0, false));
+                    }
+                } catch (IOException ex) {
+                    LOGGER.error("Error writing entry " + duplicate.item().zipPath(), ex);
+                    writerError = ex;
+                }
+            }
+        }
+        pendingDuplicates.clear();
+    }
+
+    private InputStream open(CollectionItem item) throws IOException {
+        return source.open(item.vfsPath(), item.size(), Deadline.afterMillis(fileReadTimeoutMillis).min(deadline));
+    }
+
+    // Records a file that was cut short by its read deadline or ended before its listed size, returns true if it was
+    private boolean isTruncated(InputStream inputStream, CollectionItem item, long collected) {
+        SkippedFiles.Reason reason;
+        if (inputStream instanceof VFSInputStream vfsInputStream && vfsInputStream.isTruncated()) {
+            reason = deadline.isExpired() ? SkippedFiles.Reason.DEADLINE : SkippedFiles.Reason.READ_TIMEOUT;
+        } else if (collected < item.size()) {
+            // A failed read ends the file like its end does, only the listed size tells them apart
+            LOGGER.warn("Read " + collected + " bytes of " + item.vfsPath() + ", listed with " + item.size() + " bytes");
+            reason = SkippedFiles.Reason.SHORT_READ;
+        } else {
+            return false;
+        }
+        skippedFiles.add(item.vfsPath(), item.size(), collected, reason);
+        return true;
+    }
+
+    private static IOException truncatedError(CollectionItem item, long collected) {
+        return new IOException("Read " + collected + " of " + item.size() + " bytes");
+    }
+
+    // Streamed files are copied to the forensic result cache and hashed as the writer reads them
+    private InputStream openStreamed(CollectionItem item, InputStream source, ForensicResultCache.EntryWriter cache, ContentHasher hasher) {
+        InputStream inputStream = source;
+        if (cache != null) {
+            inputStream = cache.tee(item, inputStream);
+        }
+        if (hasher != null) {
+            inputStream = hasher.wrap(inputStream);
+        }
+        return inputStream;
+    }
+
+    private ForensicResultCache.EntryWriter cacheFor(CollectionItem item) {
+        ForensicResultCache.EntryWriter cache = cacheEntry;
+        return cache != null && cache.accepts(item) ? cache : null;
+    }
+
+    /**
+     * Waits for all submitted items to be read and written.
+     *
+     * @throws IOException if writing to the archive failed
+     */
+    @Override
+    public void close() throws IOException {
+        flush();
+        readers.shutdown();
+        RunReport.Phase drainPhase = report.phase("drain");
+        try {
+            // Readers hand work to the compressors, so they have to finish first
+            readers.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+            compressors.shutdown();
+            compressors.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+            completed.add(END);
+            writer.join();
+        } catch (InterruptedException ex) {
+            readers.shutdownNow();
+            compressors.shutdownNow();
+            writer.interrupt();
+            if (readAhead != null) {
+                readAhead.shutdownNow();
+            }
+            if (blockCompressors != null) {
+                blockCompressors.shutdownNow();
+            }
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for collection to complete");
+        } finally {
+            drainPhase.close();
+        }
+
+        // Every streamed file has been closed by the writer, so nothing is reading ahead or compressing blocks anymore
+        if (readAhead != null) {
+            readAhead.shutdown();
+        }
+        if (blockCompressors != null) {
+            blockCompressors.shutdown();
+        }
+
+        if (writerError != null) {
+            throw writerError;
+        }
+
+        // Triage packages always say what they are missing, even if it is nothing
+        if (deadline.isSet() || !skippedFiles.isEmpty()) {
+            writeGenerated(SkippedFiles.SKIPPED_NAME, skippedFiles.toCsv());
+            if (!skippedFiles.isEmpty()) {
+                System.out.println("Not collected in full: " + skippedFiles.size() + " files, see " + SkippedFiles.SKIPPED_NAME + " in the package");
+            }
+        }
+
+        if (dedupIndex != null && !dedupIndex.isEmpty()) {
+            writeGenerated(DedupIndex.INDEX_NAME, dedupIndex.toCsv());
+        }
+
+        if (manifest != null) {
+            writeManifest();
+        }
+
+        LOGGER.info("Collected " + entriesWritten + " entries, " + bytesWritten + " bytes");
+    }
+
+    // Writes an entry generated by the packager itself
+    private void writeGenerated(String name, byte[] data) throws IOException {
+        int level = compressionPolicy.levelFor(name, data.length);
+        archiveWriter.writeEntry(new CollectionItem(name, name, true, data.length), CompressedContent.compress(data, level), System.currentTimeMillis());
+    }
+
+    // Called once all entries are written, the writer thread has finished by then
+    private void writeManifest() throws IOException {
+        long time = System.currentTimeMillis();
+        byte[] csv = manifest.toCsv();
+        int level = compressionPolicy.levelFor(Manifest.MANIFEST_NAME, csv.length);
+        archiveWriter.writeEntry(new CollectionItem(Manifest.MANIFEST_NAME, Manifest.MANIFEST_NAME, true, csv.length), CompressedContent.compress(csv, level), time);
+
+        if (manifest.isSigned()) {
+            byte[] signature;
+            try {
+                signature = manifest.sign(csv);
+            } catch (GeneralSecurityException ex) {
+                throw new IOException("Error signing manifest", ex);
+            }
+            archiveWriter.writeEntry(new CollectionItem(Manifest.SIGNATURE_NAME, Manifest.SIGNATURE_NAME, true, signature.length), CompressedContent.compress(signature, CompressionPolicy.STORED), time);
+        }
+    }
+
+    private static ThreadFactory daemonThreadFactory(String namePrefix) {
+        AtomicInteger threadNumber = new AtomicInteger();
+        return runnable -> {
+            Thread thread = new Thread(runnable, namePrefix + threadNumber.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    private record CompletedEntry(CollectionItem item, CompressedContent content, ContentHasher.Hashes hashes, long reserved, long time,
+            long readNanos, long compressNanos, boolean duplicate) {
+
+    }
+
+    // A file of a batch that has been read and waits for compression
+    private record BatchRead(CollectionItem item, byte[] content, long reserved, long time, long readNanos) {
+
+    }
+}
@@ -0,0 +1,31 @@
+/*
+ * memprocfs_packager
+ * 
+ * Copyright (C) 2024  Sleuth Kit Labs
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.sleuthkitlabs.memprocfspackager;
+
+/**
+ * A resolved VFS file or directory that will be written to the archive.
+ *
+ * @param vfsPath   path of the file in the MemProcFS VFS
+ * @param zipPath   path of the entry in the archive, directories end with a slash
+ * @param isFile    false for directory entries, which have no content
+ * @param size      size reported by the VFS listing
+ */
+record CollectionItem(String vfsPath, String zipPath, boolean isFile, long size) {
+
+}
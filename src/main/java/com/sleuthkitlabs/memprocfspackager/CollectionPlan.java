@@ -0,0 +1,225 @@
+/*
+ * memprocfs_packager
+ * 
+ * Copyright (C) 2024  Sleuth Kit Labs
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.sleuthkitlabs.memprocfspackager;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+
+import vmm.entry.Vmm_VfsListEntry;
+
+/**
+ * What a run with the current rules would collect and what it would cost,
+ * resolved against the VFS without collecting anything.
+ *
+ * The read time is estimated from a few sampled files. The time of each
+ * sample is fitted as a fixed cost per file plus a cost per byte, which is
+ * then applied to all planned files and divided over the reader threads.
+ */
+public class CollectionPlan {
+
+    // Number of files read to measure the read throughput
+    static final int SAMPLE_FILES = 8;
+
+    // Only the start of large files is read for a sample
+    static final long SAMPLE_BYTES = 4L * 1024 * 1024;
+
+    private final String image;
+    private final int readerThreads;
+    private final List<PlannedFile> files = new ArrayList<>();
+    private final List<RuleCost> rules = new ArrayList<>();
+    private final List<Sample> samples = new ArrayList<>();
+    private long forensicWaitNanos = 0;
+
+    CollectionPlan(String image, int readerThreads) {
+        this.image = image;
+        this.readerThreads = readerThreads;
+    }
+
+    /**
+     * Adds a file or directory to the plan, attributed to the first rule
+     * that matched it.
+     */
+    void addFile(CollectionItem item, CollectionRule rule) {
+        files.add(new PlannedFile(item, rule));
+    }
+
+    /**
+     * Records the cost of resolving a single rule.
+     *
+     * @param matches  every entry the rule matched, including entries
+     *                 matched by earlier rules as well
+     * @param listings directories listed for this rule, directories listed
+     *                 by earlier rules are not counted again
+     */
+    void addRule(CollectionRule rule, List<Vmm_VfsListEntry> matches, long listings, long nanos) {
+        long fileCount = matches.stream().filter(entry -> entry.isFile).count();
+        long bytes = matches.stream().filter(entry -> entry.isFile).mapToLong(entry -> entry.size).sum();
+        rules.add(new RuleCost(rule, fileCount, bytes, listings, nanos));
+    }
+
+    void setForensicWaitNanos(long forensicWaitNanos) {
+        this.forensicWaitNanos = forensicWaitNanos;
+    }
+
+    /**
+     * Returns the files to read for the throughput samples, spread from the
+     * smallest to the largest file so the fit sees both costs.
+     */
+    List<CollectionItem> sampleFiles() {
+        List<CollectionItem> candidates = files.stream()
+                .map(PlannedFile::item)
+                .filter(item -> item.isFile() && item.size() > 0)
+                .sorted(Comparator.comparingLong(CollectionItem::size))
+                .toList();
+        if (candidates.size() <= SAMPLE_FILES) {
+            return candidates;
+        }
+
+        List<CollectionItem> sample = new ArrayList<>();
+        for (int i = 0; i < SAMPLE_FILES; i++) {
+            sample.add(candidates.get((int) ((long) i * (candidates.size() - 1) / (SAMPLE_FILES - 1))));
+        }
+        return sample;
+    }
+
+    void addSample(long bytes, long nanos) {
+        samples.add(new Sample(bytes, nanos));
+    }
+
+    public long getFileCount() {
+        return files.stream().filter(file -> file.item().isFile()).count();
+    }
+
+    public long getTotalBytes() {
+        return files.stream().filter(file -> file.item().isFile()).mapToLong(file -> file.item().size()).sum();
+    }
+
+    public long getListingCount() {
+        return rules.stream().mapToLong(RuleCost::listings).sum();
+    }
+
+    /**
+     * Returns the estimated duration of a run in nanoseconds: resolving the
+     * rules, waiting for forensic processing and reading the files.
+     */
+    public long getEstimatedNanos() {
+        long resolveNanos = rules.stream().mapToLong(RuleCost::nanos).sum();
+        return resolveNanos + forensicWaitNanos + estimatedReadNanos();
+    }
+
+    // Least squares fit of nanos = perFile + perByte * bytes over the samples
+    private long estimatedReadNanos() {
+        if (samples.isEmpty()) {
+            return 0;
+        }
+
+        double n = samples.size();
+        double meanBytes = samples.stream().mapToLong(Sample::bytes).sum() / n;
+        double meanNanos = samples.stream().mapToLong(Sample::nanos).sum() / n;
+        double covariance = 0;
+        double variance = 0;
+        for (Sample sample : samples) {
+            covariance += (sample.bytes() - meanBytes) * (sample.nanos() - meanNanos);
+            variance += (sample.bytes() - meanBytes) * (sample.bytes() - meanBytes);
+        }
+
+        double perByte;
+        double perFile;
+        if (variance > 0 && covariance > 0) {
+            perByte = covariance / variance;
+            perFile = Math.max(meanNanos - perByte * meanBytes, 0);
+        } else {
+            // All samples the same size, or no visible cost per byte, charge everything per byte
+            perByte = meanBytes > 0 ? meanNanos / meanBytes : 0;
+            perFile = 0;
+        }
+
+        double total = getFileCount() * perFile + getTotalBytes() * perByte;
+        return (long) (total / readerThreads);
+    }
+
+    /**
+     * Returns a human readable summary with the cost of every rule.
+     */
+    public String summary() {
+        StringBuilder summary = new StringBuilder();
+        summary.append("Collection plan for ").append(image).append('\n');
+        summary.append(String.format(Locale.ROOT, "  Files:                %d, %d directories%n", getFileCount(), files.size() - getFileCount()));
+        summary.append(String.format(Locale.ROOT, "  Total size:           %d bytes (%s)%n", getTotalBytes(), megabytes(getTotalBytes())));
+        summary.append(String.format(Locale.ROOT, "  Directory listings:   %d%n", getListingCount()));
+        if (forensicWaitNanos > 0) {
+            summary.append(String.format(Locale.ROOT, "  Forensic processing:  %s%n", seconds(forensicWaitNanos)));
+        }
+        long sampledBytes = samples.stream().mapToLong(Sample::bytes).sum();
+        long sampledNanos = samples.stream().mapToLong(Sample::nanos).sum();
+        if (sampledNanos > 0) {
+            summary.append(String.format(Locale.ROOT, "  Read throughput:      %s/s over %d sampled files%n",
+                    megabytes((long) (sampledBytes * 1e9 / sampledNanos)), samples.size()));
+        }
+        summary.append(String.format(Locale.ROOT, "  Estimated time:       %s with %d reader threads%n", seconds(getEstimatedNanos()), readerThreads));
+
+        summary.append("\n  Files      Bytes          Listings   Time ms    Rule\n");
+        for (RuleCost cost : rules) {
+            summary.append(String.format(Locale.ROOT, "  %-10d %-14d %-10d %-10d %s%n",
+                    cost.files(), cost.bytes(), cost.listings(), cost.nanos() / 1_000_000, cost.rule().path()));
+        }
+        return summary.toString();
+    }
+
+    /**
+     * Returns the planned entries as CSV, in the order they would be
+     * collected without a deadline.
+     */
+    public byte[] toCsv() {
+        StringBuilder csv = new StringBuilder("vfs_path,archive_path,type,size,priority,rule\n");
+        for (PlannedFile file : files) {
+            CollectionItem item = file.item();
+            csv.append(Manifest.quote(item.vfsPath())).append(',')
+                    .append(Manifest.quote(item.zipPath())).append(',')
+                    .append(item.isFile() ? "file" : "directory").append(',')
+                    .append(item.isFile() ? String.valueOf(item.size()) : "").append(',')
+                    .append(file.rule().priority()).append(',')
+                    .append(Manifest.quote(file.rule().path())).append('\n');
+        }
+        return csv.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static String megabytes(long bytes) {
+        return String.format(Locale.ROOT, "%.1f MB", bytes / (1024.0 * 1024.0));
+    }
+
+    private static String seconds(long nanos) {
+        return String.format(Locale.ROOT, "%.1f s", nanos / 1e9);
+    }
+
+    private record PlannedFile(CollectionItem item, CollectionRule rule) {
+
+    }
+
+    private record RuleCost(CollectionRule rule, long files, long bytes, long listings, long nanos) {
+
+    }
+
+    private record Sample(long bytes, long nanos) {
+
+    }
+}
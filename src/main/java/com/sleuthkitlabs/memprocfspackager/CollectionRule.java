@@ -0,0 +1,86 @@
+/*
+ * memprocfs_packager
+ * 
+ * Copyright (C) 2024  Sleuth Kit Labs
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.sleuthkitlabs.memprocfspackager;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A single line of files_to_collect.txt, a VFS path that may contain the
+ * wildcards *, ? and **.
+ *
+ * @param path     the VFS path pattern, for example \pid\*\token\sid-all.txt
+ * @param priority priority of the section the rule is in, lower numbers are
+ *                 collected first in triage mode
+ */
+record CollectionRule(String path, int priority) {
+
+    // Rules in sections without a priority are collected last
+    static final int DEFAULT_PRIORITY = 100;
+
+    CollectionRule(String path) {
+        this(path, DEFAULT_PRIORITY);
+    }
+
+    /**
+     * Returns true if the rule can match files below \forensic\, which are
+     * only complete once MemProcFS forensic processing has finished.
+     */
+    boolean dependsOnForensic() {
+        List<String> segments = segments();
+        if (segments.isEmpty()) {
+            return false;
+        }
+        String first = segments.get(0);
+        return "forensic".equalsIgnoreCase(first) || GlobTrie.containsWildcard(first);
+    }
+
+    /**
+     * Returns true if the rule starts in \pid\ or \name\, which have a
+     * directory per process.
+     */
+    boolean isPerProcess() {
+        List<String> segments = segments();
+        return !segments.isEmpty() && ("pid".equalsIgnoreCase(segments.get(0)) || "name".equalsIgnoreCase(segments.get(0)));
+    }
+
+    /**
+     * Splits the path into its segments, dropping the leading separator. A
+     * trailing ** collects everything below the directory, which is the same
+     * as **\*.
+     */
+    List<String> segments() {
+        List<String> segments = new ArrayList<>();
+        for (String segment : path.split("\\\\")) {
+            if (segment.isEmpty()) {
+                continue;
+            }
+            // Consecutive ** segments match the same as a single one
+            if ("**".equals(segment) && !segments.isEmpty() && "**".equals(segments.get(segments.size() - 1))) {
+                continue;
+            }
+            segments.add(segment);
+        }
+
+        if (!segments.isEmpty() && "**".equals(segments.get(segments.size() - 1))) {
+            segments.add("*");
+        }
+        return segments;
+    }
+}
@@ -0,0 +1,72 @@
+/*
+ * memprocfs_packager
+ * 
+ * Copyright (C) 2024  Sleuth Kit Labs
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.sleuthkitlabs.memprocfspackager;
+
+import java.io.ByteArrayOutputStream;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+
+/**
+ * Entry content that has already been compressed, ready to be copied into an
+ * archive as is.
+ *
+ * @param data   the raw DEFLATE stream, or the content itself when stored
+ * @param method ZipEntry.DEFLATED or ZipEntry.STORED
+ * @param crc    CRC-32 of the uncompressed content
+ * @param size   size of the uncompressed content
+ */
+record CompressedContent(byte[] data, int method, long crc, long size) {
+
+    /**
+     * Compresses the content with the given DEFLATE level. A level of
+     * {@link CompressionPolicy#STORED} keeps the content uncompressed. The
+     * content is also stored when deflating does not make it smaller.
+     */
+    static CompressedContent compress(byte[] content, int level) {
+        CRC32 crc32 = new CRC32();
+        crc32.update(content);
+        long crc = crc32.getValue();
+
+        if (level == CompressionPolicy.STORED || content.length == 0) {
+            return new CompressedContent(content, ZipEntry.STORED, crc, content.length);
+        }
+
+        // nowrap produces the raw DEFLATE stream expected inside a ZIP entry
+        Deflater deflater = new Deflater(level, true);
+        try {
+            deflater.setInput(content);
+            deflater.finish();
+
+            ByteArrayOutputStream compressed = new ByteArrayOutputStream(Math.max(64, content.length / 4));
+            byte[] buffer = new byte[64 * 1024];
+            while (!deflater.finished()) {
+                int count = deflater.deflate(buffer);
+                compressed.write(buffer, 0, count);
+            }
+
+            if (compressed.size() >= content.length) {
+                return new CompressedContent(content, ZipEntry.STORED, crc, content.length);
+            }
+            return new CompressedContent(compressed.toByteArray(), ZipEntry.DEFLATED, crc, content.length);
+        } finally {
+            deflater.end();
+        }
+    }
+}
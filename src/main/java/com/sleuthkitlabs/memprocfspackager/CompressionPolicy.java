@@ -0,0 +1,105 @@
+/*
+ * memprocfs_packager
+ * 
+ * Copyright (C) 2024  Sleuth Kit Labs
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.sleuthkitlabs.memprocfspackager;
+
+import java.util.Locale;
+import java.util.Set;
+import java.util.zip.Deflater;
+
+/**
+ * Decides how each archive entry is compressed.
+ *
+ * AUTO picks per entry based on size and extension, the other values apply
+ * the same setting to every entry.
+ */
+public enum CompressionPolicy {
+    AUTO,
+    STORE,
+    FAST,
+    DEFAULT,
+    BEST;
+
+    /**
+     * Returned by {@link #levelFor} when the entry should be stored without
+     * compression.
+     */
+    static final int STORED = -1;
+
+    // Same as Deflater.DEFAULT_COMPRESSION, spelled out so it can not be confused with STORED
+    static final int DEFAULT_LEVEL = 6;
+
+    // Entries below this size gain little from compression and are stored
+    static final long SMALL_ENTRY_SIZE = 4 * 1024;
+
+    // Entries above this size are compressed with the fastest level so a single entry does not dominate the run
+    static final long LARGE_ENTRY_SIZE = 256L * 1024 * 1024;
+
+    // Content that is already compressed, deflating it again only costs CPU
+    private static final Set<String> COMPRESSED_EXTENSIONS = Set.of(
+            "zip", "gz", "tgz", "bz2", "xz", "7z", "rar", "cab", "jar", "zst",
+            "docx", "xlsx", "pptx", "jpg", "jpeg", "png", "gif", "mp3", "mp4");
+
+    // Text output from MemProcFS compresses well and is worth the default level
+    private static final Set<String> TEXT_EXTENSIONS = Set.of(
+            "txt", "csv", "json", "xml", "log", "html", "htm", "ini", "reg");
+
+    /**
+     * Returns the DEFLATE level to use for an entry, or {@link #STORED}.
+     */
+    int levelFor(String name, long size) {
+        switch (this) {
+            case STORE:
+                return STORED;
+            case FAST:
+                return Deflater.BEST_SPEED;
+            case DEFAULT:
+                return DEFAULT_LEVEL;
+            case BEST:
+                return Deflater.BEST_COMPRESSION;
+            default:
+                break;
+        }
+
+        String extension = getExtension(name);
+        if (size < SMALL_ENTRY_SIZE || COMPRESSED_EXTENSIONS.contains(extension)) {
+            return STORED;
+        }
+        if (size >= LARGE_ENTRY_SIZE || !TEXT_EXTENSIONS.contains(extension)) {
+            return Deflater.BEST_SPEED;
+        }
+        return DEFAULT_LEVEL;
+    }
+
+    public static CompressionPolicy fromString(String value) {
+        try {
+            return valueOf(value.trim().toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException ex) {
+            throw new IllegalArgumentException("Unknown compression policy: " + value);
+        }
+    }
+
+    private static String getExtension(String name) {
+        int slash = name.lastIndexOf('/');
+        int dot = name.lastIndexOf('.');
+        if (dot <= slash + 1) {
+            return "";
+        }
+        return name.substring(dot + 1).toLowerCase(Locale.ROOT);
+    }
+}
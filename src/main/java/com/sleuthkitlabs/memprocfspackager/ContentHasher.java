@@ -0,0 +1,134 @@
+/*
+ * memprocfs_packager
+ * 
+ * Copyright (C) 2024  Sleuth Kit Labs
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.sleuthkitlabs.memprocfspackager;
+
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+
+/**
+ * Computes the hashes recorded in the package manifest while the content of
+ * an entry passes through, so the package never has to be read a second
+ * time to hash it.
+ */
+class ContentHasher {
+
+    private final MessageDigest sha256;
+
+    // Null unless MD5 hashes were requested
+    private final MessageDigest md5;
+
+    private long size = 0;
+
+    ContentHasher(boolean includeMd5) {
+        this.sha256 = digest("SHA-256");
+        this.md5 = includeMd5 ? digest("MD5") : null;
+    }
+
+    static Hashes hash(byte[] content, boolean includeMd5) {
+        ContentHasher hasher = new ContentHasher(includeMd5);
+        hasher.update(content, 0, content.length);
+        return hasher.finish();
+    }
+
+    void update(byte[] b, int off, int len) {
+        sha256.update(b, off, len);
+        if (md5 != null) {
+            md5.update(b, off, len);
+        }
+        size += len;
+    }
+
+    Hashes finish() {
+        HexFormat hex = HexFormat.of();
+        return new Hashes(hex.formatHex(sha256.digest()), md5 != null ? hex.formatHex(md5.digest()) : "", size);
+    }
+
+    /**
+     * Returns a stream that hashes everything read through it.
+     */
+    InputStream wrap(InputStream inputStream) {
+        return new FilterInputStream(inputStream) {
+            @Override
+            public int read() throws IOException {
+                int value = super.read();
+                if (value >= 0) {
+                    update(new byte[]{(byte) value}, 0, 1);
+                }
+                return value;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                int count = super.read(b, off, len);
+                if (count > 0) {
+                    update(b, off, count);
+                }
+                return count;
+            }
+
+            @Override
+            public long skip(long n) throws IOException {
+                // Skipped bytes would be missing from the hash
+                return 0;
+            }
+        };
+    }
+
+    /**
+     * Returns a stream that hashes everything written through it.
+     */
+    OutputStream wrap(OutputStream outputStream) {
+        return new FilterOutputStream(outputStream) {
+            @Override
+            public void write(int b) throws IOException {
+                update(new byte[]{(byte) b}, 0, 1);
+                out.write(b);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                update(b, off, len);
+                out.write(b, off, len);
+            }
+        };
+    }
+
+    private static MessageDigest digest(String algorithm) {
+        try {
+            return MessageDigest.getInstance(algorithm);
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    /**
+     * @param sha256 hex encoded SHA-256 of the content
+     * @param md5    hex encoded MD5 of the content, empty if not requested
+     * @param size   number of bytes hashed
+     */
+    record Hashes(String sha256, String md5, long size) {
+
+    }
+}
@@ -0,0 +1,71 @@
+/*
+ * memprocfs_packager
+ * 
+ * Copyright (C) 2024  Sleuth Kit Labs
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.sleuthkitlabs.memprocfspackager;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A point in time after which work should stop, measured on the monotonic
+ * System.nanoTime() clock.
+ */
+final class Deadline {
+
+    // Never expires
+    static final Deadline NONE = new Deadline(0, false);
+
+    private final long nanoTime;
+    private final boolean set;
+
+    private Deadline(long nanoTime, boolean set) {
+        this.nanoTime = nanoTime;
+        this.set = set;
+    }
+
+    /**
+     * Returns a deadline the given number of milliseconds from now, or
+     * {@link #NONE} if it is not positive.
+     */
+    static Deadline afterMillis(long millis) {
+        return millis > 0 ? new Deadline(System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(millis), true) : NONE;
+    }
+
+    boolean isSet() {
+        return set;
+    }
+
+    boolean isExpired() {
+        return set && System.nanoTime() - nanoTime >= 0;
+    }
+
+    // Long.MAX_VALUE when not set
+    long remainingNanos() {
+        return set ? Math.max(nanoTime - System.nanoTime(), 0) : Long.MAX_VALUE;
+    }
+
+    // The earlier of both deadlines
+    Deadline min(Deadline other) {
+        if (!other.set) {
+            return this;
+        }
+        if (!set) {
+            return other;
+        }
+        return nanoTime - other.nanoTime <= 0 ? this : other;
+    }
+}
@@ -0,0 +1,100 @@
+/*
+ * memprocfs_packager
+ * 
+ * Copyright (C) 2024  Sleuth Kit Labs
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.sleuthkitlabs.memprocfspackager;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Content-addressed deduplication of the files in a package.
+ *
+ * Files are identified by the SHA-256 of their content. The first file with
+ * a given content is stored as usual, later files with the same content are
+ * not compressed or stored again. They are written as hard links where the
+ * archive format supports them, and listed in an index entry otherwise.
+ */
+class DedupIndex {
+
+    static final String INDEX_NAME = "dedup_index.csv";
+
+    // Content claimed by the file that stores it, used from the compression threads
+    private final Set<String> claimed = ConcurrentHashMap.newKeySet();
+
+    // Only accessed from the writer thread of the CollectionEngine
+    private final Map<String, CollectionItem> written = new HashMap<>();
+    private final List<Reference> references = new ArrayList<>();
+
+    /**
+     * Claims the content for the calling file. Returns false if another file
+     * with the same content has claimed it already.
+     */
+    boolean claim(String sha256) {
+        return claimed.add(sha256);
+    }
+
+    /**
+     * Records the file that stores the content, once it has been written.
+     */
+    void recordOriginal(String sha256, CollectionItem item) {
+        written.putIfAbsent(sha256, item);
+    }
+
+    /**
+     * Returns the file that stores the content, or null if it has not been
+     * written yet.
+     */
+    CollectionItem original(String sha256) {
+        return written.get(sha256);
+    }
+
+    void addReference(CollectionItem duplicate, CollectionItem original, ContentHasher.Hashes hashes) {
+        references.add(new Reference(duplicate.zipPath(), original.zipPath(), hashes));
+    }
+
+    boolean isEmpty() {
+        return references.isEmpty();
+    }
+
+    /**
+     * Returns the index as CSV, one row per file that is not stored itself.
+     */
+    byte[] toCsv() {
+        StringBuilder csv = new StringBuilder("archive_path,stored_as,size,sha256\n");
+
+        List<Reference> sorted = new ArrayList<>(references);
+        sorted.sort(Comparator.comparing(Reference::zipPath));
+        for (Reference reference : sorted) {
+            csv.append(Manifest.quote(reference.zipPath())).append(',')
+                    .append(Manifest.quote(reference.originalZipPath())).append(',')
+                    .append(reference.hashes().size()).append(',')
+                    .append(reference.hashes().sha256()).append('\n');
+        }
+        return csv.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    private record Reference(String zipPath, String originalZipPath, ContentHasher.Hashes hashes) {
+
+    }
+}
@@ -0,0 +1,63 @@
+/*
+ * memprocfs_packager
+ * 
+ * Copyright (C) 2024  Sleuth Kit Labs
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.sleuthkitlabs.memprocfspackager;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+/**
+ * JFR event for a file written to the package. The event duration covers
+ * writing the entry, reading and compressing happen earlier on other threads
+ * and are recorded as separate fields.
+ */
+@Name("com.sleuthkitlabs.memprocfspackager.FileCollected")
+@Label("File Collected")
+@Category("MemProcFS Packager")
+@Description("A file read from the VFS and written to the package")
+@StackTrace(false)
+class FileCollectedEvent extends jdk.jfr.Event {
+
+    @Label("VFS Path")
+    String vfsPath;
+
+    @Label("Size")
+    @DataAmount
+    long size;
+
+    @Label("Stored Size")
+    @DataAmount
+    long storedSize;
+
+    @Label("Read Time")
+    @Timespan
+    long readNanos;
+
+    @Label("Compress Time")
+    @Timespan
+    long compressNanos;
+
+    @Label("Streamed")
+    @Description("Streamed from the VFS by the writer instead of being buffered")
+    boolean streamed;
+}
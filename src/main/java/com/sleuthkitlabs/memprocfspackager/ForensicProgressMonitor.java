@@ -0,0 +1,171 @@
+/*
+ * memprocfs_packager
+ * 
+ * Copyright (C) 2024  Sleuth Kit Labs
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.sleuthkitlabs.memprocfspackager;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import vmm.entry.Vmm_VfsListEntry;
+
+/**
+ * Polls \forensic\progress_percent.txt until MemProcFS forensic processing is
+ * complete.
+ *
+ * The poll interval adapts to the progress: it starts short, is reset to the
+ * minimum whenever the progress changes and backs off while it does not.
+ * Callers that start waiting trigger an immediate poll, so completion is
+ * noticed without waiting out the current interval.
+ */
+class ForensicProgressMonitor {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(ForensicProgressMonitor.class);
+
+    private static final String PROGRESS_FILE = "progress_percent.txt";
+
+    static final long MIN_POLL_INTERVAL_MILLIS = 100;
+
+    static final long MAX_POLL_INTERVAL_MILLIS = 2000;
+
+    private final VfsSource source;
+    private final VfsListingCache listingCache;
+    private final CountDownLatch latch = new CountDownLatch(1);
+    private final ScheduledExecutorService scheduler;
+
+    // Only accessed from the scheduler thread
+    private String lastProgress = "";
+    private long pollIntervalMillis = MIN_POLL_INTERVAL_MILLIS;
+
+    private volatile String error;
+
+    ForensicProgressMonitor(VfsSource source, VfsListingCache listingCache) {
+        this.source = source;
+        this.listingCache = listingCache;
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "forensic-progress");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Returns true if the VFS reports forensic progress. Trees extracted from
+     * MemProcFS can have the forensic results without it.
+     */
+    static boolean hasProgress(VfsListingCache listingCache) {
+        return listingCache.list(VfsListingCache.FORENSIC_PATH).containsKey(PROGRESS_FILE);
+    }
+
+    void start() {
+        scheduler.execute(this::poll);
+    }
+
+    /**
+     * Blocks until forensic processing is complete.
+     *
+     * @throws IOException if the progress could not be read
+     */
+    void awaitComplete() throws IOException, InterruptedException {
+        awaitComplete(Long.MAX_VALUE);
+    }
+
+    /**
+     * Blocks until forensic processing is complete or the timeout expires.
+     * Polling stops either way.
+     *
+     * @return false if forensic processing was not complete in time
+     * @throws IOException if the progress could not be read
+     */
+    boolean awaitComplete(long timeoutNanos) throws IOException, InterruptedException {
+        if (latch.getCount() > 0) {
+            // Check right away instead of waiting for the current interval to expire
+            scheduler.execute(this::pollOnce);
+        }
+        boolean complete = latch.await(timeoutNanos, TimeUnit.NANOSECONDS);
+        scheduler.shutdownNow();
+
+        if (error != null) {
+            throw new IOException(error);
+        }
+        return complete;
+    }
+
+    private void poll() {
+        if (!pollOnce()) {
+            return;
+        }
+        scheduler.schedule(this::poll, pollIntervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    // Returns true if another poll is needed
+    private boolean pollOnce() {
+        if (latch.getCount() == 0) {
+            return false;
+        }
+
+        try {
+            Vmm_VfsListEntry fileListEntry = listingCache.list(VfsListingCache.FORENSIC_PATH).get(PROGRESS_FILE);
+            if (fileListEntry == null) {
+                fail("File not found: " + VfsListingCache.FORENSIC_PATH + PROGRESS_FILE);
+                return false;
+            }
+
+            String progress;
+            try (InputStream inputStream = source.open(VfsListingCache.FORENSIC_PATH + PROGRESS_FILE, fileListEntry.size, Deadline.NONE);
+                    BufferedReader reader = new BufferedReader(new InputStreamReader(inputStream))) {
+                progress = reader.lines().collect(Collectors.joining("\n")).trim();
+            }
+
+            if ("100".equals(progress)) {
+                System.out.println("MemProcFS forensic processing complete: " + progress + "%");
+                latch.countDown();
+                return false;
+            }
+
+            // Output percent complete if has changed since last reported
+            if (!lastProgress.equals(progress)) {
+                lastProgress = progress;
+                pollIntervalMillis = MIN_POLL_INTERVAL_MILLIS;
+                System.out.println("Waiting for MemProcFS forensic processing to complete: " + progress + "%");
+            } else {
+                pollIntervalMillis = Math.min(pollIntervalMillis * 2, MAX_POLL_INTERVAL_MILLIS);
+            }
+            return true;
+        } catch (Throwable ex) {
+            LOGGER.error("Error checking progress", ex);
+            fail("Error checking progress: " + ex.getMessage());
+            return false;
+        }
+    }
+
+    private void fail(String message) {
+        LOGGER.error(message);
+        error = message;
+        latch.countDown();
+    }
+}
@@ -0,0 +1,398 @@
+/*
+ * memprocfs_packager
+ * 
+ * Copyright (C) 2024  Sleuth Kit Labs
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.sleuthkitlabs.memprocfspackager;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HexFormat;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * On-disk cache of forensic results, keyed by a fingerprint of the image.
+ *
+ * MemProcFS rebuilds its forensic database from scratch on every start and
+ * can not load one from an earlier run, so the cache keeps the files that
+ * the \forensic\ rules collected instead. A later run on the same image,
+ * with the same YARA rules and no new \forensic\ rules, serves those rules
+ * from the cache and starts MemProcFS without forensic mode at all.
+ *
+ * Each cache entry is a directory named after the fingerprint. It holds the
+ * collected files under their archive paths and a rules file listing the
+ * \forensic\ rules it covers. Entries are evicted least recently used first
+ * once the cache grows beyond its size limit.
+ */
+class ForensicResultCache {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(ForensicResultCache.class);
+
+    // Bump when the cache layout or the fingerprint changes, so old entries are no longer matched
+    private static final String FORMAT_VERSION = "1";
+
+    private static final String RULES_FILE_NAME = "rules.txt";
+
+    private static final String FILES_DIRECTORY_NAME = "files";
+
+    private static final int SAMPLE_COUNT = 64;
+
+    private static final int SAMPLE_SIZE = 64 * 1024;
+
+    private final Path cacheDirectory;
+    private final long maxBytes;
+
+    ForensicResultCache(Path cacheDirectory, long maxBytes) {
+        this.cacheDirectory = cacheDirectory;
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Computes a fingerprint of the image from its size, its modification
+     * time and evenly spaced sample blocks, together with the YARA rules and
+     * the additional MemProcFS options that change the forensic output. This
+     * is much faster than hashing the whole image and changes whenever the
+     * image does in practice.
+     */
+    static String fingerprint(Path image, String yaraRulesPath, List<String> additionalOptions) throws IOException {
+        MessageDigest digest = sha256();
+        digest.update(FORMAT_VERSION.getBytes(StandardCharsets.UTF_8));
+
+        long size = Files.size(image);
+        digest.update(ByteBuffer.allocate(16)
+                .putLong(size)
+                .putLong(Files.getLastModifiedTime(image).toMillis())
+                .flip());
+
+        try (FileChannel channel = FileChannel.open(image, StandardOpenOption.READ)) {
+            ByteBuffer sample = ByteBuffer.allocate(SAMPLE_SIZE);
+            long stride = Math.max(SAMPLE_SIZE, size / SAMPLE_COUNT);
+            for (long position = 0; position < size; position += stride) {
+                readSample(channel, sample, position);
+                digest.update(sample);
+            }
+            // Always include the end of the image
+            readSample(channel, sample, Math.max(0, size - SAMPLE_SIZE));
+            digest.update(sample);
+        }
+
+        if (yaraRulesPath != null && !yaraRulesPath.isBlank()) {
+            digest.update(Files.readAllBytes(Path.of(yaraRulesPath)));
+        }
+
+        if (additionalOptions != null) {
+            digest.update(String.join("\n", additionalOptions).getBytes(StandardCharsets.UTF_8));
+        }
+
+        return HexFormat.of().formatHex(digest.digest());
+    }
+
+    /**
+     * Returns the directory holding the cached files for the fingerprint, or
+     * null if there is no entry covering all the given rules.
+     */
+    Path lookup(String fingerprint, List<CollectionRule> rules) {
+        Path entry = cacheDirectory.resolve(fingerprint);
+        Path rulesFile = entry.resolve(RULES_FILE_NAME);
+        if (!Files.isRegularFile(rulesFile)) {
+            return null;
+        }
+
+        try {
+            List<String> cachedRules = Files.readAllLines(rulesFile, StandardCharsets.UTF_8);
+            for (CollectionRule rule : rules) {
+                if (!cachedRules.contains(rule.path())) {
+                    LOGGER.info("Forensic cache entry " + fingerprint + " does not cover rule " + rule.path());
+                    return null;
+                }
+            }
+            // The rules file modification time records the last use for eviction
+            Files.setLastModifiedTime(rulesFile, FileTime.fromMillis(System.currentTimeMillis()));
+        } catch (IOException ex) {
+            LOGGER.warn("Error reading forensic cache entry " + entry, ex);
+            return null;
+        }
+
+        return entry.resolve(FILES_DIRECTORY_NAME);
+    }
+
+    /**
+     * Starts a new entry for the fingerprint. The entry only replaces an
+     * existing one when it is committed.
+     */
+    EntryWriter newEntry(String fingerprint, List<CollectionRule> rules) throws IOException {
+        Files.createDirectories(cacheDirectory);
+        Path temporaryDirectory = Files.createTempDirectory(cacheDirectory, fingerprint + ".tmp");
+        return new EntryWriter(fingerprint, rules, temporaryDirectory);
+    }
+
+    /**
+     * Deletes the least recently used entries until the cache fits its size
+     * limit. The entry for the given fingerprint is kept.
+     */
+    void evict(String keepFingerprint) {
+        List<Path> entries;
+        try (Stream<Path> children = Files.list(cacheDirectory)) {
+            entries = children.filter(path -> Files.isRegularFile(path.resolve(RULES_FILE_NAME))).collect(Collectors.toList());
+        } catch (IOException ex) {
+            LOGGER.warn("Error listing forensic cache " + cacheDirectory, ex);
+            return;
+        }
+
+        Map<Path, Long> sizes = new LinkedHashMap<>();
+        long totalSize = 0;
+        for (Path entry : entries) {
+            long size = directorySize(entry);
+            sizes.put(entry, size);
+            totalSize += size;
+        }
+
+        entries.sort(Comparator.comparingLong(ForensicResultCache::lastUsed));
+        for (Path entry : entries) {
+            if (totalSize <= maxBytes) {
+                break;
+            }
+            if (entry.getFileName().toString().equals(keepFingerprint)) {
+                continue;
+            }
+            LOGGER.info("Evicting forensic cache entry " + entry);
+            deleteRecursively(entry);
+            totalSize -= sizes.get(entry);
+        }
+    }
+
+    private static long lastUsed(Path entry) {
+        try {
+            return Files.getLastModifiedTime(entry.resolve(RULES_FILE_NAME)).toMillis();
+        } catch (IOException ex) {
+            return 0;
+        }
+    }
+
+    private static long directorySize(Path directory) {
+        try (Stream<Path> files = Files.walk(directory)) {
+            return files.filter(Files::isRegularFile).mapToLong(path -> path.toFile().length()).sum();
+        } catch (IOException ex) {
+            return 0;
+        }
+    }
+
+    private static void deleteRecursively(Path directory) {
+        try (Stream<Path> files = Files.walk(directory)) {
+            for (Path path : files.sorted(Comparator.reverseOrder()).collect(Collectors.toList())) {
+                Files.deleteIfExists(path);
+            }
+        } catch (IOException ex) {
+            LOGGER.warn("Error deleting " + directory, ex);
+        }
+    }
+
+    private static void readSample(FileChannel channel, ByteBuffer sample, long position) throws IOException {
+        sample.clear();
+        while (sample.hasRemaining()) {
+            int count = channel.read(sample, position + sample.position());
+            if (count < 0) {
+                break;
+            }
+        }
+        sample.flip();
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    /**
+     * Writes the files of a new cache entry as they are collected. Used from
+     * the reader threads and the writer thread of the CollectionEngine.
+     *
+     * Errors writing to the cache never fail the collection, they only mark
+     * the entry as incomplete so that it is not committed.
+     */
+    class EntryWriter {
+
+        private final String fingerprint;
+        private final List<CollectionRule> rules;
+        private final Path temporaryDirectory;
+        private final Path filesDirectory;
+
+        private volatile boolean incomplete = false;
+
+        private EntryWriter(String fingerprint, List<CollectionRule> rules, Path temporaryDirectory) {
+            this.fingerprint = fingerprint;
+            this.rules = rules;
+            this.temporaryDirectory = temporaryDirectory;
+            this.filesDirectory = temporaryDirectory.resolve(FILES_DIRECTORY_NAME);
+        }
+
+        // Only the results of forensic processing are cached
+        boolean accepts(CollectionItem item) {
+            return item.vfsPath().startsWith(VfsListingCache.FORENSIC_PATH);
+        }
+
+        void write(CollectionItem item, byte[] content) {
+            try {
+                Path path = createParent(item);
+                Files.write(path, content);
+            } catch (IOException ex) {
+                fail(item, ex);
+            }
+        }
+
+        void writeDirectory(CollectionItem item) {
+            try {
+                Files.createDirectories(MountedVfsSource.resolve(filesDirectory, item.vfsPath()));
+            } catch (IOException ex) {
+                fail(item, ex);
+            }
+        }
+
+        /**
+         * Returns a stream that copies everything read from the given stream
+         * into the cache entry as well.
+         */
+        InputStream tee(CollectionItem item, InputStream inputStream) {
+            OutputStream copy;
+            try {
+                copy = Files.newOutputStream(createParent(item));
+            } catch (IOException ex) {
+                fail(item, ex);
+                return inputStream;
+            }
+
+            return new FilterInputStream(inputStream) {
+                private boolean copying = true;
+
+                @Override
+                public int read() throws IOException {
+                    int value = super.read();
+                    if (value >= 0) {
+                        copy(new byte[]{(byte) value}, 0, 1);
+                    }
+                    return value;
+                }
+
+                @Override
+                public int read(byte[] b, int off, int len) throws IOException {
+                    int count = super.read(b, off, len);
+                    if (count > 0) {
+                        copy(b, off, count);
+                    }
+                    return count;
+                }
+
+                @Override
+                public void close() throws IOException {
+                    try {
+                        super.close();
+                    } finally {
+                        try {
+                            copy.close();
+                        } catch (IOException ex) {
+                            fail(item, ex);
+                        }
+                    }
+                }
+
+                private void copy(byte[] b, int off, int len) {
+                    if (!copying) {
+                        return;
+                    }
+                    try {
+                        copy.write(b, off, len);
+                    } catch (IOException ex) {
+                        copying = false;
+                        fail(item, ex);
+                    }
+                }
+            };
+        }
+
+        /**
+         * Marks the entry as incomplete, for example because a file could not
+         * be read from the VFS.
+         */
+        void fail(CollectionItem item, Exception ex) {
+            if (!incomplete) {
+                LOGGER.warn("Forensic results will not be cached, error with " + item.vfsPath() + ": " + ex.getMessage());
+            }
+            incomplete = true;
+        }
+
+        /**
+         * Replaces any existing entry for the fingerprint with this one and
+         * evicts old entries if the cache is over its size limit. An
+         * incomplete entry is discarded instead.
+         */
+        void commit() throws IOException {
+            if (incomplete) {
+                abort();
+                return;
+            }
+
+            List<String> rulePaths = new ArrayList<>();
+            for (CollectionRule rule : rules) {
+                rulePaths.add(rule.path());
+            }
+            Files.createDirectories(filesDirectory);
+            Files.write(temporaryDirectory.resolve(RULES_FILE_NAME), rulePaths, StandardCharsets.UTF_8);
+
+            Path entry = cacheDirectory.resolve(fingerprint);
+            if (Files.exists(entry)) {
+                deleteRecursively(entry);
+            }
+            Files.move(temporaryDirectory, entry, StandardCopyOption.ATOMIC_MOVE);
+            LOGGER.info("Stored forensic results in cache entry " + entry);
+
+            evict(fingerprint);
+        }
+
+        void abort() {
+            deleteRecursively(temporaryDirectory);
+        }
+
+        private Path createParent(CollectionItem item) throws IOException {
+            Path path = MountedVfsSource.resolve(filesDirectory, item.vfsPath());
+            Files.createDirectories(path.getParent());
+            return path;
+        }
+    }
+}
@@ -0,0 +1,416 @@
+/*
+ * memprocfs_packager
+ * 
+ * Copyright (C) 2024  Sleuth Kit Labs
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.sleuthkitlabs.memprocfspackager;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+import java.util.regex.Pattern;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import vmm.entry.Vmm_VfsListEntry;
+
+/**
+ * All collection rules compiled into a single prefix trie of path segments.
+ *
+ * The trie is resolved against the VFS in one depth-first pass. Every
+ * directory is visited at most once with the set of trie nodes that are still
+ * active there, and subtrees that no rule can match are never listed.
+ * Directories that are only passed through by literal path segments are not
+ * listed either, the walk descends into them directly.
+ *
+ * With a fork/join pool the directories are listed concurrently, which pays
+ * off for ** rules over large registry trees. Matches are still reported in
+ * the order of the sequential walk.
+ */
+class GlobTrie {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(GlobTrie.class);
+
+    // Directories listed ahead per walk thread, further ones are listed by the calling thread when it gets there
+    static final int PENDING_DIRECTORIES_PER_THREAD = 1024;
+
+    private final Node root = new Node("");
+
+    private GlobTrie() {
+    }
+
+    static GlobTrie compile(List<CollectionRule> rules) {
+        GlobTrie trie = new GlobTrie();
+        for (CollectionRule rule : rules) {
+            Node node = trie.root;
+            for (String segment : rule.segments()) {
+                node = node.child(segment);
+            }
+            if (node != trie.root) {
+                node.terminal = true;
+            }
+        }
+        return trie;
+    }
+
+    /**
+     * Walks the VFS and reports every entry matched by a rule, together with
+     * the path of its parent directory. Each entry is reported once, even if
+     * several rules match it.
+     *
+     * @param lister returns the entries of a directory by name, usually
+     *               {@link VfsListingCache#list}
+     */
+    void walk(Function<String, Map<String, Vmm_VfsListEntry>> lister, BiConsumer<String, Vmm_VfsListEntry> matchHandler) {
+        // An explicit stack keeps deep registry trees from overflowing the call stack
+        Deque<Visit> stack = new ArrayDeque<>();
+        stack.push(new Visit("\\", closure(Set.of(root))));
+
+        while (!stack.isEmpty()) {
+            Visit visit = stack.pop();
+            List<Visit> next = visitDirectory(visit, lister, matchHandler);
+
+            // Push in reverse so the subdirectories are visited in listing order
+            for (int i = next.size() - 1; i >= 0; i--) {
+                stack.push(next.get(i));
+            }
+        }
+    }
+
+    /**
+     * Same as {@link #walk(Function, BiConsumer)}, with the directories
+     * listed in the given pool. The lister must be thread safe. Matches are
+     * reported on the calling thread in the same order as the sequential
+     * walk. A null pool walks sequentially.
+     *
+     * Directories up to the given depth are listed ahead by the pool, as
+     * long as fewer than {@link #PENDING_DIRECTORIES_PER_THREAD} per thread
+     * are listed or waiting for the calling thread. This bounds the matches
+     * held back for ordering when the calling thread falls behind.
+     *
+     * @param maxForkDepth directories below this depth are listed by the
+     *                     calling thread, 0 to list everything there
+     */
+    void walk(Function<String, Map<String, Vmm_VfsListEntry>> lister, BiConsumer<String, Vmm_VfsListEntry> matchHandler, ForkJoinPool pool, int maxForkDepth) {
+        if (pool == null || maxForkDepth == 0) {
+            walk(lister, matchHandler);
+            return;
+        }
+
+        // Tasks only list their directory and fork the subdirectories, they never wait for each other,
+        // so neither this thread nor the workers need more stack the deeper the tree goes
+        ParallelWalk walk = new ParallelWalk(lister, pool, maxForkDepth, pool.getParallelism() * PENDING_DIRECTORIES_PER_THREAD);
+        Deque<VisitTask> stack = new ArrayDeque<>();
+        stack.push(new VisitTask(new Visit("\\", closure(Set.of(root))), 0, walk));
+
+        while (!stack.isEmpty()) {
+            VisitTask task = stack.pop();
+            VisitResult result;
+            if (task.forked) {
+                result = task.join();
+                walk.pending.decrementAndGet();
+            } else {
+                result = task.invoke();
+            }
+
+            for (Match match : result.matches()) {
+                matchHandler.accept(match.parentPath(), match.entry());
+            }
+            for (int i = result.subdirectories().size() - 1; i >= 0; i--) {
+                stack.push(result.subdirectories().get(i));
+            }
+            walk.forkAhead(stack);
+        }
+    }
+
+    /**
+     * Creates a pool for {@link #walk(Function, BiConsumer, ForkJoinPool, int)}.
+     */
+    static ForkJoinPool newWalkPool(int parallelism) {
+        return new ForkJoinPool(parallelism, pool -> {
+            ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+            thread.setName("vfs-walk-" + thread.getPoolIndex());
+            return thread;
+        }, null, false);
+    }
+
+    private List<Visit> visitDirectory(Visit visit, Function<String, Map<String, Vmm_VfsListEntry>> lister, BiConsumer<String, Vmm_VfsListEntry> matchHandler) {
+        List<Visit> next = new ArrayList<>();
+
+        if (!needsListing(visit.nodes())) {
+            // Only literal directory names continue from here, descend without listing
+            Map<String, Set<Node>> byName = new LinkedHashMap<>();
+            for (Node node : visit.nodes()) {
+                for (Node child : node.literalChildren.values()) {
+                    byName.computeIfAbsent(child.segment, name -> new LinkedHashSet<>()).add(child);
+                }
+            }
+            for (Map.Entry<String, Set<Node>> entry : byName.entrySet()) {
+                next.add(new Visit(visit.path() + entry.getKey() + "\\", closure(entry.getValue())));
+            }
+            return next;
+        }
+
+        Map<String, Vmm_VfsListEntry> listing = lister.apply(visit.path());
+        for (Vmm_VfsListEntry entry : listing.values()) {
+            Set<Node> matched = new LinkedHashSet<>();
+            boolean collect = false;
+
+            for (Node node : visit.nodes()) {
+                Node literal = node.literalChildren.get(entry.name);
+                if (literal != null) {
+                    matched.add(literal);
+                    collect |= literal.terminal;
+                }
+                for (Node wildcard : node.wildcardChildren) {
+                    if (wildcard.matches(entry.name)) {
+                        matched.add(wildcard);
+                        collect |= wildcard.terminal;
+                    }
+                }
+                // A ** node stays active in every subdirectory
+                if (node.isRecursive() && !entry.isFile) {
+                    matched.add(node);
+                }
+            }
+
+            if (collect) {
+                matchHandler.accept(visit.path(), entry);
+            }
+
+            if (!entry.isFile) {
+                Set<Node> nodes = closure(matched);
+                if (nodes.stream().anyMatch(Node::hasContinuation)) {
+                    next.add(new Visit(visit.path() + entry.name + "\\", nodes));
+                }
+            }
+        }
+
+        // Literal file names of a rule are expected to exist, unlike those below a **
+        for (Node node : visit.nodes()) {
+            if (node.isRecursive()) {
+                continue;
+            }
+            for (Node child : node.literalChildren.values()) {
+                if (child.terminal && !listing.containsKey(child.segment)) {
+                    LOGGER.warn("File not found: " + visit.path() + child.segment);
+                }
+            }
+        }
+        return next;
+    }
+
+    // A listing is needed to match wildcards, to continue a ** walk and to get the size of collected entries
+    private static boolean needsListing(Set<Node> nodes) {
+        for (Node node : nodes) {
+            if (node.isRecursive() || !node.wildcardChildren.isEmpty()) {
+                return true;
+            }
+            for (Node child : node.literalChildren.values()) {
+                if (child.terminal) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    // Adds the ** children of the given nodes, which match zero directories
+    private static Set<Node> closure(Set<Node> nodes) {
+        Set<Node> closure = new LinkedHashSet<>(nodes);
+        for (Node node : nodes) {
+            if (node.recursiveChild != null) {
+                closure.add(node.recursiveChild);
+            }
+        }
+        return closure;
+    }
+
+    static boolean containsWildcard(String segment) {
+        return segment.contains("*") || segment.contains("?");
+    }
+
+    // Converts a wildcard path segment into a regular expression
+    static String wildcardToRegex(String wildcard) {
+        StringBuilder regex = new StringBuilder("^");
+        for (int i = 0; i < wildcard.length(); i++) {
+            char c = wildcard.charAt(i);
+            switch (c) {
+                case '*':
+                    regex.append(".*"); // Segments never contain directory separators
+                    break;
+                case '?':
+                    regex.append('.'); // Match exactly one character
+                    break;
+                default:
+                    regex.append(Pattern.quote(String.valueOf(c)));
+                    break;
+            }
+        }
+        regex.append("$");
+        return regex.toString();
+    }
+
+    private record Visit(String path, Set<Node> nodes) {
+
+    }
+
+    private record Match(String parentPath, Vmm_VfsListEntry entry) {
+
+    }
+
+    private record VisitResult(List<Match> matches, List<VisitTask> subdirectories) {
+
+    }
+
+    // State shared by the tasks of one parallel walk
+    private record ParallelWalk(Function<String, Map<String, Vmm_VfsListEntry>> lister, ForkJoinPool pool, int maxForkDepth, int maxPending, AtomicInteger pending) {
+
+        private ParallelWalk(Function<String, Map<String, Vmm_VfsListEntry>> lister, ForkJoinPool pool, int maxForkDepth, int maxPending) {
+            this(lister, pool, maxForkDepth, maxPending, new AtomicInteger());
+        }
+
+        // Takes a slot for a directory listed ahead, released once the calling thread has its result
+        private boolean reserve() {
+            if (pending.incrementAndGet() <= maxPending) {
+                return true;
+            }
+            pending.decrementAndGet();
+            return false;
+        }
+
+        // Once the slots run short, the ones freed by the calling thread go to the directories next in walk order
+        private void forkAhead(Deque<VisitTask> stack) {
+            int scanned = 0;
+            for (VisitTask task : stack) {
+                if (++scanned > pool.getParallelism() * 2) {
+                    return;
+                }
+                if (!task.forked && task.depth <= maxForkDepth) {
+                    if (!reserve()) {
+                        return;
+                    }
+                    task.forked = true;
+                    pool.execute(task);
+                }
+            }
+        }
+    }
+
+    // Lists one directory and schedules its subdirectories. Tasks are Serializable through ForkJoinTask
+    // but never serialized, so their fields need not be.
+    @SuppressWarnings("serial")
+    private final class VisitTask extends RecursiveTask<VisitResult> {
+
+        private final Visit visit;
+        private final int depth;
+        private final ParallelWalk walk;
+
+        // Set before the parent task completes, so it is visible to whoever joined the parent
+        private boolean forked = false;
+
+        private VisitTask(Visit visit, int depth, ParallelWalk walk) {
+            this.visit = visit;
+            this.depth = depth;
+            this.walk = walk;
+        }
+
+        @Override
+        protected VisitResult compute() {
+            List<Match> matches = new ArrayList<>();
+            List<VisitTask> subdirectories = new ArrayList<>();
+            for (Visit next : visitDirectory(visit, walk.lister(), (parentPath, entry) -> matches.add(new Match(parentPath, entry)))) {
+                VisitTask task = new VisitTask(next, depth + 1, walk);
+                if (task.depth <= walk.maxForkDepth() && walk.reserve()) {
+                    task.forked = true;
+                    if (getPool() == walk.pool()) {
+                        task.fork();
+                    } else {
+                        // Running on the walking thread, fork() would go to the common pool
+                        walk.pool().execute(task);
+                    }
+                }
+                subdirectories.add(task);
+            }
+            return new VisitResult(matches, subdirectories);
+        }
+    }
+
+    private static final class Node {
+
+        private final String segment;
+
+        // Compiled once when the rules are loaded, null for literal segments, ** and *
+        private final Pattern pattern;
+
+        private final Map<String, Node> literalChildren = new LinkedHashMap<>();
+        private final List<Node> wildcardChildren = new ArrayList<>();
+        private Node recursiveChild;
+        private boolean terminal;
+
+        private Node(String segment) {
+            this.segment = segment;
+            this.pattern = containsWildcard(segment) && !"*".equals(segment) && !"**".equals(segment)
+                    ? Pattern.compile(wildcardToRegex(segment))
+                    : null;
+        }
+
+        private Node child(String segment) {
+            if ("**".equals(segment)) {
+                if (recursiveChild == null) {
+                    recursiveChild = new Node(segment);
+                }
+                return recursiveChild;
+            }
+            if (!containsWildcard(segment)) {
+                return literalChildren.computeIfAbsent(segment, Node::new);
+            }
+            for (Node child : wildcardChildren) {
+                if (child.segment.equals(segment)) {
+                    return child;
+                }
+            }
+            Node child = new Node(segment);
+            wildcardChildren.add(child);
+            return child;
+        }
+
+        private boolean isRecursive() {
+            return "**".equals(segment);
+        }
+
+        private boolean matches(String name) {
+            return pattern == null || pattern.matcher(name).matches();
+        }
+
+        // True if rules continue below this node
+        private boolean hasContinuation() {
+            return isRecursive() || recursiveChild != null || !literalChildren.isEmpty() || !wildcardChildren.isEmpty();
+        }
+    }
+}
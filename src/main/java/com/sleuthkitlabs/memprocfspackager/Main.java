@@ -18,12 +18,17 @@
  */
 package com.sleuthkitlabs.memprocfspackager;
 
+import java.io.BufferedOutputStream;
+import java.io.FileDescriptor;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.security.GeneralSecurityException;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Scanner;
@@ -44,19 +49,26 @@ import org.slf4j.LoggerFactory;
 public class Main {
     
     private static final Logger LOGGER = LoggerFactory.getLogger(Main.class);
+
+    // Output path that selects streaming the package to standard output
+    private static final String STDOUT_PATH = "-";
+
+    // Fixed buffer between the archive writer and standard output
+    private static final int STREAM_BUFFER_SIZE = 64 * 1024;
+
+    // Appended to the output file name for the run report side file
+    static final String REPORT_FILE_SUFFIX = ".report.json";
     
     public static void main(String[] args) throws FileNotFoundException, IOException {
         
         Options allOptions = new Options();
         Options visibleOptions = new Options(); // These are displayed in help meny
 
-        Option input = new Option("i", "input", true, "input file path");
-        input.setRequired(true);
+        Option input = new Option("i", "input", true, "input file path, or a directory with a mounted MemProcFS file system or a tree extracted from one");
         allOptions.addOption(input);
         visibleOptions.addOption(input);
 
-        Option output = new Option("o", "output", true, "output file");
-        output.setRequired(true);
+        Option output = new Option("o", "output", true, "output file, or - to write the package to standard output, or the output directory in batch mode");
         allOptions.addOption(output);
         visibleOptions.addOption(output);
 
@@ -72,6 +84,238 @@ public class Main {
         allOptions.addOption(yaraRules);
         visibleOptions.addOption(yaraRules);
 
+        Option rules = new Option("r", "rules", true, "rules file to use instead of the bundled files_to_collect.txt");
+        allOptions.addOption(rules);
+        visibleOptions.addOption(rules);
+
+        Option processFilter = Option.builder()
+            .longOpt("process-filter")
+            .desc("collect the \\pid\\ and \\name\\ directories of the matching processes only, for example name=lsass.exe,svchost.exe;integrity=system; keys are name, pid, ppid, parent and integrity")
+            .hasArg(true)
+            .build();
+        allOptions.addOption(processFilter);
+        visibleOptions.addOption(processFilter);
+
+        Option planOpt = Option.builder()
+            .longOpt("plan")
+            .desc("resolve the rules and estimate the size and duration of a run without collecting anything, the planned files are written as CSV to the output file if one is given")
+            .hasArg(false)
+            .build();
+        allOptions.addOption(planOpt);
+        visibleOptions.addOption(planOpt);
+
+        Option threads = new Option("t", "threads", true, "number of threads reading files from MemProcFS (default " + PackagerSettings.DEFAULT_READER_THREADS + ")");
+        allOptions.addOption(threads);
+        visibleOptions.addOption(threads);
+
+        Option walkThreads = Option.builder()
+            .longOpt("walk-threads")
+            .desc("number of threads listing directories while the rules are resolved (default " + PackagerSettings.DEFAULT_WALK_THREADS + ")")
+            .hasArg(true)
+            .build();
+        allOptions.addOption(walkThreads);
+        visibleOptions.addOption(walkThreads);
+
+        Option walkForkDepth = Option.builder()
+            .longOpt("walk-fork-depth")
+            .desc("directories up to this depth are listed ahead by the walk threads, 0 to list all in walk order (default " + PackagerSettings.DEFAULT_WALK_FORK_DEPTH + ")")
+            .hasArg(true)
+            .build();
+        allOptions.addOption(walkForkDepth);
+        visibleOptions.addOption(walkForkDepth);
+
+        Option maxInFlight = Option.builder()
+            .longOpt("max-inflight-mb")
+            .desc("maximum MB of file content buffered in memory (default " + (PackagerSettings.DEFAULT_MAX_IN_FLIGHT_BYTES / (1024 * 1024)) + ")")
+            .hasArg(true)
+            .build();
+        allOptions.addOption(maxInFlight);
+        visibleOptions.addOption(maxInFlight);
+
+        Option compression = new Option("c", "compression", true, "compression policy: auto, store, fast, default or best (default auto)");
+        allOptions.addOption(compression);
+        visibleOptions.addOption(compression);
+
+        Option compressionThreads = Option.builder()
+            .longOpt("compression-threads")
+            .desc("number of threads compressing entries (default number of cores)")
+            .hasArg(true)
+            .build();
+        allOptions.addOption(compressionThreads);
+        visibleOptions.addOption(compressionThreads);
+
+        Option format = Option.builder()
+            .longOpt("format")
+            .desc("package format: zip or tar, tar compresses each file separately (default zip)")
+            .hasArg(true)
+            .build();
+        allOptions.addOption(format);
+        visibleOptions.addOption(format);
+
+        Option shards = Option.builder()
+            .longOpt("shards")
+            .desc("spread the package over this many archive files written in parallel, named like the output file with the shard number before the extension")
+            .hasArg(true)
+            .build();
+        allOptions.addOption(shards);
+        visibleOptions.addOption(shards);
+
+        Option fsync = Option.builder()
+            .longOpt("fsync")
+            .desc("when the package is flushed to disk: none, close or periodic (default close)")
+            .hasArg(true)
+            .build();
+        allOptions.addOption(fsync);
+        visibleOptions.addOption(fsync);
+
+        Option preallocate = Option.builder()
+            .longOpt("preallocate")
+            .desc("grow the package file to the listed size of the collected files up front, so it is allocated in one piece")
+            .hasArg(false)
+            .build();
+        allOptions.addOption(preallocate);
+        visibleOptions.addOption(preallocate);
+
+        Option batch = new Option("b", "batch", true, "directory of memory images, or a file listing one image path per line, to package in one run");
+        allOptions.addOption(batch);
+        visibleOptions.addOption(batch);
+
+        Option batchJobs = Option.builder()
+            .longOpt("batch-jobs")
+            .desc("maximum number of images packaged at the same time in batch and service mode (default number of cores)")
+            .hasArg(true)
+            .build();
+        allOptions.addOption(batchJobs);
+        visibleOptions.addOption(batchJobs);
+
+        Option jobMemory = Option.builder()
+            .longOpt("job-memory-mb")
+            .desc("memory budget per image in batch and service mode, limits the number of concurrent images (default " + BatchRunner.DEFAULT_JOB_MEMORY_MB + ")")
+            .hasArg(true)
+            .build();
+        allOptions.addOption(jobMemory);
+        visibleOptions.addOption(jobMemory);
+
+        Option isolate = Option.builder()
+            .longOpt("isolate")
+            .desc("run each image of a batch in its own worker process")
+            .hasArg(false)
+            .build();
+        allOptions.addOption(isolate);
+        visibleOptions.addOption(isolate);
+
+        Option serve = Option.builder()
+            .longOpt("serve")
+            .desc("run as a service that takes packaging jobs over HTTP on localhost, see --port")
+            .hasArg(false)
+            .build();
+        allOptions.addOption(serve);
+        visibleOptions.addOption(serve);
+
+        Option port = Option.builder()
+            .longOpt("port")
+            .desc("port of the service (default " + PackagerService.DEFAULT_PORT + ")")
+            .hasArg(true)
+            .build();
+        allOptions.addOption(port);
+        visibleOptions.addOption(port);
+
+        Option bufferPool = Option.builder()
+            .longOpt("buffer-pool-mb")
+            .desc("off-heap read buffers kept for reuse, 0 reads through the vmmjava API instead (default " + PackagerSettings.DEFAULT_BUFFER_POOL_BYTES / (1024 * 1024) + ")")
+            .hasArg(true)
+            .build();
+        allOptions.addOption(bufferPool);
+        visibleOptions.addOption(bufferPool);
+
+        Option readAhead = Option.builder()
+            .longOpt("read-ahead")
+            .desc("chunks of a file too large to buffer read ahead while it is compressed, 0 to read them in turn (default " + PackagerSettings.DEFAULT_READ_AHEAD_CHUNKS + ")")
+            .hasArg(true)
+            .build();
+        allOptions.addOption(readAhead);
+        visibleOptions.addOption(readAhead);
+
+        Option seekable = Option.builder()
+            .longOpt("seekable-mb")
+            .desc("write compressible files of at least this size as seekable gzip files of independently compressed 1 MB blocks, with an index entry of the blocks, 0 to disable (default 0)")
+            .hasArg(true)
+            .build();
+        allOptions.addOption(seekable);
+        visibleOptions.addOption(seekable);
+
+        Option deadlineOpt = Option.builder()
+            .longOpt("deadline")
+            .desc("triage mode: stop collecting this many seconds after the start and package what has been collected, highest priority sections of files_to_collect.txt and smallest files first")
+            .hasArg(true)
+            .build();
+        allOptions.addOption(deadlineOpt);
+        visibleOptions.addOption(deadlineOpt);
+
+        Option fileTimeout = Option.builder()
+            .longOpt("file-timeout")
+            .desc("stop reading a single file after this many seconds and keep what has been read")
+            .hasArg(true)
+            .build();
+        allOptions.addOption(fileTimeout);
+        visibleOptions.addOption(fileTimeout);
+
+        Option forensicCache = Option.builder()
+            .longOpt("forensic-cache")
+            .desc("directory to keep forensic results in, later runs on the same image reuse them instead of running forensic processing again")
+            .hasArg(true)
+            .build();
+        allOptions.addOption(forensicCache);
+        visibleOptions.addOption(forensicCache);
+
+        Option forensicCacheMaxGb = Option.builder()
+            .longOpt("forensic-cache-max-gb")
+            .desc("size limit of the forensic result cache, least recently used results are removed first (default " + PackagerSettings.DEFAULT_FORENSIC_CACHE_MAX_BYTES / (1024 * 1024 * 1024) + ")")
+            .hasArg(true)
+            .build();
+        allOptions.addOption(forensicCacheMaxGb);
+        visibleOptions.addOption(forensicCacheMaxGb);
+
+        Option dedup = Option.builder()
+            .longOpt("dedup")
+            .desc("store files with identical content only once, as hard links in TAR output or listed in " + DedupIndex.INDEX_NAME + " in ZIP output")
+            .hasArg(false)
+            .build();
+        allOptions.addOption(dedup);
+        visibleOptions.addOption(dedup);
+
+        Option reportOpt = Option.builder()
+            .longOpt("report")
+            .desc("file to write the JSON run report to (default the output file with " + REPORT_FILE_SUFFIX + " appended)")
+            .hasArg(true)
+            .build();
+        allOptions.addOption(reportOpt);
+        visibleOptions.addOption(reportOpt);
+
+        Option noManifest = Option.builder()
+            .longOpt("no-manifest")
+            .desc("do not write a manifest with the hashes of the collected files into the package")
+            .hasArg(false)
+            .build();
+        allOptions.addOption(noManifest);
+        visibleOptions.addOption(noManifest);
+
+        Option md5 = Option.builder()
+            .longOpt("md5")
+            .desc("add MD5 hashes to the manifest as well as SHA-256")
+            .hasArg(false)
+            .build();
+        allOptions.addOption(md5);
+        visibleOptions.addOption(md5);
+
+        Option signManifest = Option.builder()
+            .longOpt("sign-manifest")
+            .desc("PKCS#8 PEM private key (RSA or EC) to sign the manifest with")
+            .hasArg(true)
+            .build();
+        allOptions.addOption(signManifest);
+        visibleOptions.addOption(signManifest);
+
         Option acceptElasticLicense = Option.builder()
             .longOpt("license-accept-elastic-license-2-0")
             .desc("Passes the -license-accept-elastic-license-2-0 option to MemProcFS")
@@ -94,6 +338,13 @@ public class Main {
 
             System.exit(1);
         }
+
+        if (!cmd.hasOption("input") && !cmd.hasOption("batch") && !cmd.hasOption("serve")) {
+            System.out.println("Missing required option: i");
+            formatter.printHelp("memprocfs_packager", visibleOptions);
+
+            System.exit(1);
+        }
         
         String inputFilePath = cmd.getOptionValue("input");
         String outputFilePath = cmd.getOptionValue("output");
@@ -103,43 +354,15 @@ public class Main {
             strPathToNativeBinaries = cmd.getOptionValue("memprocfs");
         }
 
-        // check that path exists
+        // check that path exists, a directory as input is read without MemProcFS
+        boolean mountedInput = inputFilePath != null && Files.isDirectory(Paths.get(inputFilePath));
         Path memprocfsPath = Paths.get(strPathToNativeBinaries);
         Path dllPath = memprocfsPath.resolve("vmm.dll");
-        if (!Files.isDirectory(memprocfsPath) || !Files.exists(dllPath)) {
+        if (!mountedInput && (!Files.isDirectory(memprocfsPath) || !Files.exists(dllPath))) {
             System.err.println("Error: MemProcFS not found at " + memprocfsPath.toAbsolutePath().toString());
             System.exit(1);
         }
 
-        // check that input file exists
-        Path inputPath = Paths.get(inputFilePath);
-        if (!Files.exists(inputPath)) {
-            System.err.println("Error: File not found: " + inputFilePath);
-            System.exit(1);
-        }
-
-        // check if output file exists and handle overwrite logic
-        Path outputPath = Paths.get(outputFilePath);
-        if (Files.exists(outputPath)) {
-            // If no-clobber (-n) is set, do not overwrite and exit
-            if (cmd.hasOption("n")) {
-                System.out.println("Output file exists and --no-clobber is set. Operation aborted.");
-                System.exit(1);
-            }
-
-            // If the file exists and force flag is not set, ask for confirmation
-            if (!cmd.hasOption("f")) {
-                try (Scanner scanner = new Scanner(System.in)) {
-                    System.out.println("File " + outputFilePath + " already exists. Overwrite? (y/n)");
-                    String response = scanner.nextLine().trim().toLowerCase();
-                    if (!response.equals("y") && !response.equals("yes")) {
-                        System.out.println("Operation cancelled.");
-                        System.exit(0);
-                    }
-                }
-            }
-        }
-
         String yaraRulesPath = "";
         if (cmd.hasOption("yara-rules")) {
             String _yaraRulesPath = cmd.getOptionValue("yara-rules");
@@ -156,19 +379,341 @@ public class Main {
             additionalOptions.add("-license-accept-elastic-license-2-0");
         }
         
+        PackagerSettings settings = new PackagerSettings();
+        int shardCount = 1;
+        try {
+            if (cmd.hasOption("threads")) {
+                settings.setReaderThreads(Integer.parseInt(cmd.getOptionValue("threads")));
+            }
+            if (cmd.hasOption("walk-threads")) {
+                settings.setWalkThreads(Integer.parseInt(cmd.getOptionValue("walk-threads")));
+            }
+            if (cmd.hasOption("walk-fork-depth")) {
+                settings.setWalkForkDepth(Integer.parseInt(cmd.getOptionValue("walk-fork-depth")));
+            }
+            if (cmd.hasOption("max-inflight-mb")) {
+                settings.setMaxInFlightBytes(Long.parseLong(cmd.getOptionValue("max-inflight-mb")) * 1024 * 1024);
+            }
+            if (cmd.hasOption("compression")) {
+                settings.setCompressionPolicy(CompressionPolicy.fromString(cmd.getOptionValue("compression")));
+            }
+            if (cmd.hasOption("compression-threads")) {
+                settings.setCompressionThreads(Integer.parseInt(cmd.getOptionValue("compression-threads")));
+            }
+            if (cmd.hasOption("format")) {
+                settings.setArchiveFormat(ArchiveFormat.fromString(cmd.getOptionValue("format")));
+            }
+            if (cmd.hasOption("fsync")) {
+                settings.setFsyncPolicy(FsyncPolicy.fromString(cmd.getOptionValue("fsync")));
+            }
+            settings.setPreallocate(cmd.hasOption("preallocate"));
+            if (cmd.hasOption("buffer-pool-mb")) {
+                settings.setBufferPoolBytes(Long.parseLong(cmd.getOptionValue("buffer-pool-mb")) * 1024 * 1024);
+            }
+            if (cmd.hasOption("read-ahead")) {
+                settings.setReadAheadChunks(Integer.parseInt(cmd.getOptionValue("read-ahead")));
+            }
+            if (cmd.hasOption("seekable-mb")) {
+                settings.setSeekableMinBytes(Long.parseLong(cmd.getOptionValue("seekable-mb")) * 1024 * 1024);
+            }
+            if (cmd.hasOption("deadline")) {
+                settings.setDeadlineMillis(Long.parseLong(cmd.getOptionValue("deadline")) * 1000);
+            }
+            if (cmd.hasOption("file-timeout")) {
+                settings.setFileReadTimeoutMillis(Long.parseLong(cmd.getOptionValue("file-timeout")) * 1000);
+            }
+            if (cmd.hasOption("forensic-cache")) {
+                settings.setForensicCacheDirectory(Paths.get(cmd.getOptionValue("forensic-cache")));
+            }
+            if (cmd.hasOption("forensic-cache-max-gb")) {
+                settings.setForensicCacheMaxBytes(Long.parseLong(cmd.getOptionValue("forensic-cache-max-gb")) * 1024 * 1024 * 1024);
+            }
+            settings.setManifestEnabled(!cmd.hasOption("no-manifest"));
+            settings.setMd5Enabled(cmd.hasOption("md5"));
+            settings.setDedupEnabled(cmd.hasOption("dedup"));
+            if (cmd.hasOption("shards")) {
+                shardCount = Integer.parseInt(cmd.getOptionValue("shards"));
+                if (shardCount < 1) {
+                    throw new IllegalArgumentException("Shards must be at least 1: " + shardCount);
+                }
+            }
+            if (cmd.hasOption("rules")) {
+                Path rulesFile = Paths.get(cmd.getOptionValue("rules"));
+                if (!Files.isReadable(rulesFile)) {
+                    throw new IllegalArgumentException("Rules file not found: " + rulesFile);
+                }
+                settings.setRulesFile(rulesFile);
+            }
+            if (cmd.hasOption("process-filter")) {
+                settings.setProcessFilter(ProcessFilter.parse(cmd.getOptionValue("process-filter")));
+            }
+            if (cmd.hasOption("sign-manifest")) {
+                settings.setManifestSigningKey(Manifest.loadPrivateKey(Paths.get(cmd.getOptionValue("sign-manifest"))));
+            }
+        } catch (IllegalArgumentException ex) {
+            System.err.println("Error: Invalid option value: " + ex.getMessage());
+            System.exit(1);
+        } catch (IOException | GeneralSecurityException ex) {
+            System.err.println("Error: Can not load manifest signing key: " + ex.getMessage());
+            System.exit(1);
+        }
+
+        if (cmd.hasOption("serve")) {
+            runService(cmd, strPathToNativeBinaries, yaraRulesPath, additionalOptions, settings);
+            return;
+        }
+
+        // The output is given per job in service mode and optional for a plan, single and batch runs need it here
+        if (!cmd.hasOption("output") && (cmd.hasOption("batch") || !cmd.hasOption("plan"))) {
+            System.out.println("Missing required option: o");
+            formatter.printHelp("memprocfs_packager", visibleOptions);
+
+            System.exit(1);
+        }
+
+        if (cmd.hasOption("batch")) {
+            runBatch(cmd, args, strPathToNativeBinaries, yaraRulesPath, additionalOptions, settings, shardCount);
+            return;
+        }
+
+        // check that input file exists
+        Path inputPath = Paths.get(inputFilePath);
+        if (!Files.exists(inputPath)) {
+            System.err.println("Error: File not found: " + inputFilePath);
+            System.exit(1);
+        }
+
+        // The process list comes from the forensic results, a mounted VFS only has them if MemProcFS ran with -forensic
+        String processListPath = ProcessList.PROCESS_CSV_DIRECTORY + ProcessList.PROCESS_CSV_NAME;
+        if (cmd.hasOption("process-filter") && Files.isDirectory(inputPath)
+                && !Files.exists(MountedVfsSource.resolve(inputPath, processListPath))) {
+            System.err.println("Error: --process-filter needs MemProcFS forensic results, " + inputFilePath + " has no " + processListPath);
+            System.exit(1);
+        }
+
+        if (cmd.hasOption("plan")) {
+            runPlan(inputFilePath, outputFilePath, strPathToNativeBinaries, yaraRulesPath, additionalOptions, settings);
+            return;
+        }
+
+        boolean streamOutput = STDOUT_PATH.equals(outputFilePath);
+        if (streamOutput && shardCount > 1) {
+            System.err.println("Error: Sharded output can not be written to standard output");
+            System.exit(1);
+        }
+
+        OutputStream stdout = null;
+        if (streamOutput) {
+            // Standard output carries the package, so all messages go to standard error instead
+            stdout = new FileOutputStream(FileDescriptor.out);
+            System.setOut(System.err);
+            outputFilePath = "standard output";
+        }
+
+        // The run report goes next to the package unless given, there is none by default when streaming
+        Path reportPath = null;
+        if (cmd.hasOption("report")) {
+            reportPath = Paths.get(cmd.getOptionValue("report"));
+        } else if (!streamOutput) {
+            reportPath = Paths.get(outputFilePath + REPORT_FILE_SUFFIX);
+        }
+
+        // check if output files exist and handle overwrite logic, every volume of a sharded package
+        // and the report are checked before any of them is opened
+        List<Path> outputPaths = new ArrayList<>();
+        if (!streamOutput) {
+            for (int shard = 1; shard <= shardCount; shard++) {
+                outputPaths.add(ShardedArchiveWriter.shardPath(Paths.get(outputFilePath), shard));
+            }
+        }
+        if (reportPath != null) {
+            outputPaths.add(reportPath);
+        }
+        checkOverwrite(cmd, outputPaths);
+
         LOGGER.debug("Starting processing image:" + inputFilePath);
 
-        try (FileOutputStream outputStream = new FileOutputStream(outputFilePath)) {
-            MemProcFSPackager packager = new MemProcFSPackager(inputFilePath, outputStream, strPathToNativeBinaries, yaraRulesPath, additionalOptions);
+        // Streams of the shards after the first one, which is written to the output file
+        List<OutputStream> shardOutputStreams = new ArrayList<>();
+        try (OutputStream outputStream = streamOutput
+                ? new BufferedOutputStream(stdout, STREAM_BUFFER_SIZE)
+                : new PackageFile(Paths.get(outputFilePath), settings.getFsyncPolicy())) {
+            MemProcFSPackager packager = new MemProcFSPackager(inputFilePath, outputStream, strPathToNativeBinaries, yaraRulesPath, additionalOptions, settings);
+            if (reportPath != null) {
+                packager.setReportFile(reportPath);
+            }
+            openShards(packager, Paths.get(outputFilePath), shardCount, settings.getFsyncPolicy(), shardOutputStreams);
             packager.run();
         } catch (IOException ex) {
             System.err.println("Error: " + ex.getMessage());
             LOGGER.error("Error writing to file", ex);
 
             System.exit(1);
+        } finally {
+            closeShards(shardOutputStreams);
         }
 
         LOGGER.debug("Processing completed. Output written to: " + outputFilePath);
         System.out.println("Processing completed. Output written to: " + outputFilePath);
     }
+
+    // Exits unless the existing output files may be overwritten: never with --no-clobber, after confirmation without --force
+    private static void checkOverwrite(CommandLine cmd, List<Path> outputPaths) {
+        List<String> existing = new ArrayList<>();
+        for (Path outputPath : outputPaths) {
+            if (Files.exists(outputPath)) {
+                existing.add(outputPath.toString());
+            }
+        }
+        if (existing.isEmpty()) {
+            return;
+        }
+
+        // If no-clobber (-n) is set, do not overwrite and exit
+        if (cmd.hasOption("n")) {
+            System.out.println("Output file exists and --no-clobber is set. Operation aborted.");
+            System.exit(1);
+        }
+
+        // If the file exists and force flag is not set, ask for confirmation
+        if (!cmd.hasOption("f")) {
+            try (Scanner scanner = new Scanner(System.in)) {
+                if (existing.size() == 1) {
+                    System.out.println("File " + existing.get(0) + " already exists. Overwrite? (y/n)");
+                } else {
+                    System.out.println("Files " + String.join(", ", existing) + " already exist. Overwrite? (y/n)");
+                }
+                String response = scanner.nextLine().trim().toLowerCase();
+                if (!response.equals("y") && !response.equals("yes")) {
+                    System.out.println("Operation cancelled.");
+                    System.exit(0);
+                }
+            }
+        }
+    }
+
+    // Prints the collection plan, and writes the planned files to the output file or standard output
+    private static void runPlan(String inputFilePath, String outputFilePath, String strPathToNativeBinaries, String yaraRulesPath, List<String> additionalOptions, PackagerSettings settings) {
+        boolean streamOutput = STDOUT_PATH.equals(outputFilePath);
+        PrintStream stdout = System.out;
+        if (streamOutput) {
+            // Standard output carries the plan, so all messages go to standard error instead
+            System.setOut(System.err);
+        }
+
+        try {
+            MemProcFSPackager packager = new MemProcFSPackager(inputFilePath, null, strPathToNativeBinaries, yaraRulesPath, additionalOptions, settings);
+            CollectionPlan plan = packager.plan();
+            System.out.print(plan.summary());
+
+            if (streamOutput) {
+                stdout.write(plan.toCsv());
+                stdout.flush();
+            } else if (outputFilePath != null) {
+                Files.write(Paths.get(outputFilePath), plan.toCsv());
+                System.out.println("Planned files written to: " + outputFilePath);
+            }
+        } catch (IOException ex) {
+            System.err.println("Error: " + ex.getMessage());
+            LOGGER.error("Error planning collection", ex);
+
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Opens the volumes after the first one of a sharded package and hands
+     * them to the packager. Each volume is added to the list as soon as it is
+     * open, so the caller can close them if the run fails.
+     */
+    static void openShards(MemProcFSPackager packager, Path output, int shardCount, FsyncPolicy fsyncPolicy, List<OutputStream> shardOutputStreams) throws IOException {
+        if (shardCount <= 1) {
+            return;
+        }
+        List<String> shardNames = new ArrayList<>();
+        for (int shard = 1; shard <= shardCount; shard++) {
+            Path shardPath = ShardedArchiveWriter.shardPath(output, shard);
+            shardNames.add(shardPath.getFileName().toString());
+            if (shard > 1) {
+                shardOutputStreams.add(new PackageFile(shardPath, fsyncPolicy));
+            }
+        }
+        packager.setShards(shardNames, shardOutputStreams);
+    }
+
+    // Normally closed with the package already, this covers runs that failed early
+    static void closeShards(List<OutputStream> shardOutputStreams) {
+        for (OutputStream shardOutputStream : shardOutputStreams) {
+            try {
+                shardOutputStream.close();
+            } catch (IOException ex) {
+                LOGGER.warn("Error closing shard", ex);
+            }
+        }
+    }
+
+    // Takes packaging jobs over HTTP until the process is stopped
+    private static void runService(CommandLine cmd, String strPathToNativeBinaries, String yaraRulesPath, List<String> additionalOptions, PackagerSettings settings) {
+        try {
+            int servicePort = Integer.parseInt(cmd.getOptionValue("port", String.valueOf(PackagerService.DEFAULT_PORT)));
+            Integer requestedJobs = cmd.hasOption("batch-jobs") ? Integer.valueOf(cmd.getOptionValue("batch-jobs")) : null;
+            long jobMemoryMB = Long.parseLong(cmd.getOptionValue("job-memory-mb", String.valueOf(BatchRunner.DEFAULT_JOB_MEMORY_MB)));
+            // Service jobs share the heap of this process
+            int concurrency = BatchRunner.concurrency(requestedJobs, jobMemoryMB * 1024 * 1024, settings.getMaxInFlightBytes());
+
+            PackagerService service = new PackagerService(servicePort, concurrency, strPathToNativeBinaries, yaraRulesPath, additionalOptions, settings);
+            Runtime.getRuntime().addShutdownHook(new Thread(service::stop, "service-shutdown"));
+            service.start();
+        } catch (IllegalArgumentException ex) {
+            System.err.println("Error: Invalid option value: " + ex.getMessage());
+            System.exit(1);
+        } catch (IOException ex) {
+            System.err.println("Error: Can not start service: " + ex.getMessage());
+            System.exit(1);
+        }
+    }
+
+    // Packages every image of a batch into the output directory
+    private static void runBatch(CommandLine cmd, String[] args, String strPathToNativeBinaries, String yaraRulesPath, List<String> additionalOptions, PackagerSettings settings, int shardCount) {
+        Path outputDirectory = Paths.get(cmd.getOptionValue("output"));
+
+        List<Path> inputs = null;
+        int concurrency = 0;
+        try {
+            inputs = BatchRunner.readInputs(Paths.get(cmd.getOptionValue("batch")));
+            Files.createDirectories(outputDirectory);
+
+            Integer requestedJobs = cmd.hasOption("batch-jobs") ? Integer.valueOf(cmd.getOptionValue("batch-jobs")) : null;
+            long jobMemoryMB = Long.parseLong(cmd.getOptionValue("job-memory-mb", String.valueOf(BatchRunner.DEFAULT_JOB_MEMORY_MB)));
+            // Worker processes have a heap each, jobs in this process share its heap
+            concurrency = BatchRunner.concurrency(requestedJobs, jobMemoryMB * 1024 * 1024, cmd.hasOption("isolate") ? 0 : settings.getMaxInFlightBytes());
+        } catch (IOException ex) {
+            System.err.println("Error: " + ex.getMessage());
+            System.exit(1);
+        } catch (IllegalArgumentException ex) {
+            System.err.println("Error: Invalid option value: " + ex.getMessage());
+            System.exit(1);
+        }
+
+        if (inputs.isEmpty()) {
+            System.err.println("Error: No memory images found in " + cmd.getOptionValue("batch"));
+            System.exit(1);
+        }
+
+        BatchRunner.BatchJob job;
+        if (cmd.hasOption("isolate")) {
+            job = BatchRunner.workerProcessJob(BatchRunner.workerArguments(args));
+        } else {
+            job = BatchRunner.inProcessJob(strPathToNativeBinaries, yaraRulesPath, additionalOptions, settings, shardCount);
+        }
+
+        // Worker processes get --shards with the other options and shard their packages themselves
+        BatchRunner batchRunner = new BatchRunner(inputs, outputDirectory, settings.getArchiveFormat(), cmd.hasOption("f"), concurrency, shardCount);
+        List<BatchRunner.BatchResult> results = batchRunner.run(job);
+
+        long failed = results.stream().filter(result -> result.status() == BatchRunner.Status.FAILED).count();
+        if (failed > 0) {
+            System.exit(1);
+        }
+    }
 }
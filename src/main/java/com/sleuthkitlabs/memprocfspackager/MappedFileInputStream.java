@@ -0,0 +1,187 @@
+/*
+ * memprocfs_packager
+ * 
+ * Copyright (C) 2024  Sleuth Kit Labs
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.sleuthkitlabs.memprocfspackager;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Objects;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Reads a local file through memory mappings of up to MAPPING_SIZE bytes.
+ * Like VFSInputStream it ends at the size given when opened, even if the
+ * file has grown since it was listed.
+ *
+ * The content is copied straight from the mapping into the caller's array,
+ * {@link #readAllBytes} allocates the array once at its final size. Files
+ * that can not be mapped, such as those of a FUSE file system mounted with
+ * direct I/O, are read through the channel instead.
+ */
+class MappedFileInputStream extends InputStream {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(MappedFileInputStream.class);
+
+    static final long MAPPING_SIZE = 64L * 1024 * 1024;
+
+    // Largest array the JVM reliably allocates
+    private static final int MAX_ARRAY_SIZE = Integer.MAX_VALUE - 8;
+
+    private final Path path;
+    private final FileChannel channel;
+    private final long size;
+    private long position = 0;
+
+    private MappedByteBuffer mapping;
+    private long mappingStart = 0;
+    private boolean mappable = true;
+
+    // Only allocated for single byte reads of files that can not be mapped
+    private ByteBuffer single;
+
+    MappedFileInputStream(Path path, long size) throws IOException {
+        this.path = path;
+        this.channel = FileChannel.open(path, StandardOpenOption.READ);
+        try {
+            this.size = Math.min(size, channel.size());
+        } catch (IOException ex) {
+            channel.close();
+            throw ex;
+        }
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (position >= size) {
+            return -1;
+        }
+        if (map()) {
+            int value = mapping.get((int) (position - mappingStart)) & 0xFF;
+            position++;
+            return value;
+        }
+
+        if (single == null) {
+            single = ByteBuffer.allocate(1);
+        }
+        single.clear();
+        if (channel.read(single, position) <= 0) {
+            return -1;
+        }
+        position++;
+        return single.get(0) & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        Objects.checkFromIndexSize(off, len, b.length);
+        if (len == 0) {
+            return 0;
+        }
+        if (position >= size) {
+            return -1;
+        }
+
+        if (!map()) {
+            int count = channel.read(ByteBuffer.wrap(b, off, len), position);
+            if (count <= 0) {
+                return -1;
+            }
+            position += count;
+            return count;
+        }
+
+        int index = (int) (position - mappingStart);
+        int count = Math.min(len, mapping.limit() - index);
+        mapping.get(index, b, off, count);
+        position += count;
+        return count;
+    }
+
+    @Override
+    public byte[] readAllBytes() throws IOException {
+        long remaining = size - position;
+        if (remaining > MAX_ARRAY_SIZE) {
+            return super.readAllBytes();
+        }
+        byte[] content = new byte[(int) Math.max(remaining, 0)];
+        int count = readNBytes(content, 0, content.length);
+        return count == content.length ? content : Arrays.copyOf(content, count);
+    }
+
+    @Override
+    public long transferTo(OutputStream out) throws IOException {
+        Objects.requireNonNull(out, "out");
+        // The channel copies through a small buffer of its own instead of one of the size of the file
+        WritableByteChannel target = Channels.newChannel(out);
+        long transferred = 0;
+        while (position < size) {
+            long count = channel.transferTo(position, size - position, target);
+            if (count <= 0) {
+                break;
+            }
+            position += count;
+            transferred += count;
+        }
+        return transferred;
+    }
+
+    @Override
+    public int available() {
+        return (int) Math.min(Math.max(size - position, 0), Integer.MAX_VALUE);
+    }
+
+    @Override
+    public void close() throws IOException {
+        // The mapping is released by the garbage collector
+        mapping = null;
+        channel.close();
+    }
+
+    // Maps the region at the current position, returns false if the file can not be mapped
+    private boolean map() {
+        if (!mappable) {
+            return false;
+        }
+        if (mapping != null && position >= mappingStart && position < mappingStart + mapping.limit()) {
+            return true;
+        }
+
+        try {
+            mapping = channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(MAPPING_SIZE, size - position));
+            mappingStart = position;
+            return true;
+        } catch (IOException | UnsupportedOperationException ex) {
+            LOGGER.debug("Can not map " + path + ", reading through the channel: " + ex.getMessage());
+            mapping = null;
+            mappable = false;
+            return false;
+        }
+    }
+}
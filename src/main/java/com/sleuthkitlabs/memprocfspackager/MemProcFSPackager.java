@@ -20,31 +20,32 @@ package com.sleuthkitlabs.memprocfspackager;
 
 import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
 import java.util.ArrayList;
+import java.util.Comparator;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
 import java.util.Set;
-import java.util.concurrent.CountDownLatch;
-import java.util.concurrent.Executors;
-import java.util.concurrent.ScheduledExecutorService;
-import java.util.concurrent.ScheduledFuture;
-import java.util.concurrent.TimeUnit;
-import java.util.concurrent.atomic.AtomicReference;
+import java.util.TreeMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import java.util.stream.Collectors;
-import java.util.zip.ZipEntry;
-import java.util.zip.ZipOutputStream;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import vmm.IVmm;
-import vmm.VmmException;
 import vmm.entry.Vmm_VfsListEntry;
 
 /**
@@ -54,6 +55,9 @@ public class MemProcFSPackager {
 
     private static final Logger LOGGER = LoggerFactory.getLogger(MemProcFSPackager.class);
 
+    // Section header of files_to_collect.txt, for example: ## Users (priority: 1) ##
+    private static final Pattern SECTION_PRIORITY = Pattern.compile("\\(priority:\\s*(\\d+)\\)");
+
     private final String imagePath;
         
     private final OutputStream outputstream;
@@ -66,11 +70,44 @@ public class MemProcFSPackager {
     private final Set<String> addedEntries = new HashSet<>();
                 
     private final String strPathToNativeBinaries;
-    private IVmm vmm;
+
+    private final PackagerSettings settings;
+
+    // Starts MemProcFS, replaced by the benchmarks to run against a synthetic VFS
+    private BiFunction<String, String[], IVmm> vmmInitializer = IVmm::initializeVmm;
+
+    // MemProcFS, or the directory when the input is a mounted or extracted VFS
+    private VfsSource source;
+
+    private VfsListingCache listingCache;
+
+    // Lists directories in parallel while the rules are resolved, null to list them one at a time
+    private ForkJoinPool walkPool;
+
+    // Side file for the run report, null to only write it into the package
+    private Path reportFile;
+
+    // Files of the forensic result cache entry used instead of forensic mode, null if there is none
+    private Path cachedForensicFiles;
+
+    // Report of the current run, null until it has started
+    private volatile RunReport runReport;
+
+    // Names of all archive volumes and the streams of all but the first, empty unless the output is sharded
+    private List<String> shardNames = List.of();
+    private List<OutputStream> shardOutputStreams = List.of();
+
+    // Listed size of the files queued so far, an upper bound for the size of the package
+    private long plannedBytes = 0;
     
     public MemProcFSPackager(String imagePath, OutputStream outputStream, String strPathToNativeBinaries, String yaraRulesPath, List<String> additionalOptions) {
+        this(imagePath, outputStream, strPathToNativeBinaries, yaraRulesPath, additionalOptions, new PackagerSettings());
+    }
+
+    public MemProcFSPackager(String imagePath, OutputStream outputStream, String strPathToNativeBinaries, String yaraRulesPath, List<String> additionalOptions, PackagerSettings settings) {
         
         this.imagePath = imagePath;
+        this.settings = settings;
         this.strPathToNativeBinaries = strPathToNativeBinaries;
         this.yaraRulesPath = yaraRulesPath;
         this.additionalOptions = additionalOptions;
@@ -82,257 +119,511 @@ public class MemProcFSPackager {
         }
     }
 
-    public void run() {
+    /**
+     * Runs MemProcFS on the image and writes the collected files to the
+     * output stream.
+     *
+     * @throws IOException if forensic processing or writing the package failed
+     */
+    public void run() throws IOException {
+
+        RunReport report = new RunReport(imagePath);
+        runReport = report;
+
+        // Triage mode, the deadline covers the whole run including starting MemProcFS
+        Deadline deadline = Deadline.afterMillis(settings.getDeadlineMillis());
+
+        List<CollectionRule> filesToCollect = getFilesToCollect();
+        List<CollectionRule> processRuleList = getProcessRules(filesToCollect);
+        List<CollectionRule> independentRuleList = filesToCollect.stream().filter(rule -> !rule.dependsOnForensic() && !processRuleList.contains(rule)).toList();
+        List<CollectionRule> forensicRuleList = filesToCollect.stream().filter(CollectionRule::dependsOnForensic).toList();
+
+        // Look for the forensic results of an earlier run on the same image
+        ForensicResultCache forensicCache = null;
+        String fingerprint = null;
+        // A mounted VFS has its forensic results on disk already
+        if (settings.getForensicCacheDirectory() != null && !forensicRuleList.isEmpty() && !isMounted()) {
+            RunReport.Phase lookupPhase = report.phase("forensic_cache_lookup");
+            try {
+                fingerprint = ForensicResultCache.fingerprint(Path.of(imagePath), yaraRulesPath, additionalOptions);
+                forensicCache = new ForensicResultCache(settings.getForensicCacheDirectory(), settings.getForensicCacheMaxBytes());
+                cachedForensicFiles = forensicCache.lookup(fingerprint, forensicRuleList);
+            } catch (IOException | InvalidPathException ex) {
+                LOGGER.warn("Forensic result cache disabled, can not fingerprint image " + imagePath, ex);
+                forensicCache = null;
+            } finally {
+                lookupPhase.close();
+            }
+        }
 
         try {
-            List<String> argvMemProcFS = new ArrayList<>();
-            argvMemProcFS.addAll(List.of(
-                "-device", imagePath, 
-                "-forensic", "1",
-                "-disable-python",
-                "-disable-symbolserver"));
-
-            if (yaraRulesPath != null && !yaraRulesPath.isBlank()) {
-                argvMemProcFS.addAll(List.of("-forensic-yara-rules", yaraRulesPath));
+            RunReport.Phase vmmPhase = report.phase("initialize_vmm");
+            try {
+                // Forensic mode is not needed when the forensic results come from the cache
+                source = openSource(cachedForensicFiles == null, report);
+            } finally {
+                vmmPhase.close();
             }
-            
-            if (additionalOptions != null) {
-                argvMemProcFS.addAll(additionalOptions);
+            NativeVfsReader nativeReader = source instanceof VmmVfsSource vmmSource ? vmmSource.getNativeReader() : null;
+            if (nativeReader != null) {
+                report.setBufferPool(nativeReader.getBufferPool());
             }
-
-            vmm = IVmm.initializeVmm(strPathToNativeBinaries, argvMemProcFS.toArray(new String[0]));
+            if (cachedForensicFiles != null) {
+                source = new OverlayVfsSource(source, VfsListingCache.FORENSIC_PATH, new MountedVfsSource(cachedForensicFiles));
+            }
+            listingCache = new VfsListingCache(source);
+            walkPool = newWalkPool();
     
-            // wait for the forensic processing to complete
-            CountDownLatch latch = new CountDownLatch(1);
-
-            final AtomicReference<String> atomicProgress = new AtomicReference<>("");
+            // Forensic processing runs in the background, rules that do not depend on it are collected meanwhile
+            ForensicProgressMonitor progressMonitor = null;
+            if (cachedForensicFiles == null && (!isMounted() || ForensicProgressMonitor.hasProgress(listingCache))) {
+                progressMonitor = new ForensicProgressMonitor(source, listingCache);
+                progressMonitor.start();
+            }
 
-            ScheduledExecutorService scheduledExecutorService = Executors.newScheduledThreadPool(1);
-            ScheduledFuture scheduledFuture = scheduledExecutorService.scheduleWithFixedDelay(() -> {
-                try {
-                    List<Vmm_VfsListEntry> directoryListing = vfsList("\\forensic\\");
+            ForensicResultCache.EntryWriter cacheEntry = null;
+            try (ArchiveWriter archiveWriter = createArchiveWriter()) {
+                try (CollectionEngine engine = new CollectionEngine(source, archiveWriter, engineSettings(), report)) {
+                    engine.setDeadline(deadline);
 
-                    Map<String, Vmm_VfsListEntry> directoryListingByName = directoryListing.stream().collect(Collectors.toMap(item -> item.name, item -> item, (o, n) -> o));
-                
-                    Vmm_VfsListEntry fileListEntry = directoryListingByName.get("progress_percent.txt");
-                    if (fileListEntry == null) {
-                        LOGGER.error("File not found: \\forensic\\progress_percent.txt");
-                        System.err.println("File not found: \\forensic\\progress_percent.txt");
-                        System.exit(1);
+                    RunReport.Phase independentPhase = report.phase("collect_independent");
+                    try {
+                        collect(engine, independentRuleList, listingCache::list, deadline);
+                    } finally {
+                        independentPhase.close();
                     }
 
-                    try (InputStream inputStream = new VFSInputStream("\\forensic\\progress_percent.txt", (int) fileListEntry.size, vmm);
-                            BufferedReader reader = new BufferedReader(new InputStreamReader(inputStream))) {
-                        String progress = reader.lines().collect(Collectors.joining("\n"));
-                        if ("100".equals(progress)) {
-                            latch.countDown();
-                            System.out.println("MemProcFS forensic processing complete: " + progress + "%");
-                            return;
+                    if (cachedForensicFiles != null) {
+                        System.out.println("Using cached MemProcFS forensic results: " + cachedForensicFiles);
+                        // The cached results do not change
+                        listingCache.setForensicComplete();
+                        RunReport.Phase forensicPhase = report.phase("collect_forensic");
+                        try {
+                            collect(engine, forensicRuleList, listingCache::list, deadline);
+                        } finally {
+                            forensicPhase.close();
                         }
-
-                        // Output percent complete if has changed since last reported
-                        String previousProgress = atomicProgress.get();
-                        if (!previousProgress.equals(progress)) {
-                            atomicProgress.set(progress);
-                            System.out.println("Waiting for MemProcFS forensic processing to complete: " + progress + "%");
+                        RunReport.Phase processPhase = report.phase("collect_processes");
+                        try {
+                            collect(engine, processRuleList, processLister(processRuleList, report), deadline);
+                        } finally {
+                            processPhase.close();
+                        }
+                    } else {
+                        // wait for the forensic processing to complete, trees extracted without progress are complete already
+                        boolean forensicComplete = true;
+                        if (progressMonitor != null) {
+                            RunReport.Phase waitPhase = report.phase("forensic_wait");
+                            try {
+                                forensicComplete = progressMonitor.awaitComplete(deadline.remainingNanos());
+                            } catch (InterruptedException ex) {
+                                LOGGER.error("Interrupted waiting for forensics to complete");
+                                Thread.currentThread().interrupt();
+                                throw new InterruptedIOException("Interrupted waiting for forensics to complete");
+                            } finally {
+                                waitPhase.close();
+                            }
                         }
 
+                        if (forensicComplete) {
+                            // The forensic directory is complete and can be cached from now on
+                            listingCache.setForensicComplete();
+
+                            if (forensicCache != null) {
+                                cacheEntry = newCacheEntry(forensicCache, fingerprint, forensicRuleList);
+                                engine.setCacheEntry(cacheEntry);
+                            }
+
+                            RunReport.Phase forensicPhase = report.phase("collect_forensic");
+                            try {
+                                collect(engine, forensicRuleList, listingCache::list, deadline);
+                            } finally {
+                                forensicPhase.close();
+                            }
+                            RunReport.Phase processPhase = report.phase("collect_processes");
+                            try {
+                                collect(engine, processRuleList, processLister(processRuleList, report), deadline);
+                            } finally {
+                                processPhase.close();
+                            }
+                        } else {
+                            System.out.println("Deadline reached before MemProcFS forensic processing completed, forensic files are not collected");
+                            for (CollectionRule rule : forensicRuleList) {
+                                engine.skip(rule, SkippedFiles.Reason.FORENSIC_INCOMPLETE);
+                            }
+                            // The process list comes with the forensic results
+                            for (CollectionRule rule : processRuleList) {
+                                engine.skip(rule, SkippedFiles.Reason.FORENSIC_INCOMPLETE);
+                            }
+                        }
                     }
-                } catch (Throwable ex) {
-                    LOGGER.error("Error checking progress", ex);
-                    System.err.println("Error checking progress: " + ex.getMessage());
-                    System.exit(1);
                 }
-            }, 0, 1, TimeUnit.SECONDS);
 
-            try {
-                latch.await();
-            } catch (InterruptedException ex) {
-                LOGGER.error("Interrupted waiting for forensics to complete");
-                System.err.println("Interrupted waiting for forensics to complete");
-                System.exit(1);
+                writeReport(archiveWriter, report);
+            } catch (IOException ex) {
+                if (cacheEntry != null) {
+                    cacheEntry.abort();
+                }
+                LOGGER.error("IO Exception ", ex);
+                throw ex;
             }
 
-            scheduledExecutorService.shutdown();
-
-            List<FileToCollect> filesToCollect = getFilesToCollect();
-            Map<String, List<FileToCollect>> groupedByParentPath = filesToCollect.stream().collect(Collectors.groupingBy(FileToCollect::parentPath));
-    
-            try (ZipOutputStream zipOutputStream = new ZipOutputStream(outputstream)) {
-    
-                for (Map.Entry<String, List<FileToCollect>> entry : groupedByParentPath.entrySet()) {
-                    String parentPath = entry.getKey();
-                    List<FileToCollect> files = entry.getValue();
-    
-                    // Check if the parent path contains wildcards
-                    if (containsWildcard(parentPath)) {
-                        // Get all matching parent directories
-                        List<String> matchedDirectories = matchDirectoriesWithWildcards(parentPath);
-    
-                        // Process each matched directory
-                        for (String matchedDirectory : matchedDirectories) {
-                            processFilesInDirectory(matchedDirectory, files, zipOutputStream);
-                        }
-                    } else {
-                        // No wildcard in the parent path, process as usual
-                        processFilesInDirectory(parentPath, files, zipOutputStream);
-                    }
+            if (cacheEntry != null) {
+                try {
+                    cacheEntry.commit();
+                } catch (IOException ex) {
+                    LOGGER.warn("Error storing forensic results in cache", ex);
+                    cacheEntry.abort();
                 }
-            } catch (IOException ex) {
-                LOGGER.error("IO Exception ", ex);
+            }
+
+            LOGGER.info("Directory listing cache: " + listingCache.getHits() + " hits, " + listingCache.getMisses() + " misses");
+            if (nativeReader != null) {
+                BufferPool bufferPool = nativeReader.getBufferPool();
+                LOGGER.info("Read buffer pool: " + bufferPool.getHits() + " hits, " + bufferPool.getMisses() + " misses, " + bufferPool.getPooledBytes() + " bytes pooled");
             }
     
         } finally {
-            if (vmm != null) {
-                vmm.close();
+            if (walkPool != null) {
+                walkPool.shutdownNow();
+            }
+            if (source != null) {
+                source.close();
             }
         }
     }
-    
-    // This method processes the files in a specific directory
-    private void processFilesInDirectory(String parentPath, List<FileToCollect> files, ZipOutputStream zipOutputStream) throws IOException {
-        List<Vmm_VfsListEntry> directoryListing = vfsList(parentPath);
-        Map<String, Vmm_VfsListEntry> directoryListingByName = directoryListing.stream().collect(Collectors.toMap(item -> item.name, item -> item, (o, n) -> o));
-    
-        for (FileToCollect file : files) {
-            // Check if the file name contains wildcards
-            if (containsWildcard(file.name())) {
-                List<Vmm_VfsListEntry> matchedFiles = matchWildcards(file.name(), directoryListing);
-                for (Vmm_VfsListEntry matchedFile : matchedFiles) {
-                    addToZip(zipOutputStream, parentPath, matchedFile);
+
+    /**
+     * Resolves the rules against the VFS without collecting anything, and
+     * estimates what a run would cost. Forensic processing runs if any rule
+     * depends on it, and a few files are read to measure the read
+     * throughput.
+     *
+     * @throws IOException if forensic processing failed
+     */
+    public CollectionPlan plan() throws IOException {
+
+        List<CollectionRule> filesToCollect = getFilesToCollect();
+        List<CollectionRule> processRuleList = getProcessRules(filesToCollect);
+        List<CollectionRule> independentRuleList = filesToCollect.stream().filter(rule -> !rule.dependsOnForensic() && !processRuleList.contains(rule)).toList();
+        List<CollectionRule> forensicRuleList = filesToCollect.stream().filter(CollectionRule::dependsOnForensic).toList();
+
+        CollectionPlan plan = new CollectionPlan(imagePath, settings.getReaderThreads());
+        try {
+            boolean forensic = !forensicRuleList.isEmpty() || !processRuleList.isEmpty();
+            source = openSource(forensic, null);
+            listingCache = new VfsListingCache(source);
+            walkPool = newWalkPool();
+
+            ForensicProgressMonitor progressMonitor = null;
+            if (forensic && (!isMounted() || ForensicProgressMonitor.hasProgress(listingCache))) {
+                progressMonitor = new ForensicProgressMonitor(source, listingCache);
+                progressMonitor.start();
+            }
+
+            for (CollectionRule rule : independentRuleList) {
+                planRule(plan, rule, listingCache::list);
+            }
+
+            if (forensic) {
+                if (progressMonitor != null) {
+                    long waitStart = System.nanoTime();
+                    try {
+                        progressMonitor.awaitComplete();
+                    } catch (InterruptedException ex) {
+                        LOGGER.error("Interrupted waiting for forensics to complete");
+                        Thread.currentThread().interrupt();
+                        throw new InterruptedIOException("Interrupted waiting for forensics to complete");
+                    }
+                    plan.setForensicWaitNanos(System.nanoTime() - waitStart);
                 }
-            } else {
-                // No wildcard in the file name, process as usual
-                if (!directoryListingByName.containsKey(file.name())) {
-                    LOGGER.warn("File not found: " + parentPath + file.name());
-                    continue;
+                listingCache.setForensicComplete();
+
+                for (CollectionRule rule : forensicRuleList) {
+                    planRule(plan, rule, listingCache::list);
+                }
+
+                Function<String, Map<String, Vmm_VfsListEntry>> processLister = processLister(processRuleList, null);
+                for (CollectionRule rule : processRuleList) {
+                    planRule(plan, rule, processLister);
                 }
-                Vmm_VfsListEntry fileListEntry = directoryListingByName.get(file.name());
-                addToZip(zipOutputStream, parentPath, fileListEntry);
+            }
+
+            // Measure the read throughput on a few files, large ones are only read in part
+            for (CollectionItem sample : plan.sampleFiles()) {
+                long start = System.nanoTime();
+                try (InputStream inputStream = source.open(sample.vfsPath(), Math.min(sample.size(), CollectionPlan.SAMPLE_BYTES), Deadline.NONE)) {
+                    long bytes = inputStream.transferTo(OutputStream.nullOutputStream());
+                    plan.addSample(bytes, System.nanoTime() - start);
+                }
+            }
+
+            LOGGER.info("Directory listing cache: " + listingCache.getHits() + " hits, " + listingCache.getMisses() + " misses");
+            return plan;
+
+        } finally {
+            if (walkPool != null) {
+                walkPool.shutdownNow();
+            }
+            if (source != null) {
+                source.close();
             }
         }
     }
-    
-    private boolean containsWildcard(String path) {
-        return path.contains("*") || path.contains("?");
+
+    // Resolves a single rule, so the plan can show what each rule costs
+    private void planRule(CollectionPlan plan, CollectionRule rule, Function<String, Map<String, Vmm_VfsListEntry>> lister) {
+        long listingsBefore = listingCache.getMisses();
+        long start = System.nanoTime();
+        List<Vmm_VfsListEntry> matches = new ArrayList<>();
+        GlobTrie.compile(List.of(rule)).walk(lister, (parentPath, fileListEntry) -> {
+            matches.add(fileListEntry);
+            CollectionItem item = newItem(parentPath, fileListEntry);
+            if (item != null) {
+                plan.addFile(item, rule);
+            }
+        }, walkPool, settings.getWalkForkDepth());
+        plan.addRule(rule, matches, listingCache.getMisses() - listingsBefore, System.nanoTime() - start);
     }
-    
-    // This method matches directories that contain wildcards in the path
-    private List<String> matchDirectoriesWithWildcards(String parentPath) {
-        List<String> matchedDirectories = new ArrayList<>();
-    
-        // Split the parentPath by directory separators and traverse each part
-        String _tempParentPath = parentPath;
-        if (_tempParentPath.startsWith("\\")) {
-            _tempParentPath = _tempParentPath.substring(1);
+
+    // Starts MemProcFS, or reads the input directly when it is a directory. The report instruments the VFS calls, if given
+    private VfsSource openSource(boolean forensic, RunReport report) {
+        if (isMounted()) {
+            System.out.println("Reading the VFS from directory " + imagePath + " instead of starting MemProcFS");
+            return new MountedVfsSource(Path.of(imagePath));
         }
-        String[] pathSegments = _tempParentPath.split("\\\\");
-
-        // Start the traversal at the last path segment before the first wildcard
-        List<String> segmentsToTraverse = new ArrayList<>();
-        StringBuilder pathBuilder = new StringBuilder();
-        boolean wildCardFound = false;
-        pathBuilder.append("\\");
-
-        for (String segment : pathSegments) {
-            if (wildCardFound || containsWildcard(segment)) {
-                wildCardFound = true;
-                segmentsToTraverse.add(segment);
-            } else {
-                pathBuilder.append(segment).append("\\");
+
+        IVmm nativeVmm = vmmInitializer.apply(strPathToNativeBinaries, memProcFSArguments(forensic));
+        if (report == null) {
+            return new VmmVfsSource(nativeVmm, null);
+        }
+        NativeVfsReader nativeReader = null;
+        if (settings.getBufferPoolBytes() > 0) {
+            nativeReader = NativeVfsReader.bind(nativeVmm, strPathToNativeBinaries, new BufferPool(settings.getBufferPoolBytes()), report);
+        }
+        return new VmmVfsSource(report.instrument(nativeVmm), nativeReader);
+    }
+
+    // A directory as input is a mounted MemProcFS file system or a tree extracted from one
+    private boolean isMounted() {
+        try {
+            return Files.isDirectory(Path.of(imagePath));
+        } catch (InvalidPathException ex) {
+            return false;
+        }
+    }
+
+    private ForkJoinPool newWalkPool() {
+        return settings.getWalkThreads() > 1 ? GlobTrie.newWalkPool(settings.getWalkThreads()) : null;
+    }
+
+    private String[] memProcFSArguments(boolean forensic) {
+        List<String> argvMemProcFS = new ArrayList<>();
+        argvMemProcFS.addAll(List.of(
+            "-device", imagePath, 
+            "-disable-python",
+            "-disable-symbolserver"));
+
+        if (forensic) {
+            argvMemProcFS.addAll(List.of("-forensic", "1"));
+
+            if (yaraRulesPath != null && !yaraRulesPath.isBlank()) {
+                argvMemProcFS.addAll(List.of("-forensic-yara-rules", yaraRulesPath));
             }
         }
 
-        traverseAndMatch(pathBuilder.toString(), segmentsToTraverse.toArray(new String[0]), 0, matchedDirectories);
-    
-        return matchedDirectories;
+        if (additionalOptions != null) {
+            argvMemProcFS.addAll(additionalOptions);
+        }
+        return argvMemProcFS.toArray(new String[0]);
+    }
+
+    /**
+     * Also writes the run report to the given file, next to the package.
+     */
+    public void setReportFile(Path reportFile) {
+        this.reportFile = reportFile;
+    }
+
+    /**
+     * Spreads the package over several archive volumes. The output stream
+     * given to the constructor is the first volume, the given streams are
+     * the others.
+     *
+     * @param names file names of all volumes, including the first one
+     */
+    public void setShards(List<String> names, List<OutputStream> additionalOutputStreams) {
+        if (names.size() != additionalOutputStreams.size() + 1) {
+            throw new IllegalArgumentException("Expected " + (additionalOutputStreams.size() + 1) + " shard names: " + names);
+        }
+        this.shardNames = names;
+        this.shardOutputStreams = additionalOutputStreams;
+    }
+
+    private ArchiveWriter createArchiveWriter() {
+        ArchiveFormat format = settings.getArchiveFormat();
+        if (shardOutputStreams.isEmpty()) {
+            return format.createWriter(outputstream);
+        }
+
+        List<ArchiveWriter> writers = new ArrayList<>();
+        writers.add(format.createWriter(outputstream));
+        for (OutputStream shardOutputStream : shardOutputStreams) {
+            writers.add(format.createWriter(shardOutputStream));
+        }
+        return new ShardedArchiveWriter(writers, shardNames, shardQueueBytes());
+    }
+
+    // The volume queues of a sharded package take half of the in-flight budget, the engine keeps the rest
+    private long shardQueueBytes() {
+        return shardOutputStreams.isEmpty() ? 0 : settings.getMaxInFlightBytes() / 2;
+    }
+
+    private PackagerSettings engineSettings() {
+        long queueBytes = shardQueueBytes();
+        if (queueBytes == 0) {
+            return settings;
+        }
+        return new PackagerSettings(settings).setMaxInFlightBytes(settings.getMaxInFlightBytes() - queueBytes);
+    }
+
+    // Progress of the current run
+    RunReport getRunReport() {
+        return runReport;
     }
-    
-    // This method recursively traverses the directories and matches wildcards
-    private void traverseAndMatch(String currentPath, String[] pathSegments, int index, List<String> matchedDirectories) {
 
-        if (index == pathSegments.length) {
-            matchedDirectories.add(currentPath);
+    void setVmmInitializer(BiFunction<String, String[], IVmm> vmmInitializer) {
+        this.vmmInitializer = vmmInitializer;
+    }
+
+    // Written last, so the report covers the whole run
+    private void writeReport(ArchiveWriter archiveWriter, RunReport report) throws IOException {
+        byte[] json = report.toJson();
+        CollectionItem item = new CollectionItem(RunReport.REPORT_NAME, RunReport.REPORT_NAME, true, json.length);
+        int level = settings.getCompressionPolicy().levelFor(RunReport.REPORT_NAME, json.length);
+        archiveWriter.writeEntry(item, CompressedContent.compress(json, level), System.currentTimeMillis());
+
+        if (reportFile != null) {
+            try {
+                Files.write(reportFile, json);
+            } catch (IOException ex) {
+                LOGGER.warn("Error writing run report " + reportFile, ex);
+            }
+        }
+    }
+
+    private static ForensicResultCache.EntryWriter newCacheEntry(ForensicResultCache forensicCache, String fingerprint, List<CollectionRule> forensicRules) {
+        try {
+            return forensicCache.newEntry(fingerprint, forensicRules);
+        } catch (IOException ex) {
+            LOGGER.warn("Forensic results will not be cached", ex);
+            return null;
+        }
+    }
+
+    // With a process filter the per-process rules wait for the process list, which is one of the forensic results
+    private List<CollectionRule> getProcessRules(List<CollectionRule> rules) {
+        if (settings.getProcessFilter() == null) {
+            return List.of();
+        }
+        return rules.stream().filter(rule -> !rule.dependsOnForensic() && rule.isPerProcess()).toList();
+    }
+
+    // Lists \pid\ and \name\ with only the processes selected by the filter, all of them if there is no process list.
+    // A filter that can not be applied is recorded in the report, if given
+    private Function<String, Map<String, Vmm_VfsListEntry>> processLister(List<CollectionRule> processRules, RunReport report) {
+        if (processRules.isEmpty()) {
+            return listingCache::list;
+        }
+
+        ProcessFilter filter = settings.getProcessFilter();
+        ProcessList processes;
+        try {
+            // Read once, the walk threads then list the directories of the selected processes in parallel
+            processes = ProcessList.read(source, listingCache);
+        } catch (IOException ex) {
+            LOGGER.warn("Error reading the process list", ex);
+            processes = null;
+        }
+        if (processes == null) {
+            String warning = "No process list in " + ProcessList.PROCESS_CSV_DIRECTORY + ", the process filter is not applied and all processes are collected";
+            LOGGER.warn(warning);
+            System.out.println(warning);
+            if (report != null) {
+                report.addWarning(warning);
+            }
+            return listingCache::list;
+        }
+
+        Set<Integer> pids = processes.select(filter);
+        System.out.println("Process filter " + filter + ": collecting " + pids.size() + " of " + processes.size() + " processes");
+        return path -> ProcessList.restrict(path, listingCache.list(path), pids);
+    }
+
+    // Resolves the rules against the VFS and queues the matched entries for collection
+    private void collect(CollectionEngine engine, List<CollectionRule> rules, Function<String, Map<String, Vmm_VfsListEntry>> lister, Deadline deadline) {
+        if (!deadline.isSet()) {
+            // Entries are queued as they are found, so reading overlaps with the walk
+            GlobTrie.compile(rules).walk(lister, (parentPath, fileListEntry) -> addToCollection(engine, parentPath, fileListEntry), walkPool, settings.getWalkForkDepth());
+            engine.flush();
+            preallocate();
             return;
         }
-    
-        String currentSegment = pathSegments[index];
-    
-        // List directories at the current path
-        List<Vmm_VfsListEntry> directoryListing = vfsList(currentPath);
-
-        // Handle the double wildcard '**' for recursive directory matching
-        if (currentSegment.equals("**")) {
-            // Match the current directory and all subdirectories recursively
-            traverseAndMatch(currentPath, pathSegments, index + 1, matchedDirectories);
-
-            // Recursively traverse through all subdirectories
-            for (Vmm_VfsListEntry entry : directoryListing) {
-                if (!entry.isFile) {
-                    String nextPath = currentPath + entry.name + "\\";
-                    traverseAndMatch(nextPath, pathSegments, index, matchedDirectories); // Continue traversing with the same '**'
-                }
+
+        // Triage: resolve everything first, then queue by priority and the cheapest files first
+        Function<String, Map<String, Vmm_VfsListEntry>> boundedLister = path -> {
+            if (deadline.isExpired()) {
+                engine.skipListing(path);
+                return Map.of();
             }
-        } else if (containsWildcard(currentSegment)) {
-            // Handle other wildcards (*, ?)
-            String regex = wildcardToRegex(currentSegment);
-            Pattern compiledPattern = Pattern.compile(regex);
-    
-            for (Vmm_VfsListEntry entry : directoryListing) {
-                if (!entry.isFile && compiledPattern.matcher(entry.name).matches()) {
-                    String nextPath = currentPath + entry.name + "\\";
-                    traverseAndMatch(nextPath, pathSegments, index + 1, matchedDirectories);
-                }
+            return lister.apply(path);
+        };
+        Map<Integer, List<CollectionRule>> rulesByPriority = rules.stream()
+                .collect(Collectors.groupingBy(CollectionRule::priority, TreeMap::new, Collectors.toList()));
+        List<Match> matches = new ArrayList<>();
+        for (Map.Entry<Integer, List<CollectionRule>> level : rulesByPriority.entrySet()) {
+            int priority = level.getKey();
+            GlobTrie.compile(level.getValue()).walk(boundedLister, (parentPath, fileListEntry) -> matches.add(new Match(parentPath, fileListEntry, priority)), walkPool, settings.getWalkForkDepth());
+        }
+        if (deadline.isExpired()) {
+            LOGGER.warn("Deadline reached while resolving the rules, directories not listed by then are not collected");
+        }
+
+        // The sort is stable, entries of the same priority and size stay in walk order
+        matches.sort(Comparator.comparingInt(Match::priority).thenComparingLong(match -> match.fileListEntry().size));
+        for (Match match : matches) {
+            CollectionItem item = newItem(match.parentPath(), match.fileListEntry());
+            if (item == null) {
+                continue;
             }
-        } else {
-            // No wildcard, traverse the exact directory
-            for (Vmm_VfsListEntry entry : directoryListing) {
-                if (!entry.isFile && entry.name.equals(currentSegment)) {
-                    String nextPath = currentPath + entry.name + "\\";
-                    traverseAndMatch(nextPath, pathSegments, index + 1, matchedDirectories);
-                }
+            if (deadline.isExpired()) {
+                engine.skip(item);
+            } else {
+                engine.submit(item);
             }
         }
+        engine.flush();
+        preallocate();
     }
-    
-    // This method is reused to handle wildcards in filenames
-    private List<Vmm_VfsListEntry> matchWildcards(String pattern, List<Vmm_VfsListEntry> directoryListing) {
-        String regex = wildcardToRegex(pattern);
-        Pattern compiledPattern = Pattern.compile(regex);
-    
-        return directoryListing.stream()
-                .filter(entry -> compiledPattern.matcher(entry.name).matches())
-                .collect(Collectors.toList());
+
+    // Grows the package file to the planned size, it is cut back to the written size when closed
+    private void preallocate() {
+        // Each shard only gets part of the package, preallocating the full size for it would be a waste
+        if (settings.isPreallocate() && shardOutputStreams.isEmpty() && outputstream instanceof PackageFile packageFile) {
+            packageFile.preallocate(plannedBytes);
+        }
     }
-    
-    // This method converts a wildcard pattern into a regular expression
-    private String wildcardToRegex(String wildcard) {
-        StringBuilder regex = new StringBuilder("^");
-        for (int i = 0; i < wildcard.length(); i++) {
-            char c = wildcard.charAt(i);
-            if (c == '*' && i + 1 < wildcard.length() && wildcard.charAt(i + 1) == '*') {
-                // Handle '**' for recursive directory matching
-                regex.append(".*");
-                i++; // Skip the next '*'
-            } else {
-                switch (c) {
-                    case '*':
-                        regex.append("[^\\\\]*"); // Match any characters except directory separators
-                        break;
-                    case '?':
-                        regex.append("[^\\\\]"); // Match exactly one character, except directory separators
-                        break;
-                    default:
-                        regex.append(Pattern.quote(String.valueOf(c)));
-                        break;
-                }
-            }
+
+    private void addToCollection(CollectionEngine engine, String parentPath, Vmm_VfsListEntry fileListEntry) {
+        CollectionItem item = newItem(parentPath, fileListEntry);
+        if (item != null) {
+            // The engine reads and writes the entry in the background
+            engine.submit(item);
         }
-        regex.append("$");
-        return regex.toString();
     }
-    
-    private void addToZip(ZipOutputStream zipOutputStream, String parentPath, Vmm_VfsListEntry fileListEntry) throws IOException {
+
+    // Returns null if the entry has been collected already
+    private CollectionItem newItem(String parentPath, Vmm_VfsListEntry fileListEntry) {
 
         String path = parentPath + fileListEntry.name;
         String zipPath = getZipPath(path);
@@ -345,19 +636,14 @@ public class MemProcFSPackager {
         // Check if the entry has already been added
         if (addedEntries.contains(zipPath)) {
             LOGGER.warn("Duplicate entry skipped: " + zipPath);
-            return; // Skip adding the duplicate entry
+            return null; // Skip adding the duplicate entry
         }
-    
-        ZipEntry zipEntry = new ZipEntry(zipPath);
-        zipOutputStream.putNextEntry(zipEntry);
-        if (fileListEntry.isFile) {
-            try (InputStream inputStream = new VFSInputStream(path, (int) fileListEntry.size, vmm)) {
-                inputStream.transferTo(zipOutputStream);
-            }
-        } 
-        zipOutputStream.closeEntry();
 
         addedEntries.add(zipPath);
+        if (fileListEntry.isFile) {
+            plannedBytes += fileListEntry.size;
+        }
+        return new CollectionItem(path, zipPath, fileListEntry.isFile, fileListEntry.size);
     }
 
     private String getZipPath(String path) {
@@ -370,50 +656,30 @@ public class MemProcFSPackager {
         return zipPath;
     }
 
-    private List<Vmm_VfsListEntry> vfsList(String path) {
-        try {
-
-            if (path.startsWith("\\registry\\") && path.endsWith("\\")) {
-                // workaround for issue: https://github.com/ufrisk/MemProcFS/issues/321
-                path = path.substring(0, path.length() - 1);
-            }
-
-            List<Vmm_VfsListEntry> directoryListing = vmm.vfsList(path);
-            return directoryListing;
-        } catch (VmmException ex) {
-            LOGGER.error("Error listing files for path: " + path, ex);
-        }
-
-        return List.of();
-    }
-
-    private List<FileToCollect> getFilesToCollect() {
-        List<FileToCollect> filesToCollect = new ArrayList<>();
+    List<CollectionRule> getFilesToCollect() {
+        List<CollectionRule> filesToCollect = new ArrayList<>();
 
-        try (BufferedReader reader = new BufferedReader(
-                new InputStreamReader(getClass().getResourceAsStream("/files_to_collect.txt")))) {
+        // An external rules file replaces the bundled one
+        try (BufferedReader reader = settings.getRulesFile() != null
+                ? Files.newBufferedReader(settings.getRulesFile())
+                : new BufferedReader(new InputStreamReader(getClass().getResourceAsStream("/files_to_collect.txt")))) {
 
             String line;
+            int priority = CollectionRule.DEFAULT_PRIORITY;
             while ((line = reader.readLine()) != null) {
                 line = line.trim();
-                if (line.isEmpty()
-                        || (line.startsWith("##") && line.endsWith("##"))) {
+                if (line.isEmpty()) {
                     continue;
                 }
 
-                int lastSeparatorIndex = line.lastIndexOf('\\');
-                if (lastSeparatorIndex == -1) {
-                    filesToCollect.add(new FileToCollect("", line));
-                } else {
-                    String parentPath = line.substring(0, lastSeparatorIndex + 1);
-                    String fileName = line.substring(lastSeparatorIndex + 1);
-
-                    if ("**".equals(fileName)) {
-                        filesToCollect.add(new FileToCollect(line, "*"));
-                    } else {
-                        filesToCollect.add(new FileToCollect(parentPath, fileName));
-                    }
+                // Section headers set the priority of the rules below them
+                if (line.startsWith("##") && line.endsWith("##")) {
+                    Matcher matcher = SECTION_PRIORITY.matcher(line);
+                    priority = matcher.find() ? Integer.parseInt(matcher.group(1)) : CollectionRule.DEFAULT_PRIORITY;
+                    continue;
                 }
+
+                filesToCollect.add(new CollectionRule(line, priority));
             }
 
         } catch (IOException ex) {
@@ -423,7 +689,7 @@ public class MemProcFSPackager {
         return filesToCollect;
     }
 
-    private record FileToCollect(String parentPath, String name) {
+    private record Match(String parentPath, Vmm_VfsListEntry fileListEntry, int priority) {
 
     }
 }
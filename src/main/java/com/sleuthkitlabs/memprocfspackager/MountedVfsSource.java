@@ -0,0 +1,133 @@
+/*
+ * memprocfs_packager
+ * 
+ * Copyright (C) 2024  Sleuth Kit Labs
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.sleuthkitlabs.memprocfspackager;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import vmm.entry.Vmm_VfsListEntry;
+
+/**
+ * Lists and reads the VFS from a local directory: a mounted MemProcFS file
+ * system, a tree extracted from one, or a forensic result cache entry.
+ *
+ * Files are read through memory mappings, so their content is copied once,
+ * from the page cache into the entry. Small files are read with a plain
+ * read, mapping them would cost more than it saves. MemProcFS itself is not
+ * used. Symbolic links to directories are not followed.
+ */
+class MountedVfsSource implements VfsSource {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(MountedVfsSource.class);
+
+    private final Path root;
+
+    MountedVfsSource(Path root) {
+        this.root = root;
+    }
+
+    /**
+     * Maps a VFS path to the corresponding path below a directory.
+     */
+    static Path resolve(Path root, String vfsPath) {
+        String relativePath = vfsPath.replace("\\", "/");
+        while (relativePath.startsWith("/")) {
+            relativePath = relativePath.substring(1);
+        }
+        return relativePath.isEmpty() ? root : root.resolve(relativePath);
+    }
+
+    @Override
+    public Map<String, Vmm_VfsListEntry> list(String path) {
+        Path directory;
+        try {
+            directory = resolve(root, path);
+        } catch (InvalidPathException ex) {
+            LOGGER.warn("Can not map VFS path to " + root + ": " + path);
+            return null;
+        }
+        if (!Files.isDirectory(directory)) {
+            return null;
+        }
+
+        // Sorted, directory order depends on the file system
+        List<Path> children;
+        try (Stream<Path> stream = Files.list(directory)) {
+            children = stream.sorted().collect(Collectors.toList());
+        } catch (IOException ex) {
+            LOGGER.error("Error listing files for path: " + directory, ex);
+            return null;
+        }
+
+        Map<String, Vmm_VfsListEntry> listing = new LinkedHashMap<>();
+        for (Path child : children) {
+            try {
+                BasicFileAttributes attributes = Files.readAttributes(child, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+                if (attributes.isSymbolicLink()) {
+                    // Links to files are read like the file, links to directories could form a loop and are skipped
+                    attributes = Files.readAttributes(child, BasicFileAttributes.class);
+                    if (!attributes.isRegularFile()) {
+                        LOGGER.debug("Not following link " + child);
+                        continue;
+                    }
+                }
+                Vmm_VfsListEntry entry = new Vmm_VfsListEntry();
+                entry.name = child.getFileName().toString();
+                entry.isFile = attributes.isRegularFile();
+                entry.size = entry.isFile ? attributes.size() : 0;
+                listing.put(entry.name, entry);
+            } catch (IOException ex) {
+                LOGGER.warn("Error reading attributes of " + child + ": " + ex.getMessage());
+            }
+        }
+        return Collections.unmodifiableMap(listing);
+    }
+
+    // Local reads are not cut short by the deadline
+    @Override
+    public InputStream open(String path, long size, Deadline deadline) throws IOException {
+        try {
+            Path file = resolve(root, path);
+            if (size <= CollectionEngine.SMALL_FILE_MAX_BYTES) {
+                return Files.newInputStream(file);
+            }
+            return new MappedFileInputStream(file, size);
+        } catch (InvalidPathException ex) {
+            throw new IOException("Can not map VFS path to " + root + ": " + path, ex);
+        }
+    }
+
+    @Override
+    public void close() {
+    }
+}
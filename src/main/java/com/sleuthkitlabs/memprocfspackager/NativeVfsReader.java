@@ -0,0 +1,188 @@
+/*
+ * memprocfs_packager
+ * 
+ * Copyright (C) 2024  Sleuth Kit Labs
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.sleuthkitlabs.memprocfspackager;
+
+import java.lang.reflect.Field;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.sun.jna.Memory;
+import com.sun.jna.Native;
+import com.sun.jna.NativeLibrary;
+import com.sun.jna.Pointer;
+
+import vmm.IVmm;
+import vmm.VmmException;
+
+/**
+ * Reads VFS files straight into caller-supplied native buffers by calling
+ * VMMDLL_VfsReadU in the MemProcFS library.
+ *
+ * IVmm.vfsRead returns a new byte array for every call, which adds up to a
+ * lot of garbage when gigabytes are collected. Reading into pooled off-heap
+ * buffers instead keeps the heap out of the read path. vmmjava does not
+ * expose this, so the native VMM handle is taken from the IVmm
+ * implementation by reflection. When that is not possible, for example with a
+ * different vmmjava version, {@link #bind} returns null and the callers use
+ * IVmm.vfsRead as before.
+ */
+class NativeVfsReader {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(NativeVfsReader.class);
+
+    private static final int STATUS_SUCCESS = 0;
+
+    private static final int STATUS_END_OF_FILE = 0xC0000011;
+
+    // Name of the native handle field in the vmmjava IVmm implementation
+    private static final String HANDLE_FIELD_NAME = "hVMM";
+
+    private static boolean registered = false;
+
+    private final Pointer handle;
+    private final BufferPool bufferPool;
+    private final RunReport report;
+
+    // Receives the number of bytes read, one per thread so reads allocate nothing
+    private final ThreadLocal<Memory> bytesRead = ThreadLocal.withInitial(() -> new Memory(4));
+
+    NativeVfsReader(Pointer handle, BufferPool bufferPool, RunReport report) {
+        this.handle = handle;
+        this.bufferPool = bufferPool;
+        this.report = report;
+    }
+
+    /**
+     * Binds to the MemProcFS library behind the IVmm. Returns null if native
+     * reads are not possible.
+     */
+    static NativeVfsReader bind(IVmm vmm, String pathToNativeBinaries, BufferPool bufferPool, RunReport report) {
+        try {
+            Pointer handle = findHandle(vmm);
+            if (handle == null) {
+                LOGGER.info("No native VMM handle in " + vmm.getClass().getName() + ", reading through IVmm.vfsRead");
+                return null;
+            }
+
+            register(pathToNativeBinaries);
+            return new NativeVfsReader(handle, bufferPool, report);
+        } catch (LinkageError | RuntimeException | ReflectiveOperationException ex) {
+            LOGGER.info("Native VFS reads not available, reading through IVmm.vfsRead: " + ex);
+            return null;
+        }
+    }
+
+    BufferPool getBufferPool() {
+        return bufferPool;
+    }
+
+    /**
+     * Encodes a VFS path for {@link #read}, once per file.
+     */
+    static FileName fileName(String path) {
+        byte[] utf8 = path.getBytes(StandardCharsets.UTF_8);
+        byte[] terminated = new byte[utf8.length + 1];
+        System.arraycopy(utf8, 0, terminated, 0, utf8.length);
+        return new FileName(path, terminated);
+    }
+
+    /**
+     * Reads up to size bytes at the offset into the buffer.
+     *
+     * @return the number of bytes read, 0 at the end of the file
+     */
+    int read(FileName file, long offset, Memory buffer, int size) {
+        Memory count = bytesRead.get();
+        count.setInt(0, 0);
+
+        VfsCallEvent event = new VfsCallEvent();
+        event.begin();
+        long start = System.nanoTime();
+        int status = VmmLibrary.VMMDLL_VfsReadU(handle, file.utf8(), buffer, size, count, offset);
+        int read = count.getInt(0);
+        report.recordNativeRead(System.nanoTime() - start, read);
+
+        event.end();
+        if (event.shouldCommit()) {
+            event.call = "VMMDLL_VfsReadU";
+            event.path = file.path();
+            event.bytes = read;
+            event.commit();
+        }
+
+        if (status == STATUS_END_OF_FILE) {
+            return 0;
+        }
+        if (status != STATUS_SUCCESS) {
+            throw new VmmException("VMMDLL_VfsReadU failed with status 0x" + Integer.toHexString(status) + ": " + file.path());
+        }
+        return read;
+    }
+
+    private static Pointer findHandle(IVmm vmm) throws IllegalAccessException {
+        for (Class<?> type = vmm.getClass(); type != null; type = type.getSuperclass()) {
+            for (Field field : type.getDeclaredFields()) {
+                if (HANDLE_FIELD_NAME.equals(field.getName()) && Pointer.class.isAssignableFrom(field.getType())) {
+                    field.setAccessible(true);
+                    return (Pointer) field.get(vmm);
+                }
+            }
+        }
+        return null;
+    }
+
+    // The library is already loaded by vmmjava, this only binds the function once per process
+    private static synchronized void register(String pathToNativeBinaries) {
+        if (registered) {
+            return;
+        }
+
+        NativeLibrary library = null;
+        for (String name : new String[]{System.mapLibraryName("vmm"), "vmm.dll", "vmm.so"}) {
+            Path candidate = Path.of(pathToNativeBinaries, name);
+            if (Files.exists(candidate)) {
+                library = NativeLibrary.getInstance(candidate.toString());
+                break;
+            }
+        }
+        if (library == null) {
+            library = NativeLibrary.getInstance("vmm");
+        }
+
+        Native.register(VmmLibrary.class, library);
+        registered = true;
+    }
+
+    /**
+     * A VFS path together with its NUL terminated UTF-8 encoding.
+     */
+    record FileName(String path, byte[] utf8) {
+
+    }
+
+    // JNA direct mapping, which passes the arguments without boxing them
+    private static final class VmmLibrary {
+
+        static native int VMMDLL_VfsReadU(Pointer hVMM, byte[] uszFileName, Pointer pb, int cb, Pointer pcbRead, long cbOffset);
+    }
+}
@@ -0,0 +1,81 @@
+/*
+ * memprocfs_packager
+ * 
+ * Copyright (C) 2024  Sleuth Kit Labs
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.sleuthkitlabs.memprocfspackager;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import vmm.entry.Vmm_VfsListEntry;
+
+/**
+ * Serves one top level directory from another source, such as \forensic\
+ * from the forensic result cache, and everything else from the base source.
+ */
+class OverlayVfsSource implements VfsSource {
+
+    private final VfsSource base;
+    private final VfsSource overlay;
+
+    // Top level directory served by the overlay, with leading and trailing backslash
+    private final String prefix;
+    private final String directoryName;
+
+    OverlayVfsSource(VfsSource base, String prefix, VfsSource overlay) {
+        this.base = base;
+        this.prefix = prefix;
+        this.overlay = overlay;
+        this.directoryName = prefix.substring(1, prefix.length() - 1);
+    }
+
+    @Override
+    public Map<String, Vmm_VfsListEntry> list(String path) {
+        if (path.startsWith(prefix)) {
+            return overlay.list(path);
+        }
+
+        Map<String, Vmm_VfsListEntry> listing = base.list(path);
+        if ("\\".equals(path) && (listing == null || !listing.containsKey(directoryName))) {
+            // The base source may not have the directory, wildcard rules still have to reach it
+            Map<String, Vmm_VfsListEntry> withOverlay = listing != null ? new LinkedHashMap<>(listing) : new LinkedHashMap<>();
+            Vmm_VfsListEntry directory = new Vmm_VfsListEntry();
+            directory.name = directoryName;
+            directory.isFile = false;
+            withOverlay.put(directoryName, directory);
+            return Collections.unmodifiableMap(withOverlay);
+        }
+        return listing;
+    }
+
+    @Override
+    public InputStream open(String path, long size, Deadline deadline) throws IOException {
+        return path.startsWith(prefix) ? overlay.open(path, size, deadline) : base.open(path, size, deadline);
+    }
+
+    @Override
+    public void close() {
+        try {
+            overlay.close();
+        } finally {
+            base.close();
+        }
+    }
+}
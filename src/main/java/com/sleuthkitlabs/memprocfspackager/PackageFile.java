@@ -0,0 +1,299 @@
+/*
+ * memprocfs_packager
+ * 
+ * Copyright (C) 2024  Sleuth Kit Labs
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.sleuthkitlabs.memprocfspackager;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.NonReadableChannelException;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.Path;
+import java.util.Objects;
+
+/**
+ * The package file, written through a FileChannel.
+ *
+ * Writes are gathered in a large direct buffer and handed to the channel one
+ * full buffer at a time, so the file system sees few large writes on 4 KB
+ * boundaries instead of many small ones. After the ZIP writer seeks, the next
+ * buffer is cut short so that it ends on a boundary again. The file can be
+ * preallocated to the
+ * planned size of the package, and is cut back to the size actually written
+ * when it is closed.
+ *
+ * {@link #seekableChannel} gives the ZIP writer a view it can seek in, so it
+ * can fill in the sizes and CRC of streamed entries after the fact and choose
+ * Zip64 per entry once the size is known.
+ *
+ * Writing is not thread safe, only {@link #preallocate} may be called from
+ * another thread.
+ */
+public class PackageFile extends OutputStream {
+
+    static final int BUFFER_SIZE = 4 * 1024 * 1024;
+
+    // Full buffers are written so that they end on a multiple of this
+    static final int ALIGNMENT = 4096;
+
+    // PERIODIC syncs after this many bytes have been written
+    static final long SYNC_INTERVAL_BYTES = 256L * 1024 * 1024;
+
+    private final RandomAccessFile file;
+    private final FileChannel channel;
+    private final ByteBuffer buffer;
+    private final int alignment;
+    private final FsyncPolicy fsyncPolicy;
+
+    // File offset of the first byte in the buffer
+    private long bufferStart = 0;
+    // Highest offset flushed to the channel
+    private long end = 0;
+    // Length the file was grown to by preallocation
+    private long allocated = 0;
+    private long unsyncedBytes = 0;
+    private boolean closed = false;
+
+    // Size requested by preallocate, applied by the writing thread on its next flush
+    private volatile long requestedAllocation = 0;
+
+    public PackageFile(Path path, FsyncPolicy fsyncPolicy) throws IOException {
+        this(path, fsyncPolicy, BUFFER_SIZE);
+    }
+
+    PackageFile(Path path, FsyncPolicy fsyncPolicy, int bufferSize) throws IOException {
+        this.file = new RandomAccessFile(path.toFile(), "rw");
+        this.channel = file.getChannel();
+        this.buffer = ByteBuffer.allocateDirect(bufferSize);
+        // Small test buffers are aligned to their own size
+        this.alignment = bufferSize % ALIGNMENT == 0 ? ALIGNMENT : bufferSize;
+        this.fsyncPolicy = fsyncPolicy;
+        try {
+            // Overwrite, same as FileOutputStream
+            channel.truncate(0);
+        } catch (IOException ex) {
+            file.close();
+            throw ex;
+        }
+    }
+
+    /**
+     * Grows the file to the given size ahead of time, so the file system can
+     * allocate it in one piece. Sizes below what has been allocated or
+     * written already are ignored. May be called from any thread, the file
+     * is grown by the writing thread on its next flush.
+     */
+    public void preallocate(long bytes) {
+        if (bytes > requestedAllocation) {
+            requestedAllocation = bytes;
+        }
+    }
+
+    /**
+     * Returns a view of this file that the ZIP writer can seek in. Closing
+     * the view closes the file.
+     */
+    SeekableByteChannel seekableChannel() {
+        return new Channel();
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        ensureOpen();
+        if (!buffer.hasRemaining()) {
+            flushBuffer();
+        }
+        buffer.put((byte) b);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        Objects.checkFromIndexSize(off, len, b.length);
+        write(ByteBuffer.wrap(b, off, len));
+    }
+
+    private int write(ByteBuffer src) throws IOException {
+        ensureOpen();
+        int written = src.remaining();
+        while (src.hasRemaining()) {
+            if (buffer.position() == 0 && src.remaining() >= buffer.limit()) {
+                // Larger than the buffer, copying it first would not save any writes. Written up to the
+                // last boundary it covers, the rest goes into the buffer.
+                int length = src.remaining() - (int) ((bufferStart + src.remaining()) % alignment);
+                writeFully(src.slice(src.position(), length), bufferStart);
+                src.position(src.position() + length);
+                bufferStart += length;
+                end = Math.max(end, bufferStart);
+                align();
+                continue;
+            }
+            int length = Math.min(src.remaining(), buffer.remaining());
+            buffer.put(buffer.position(), src, src.position(), length);
+            buffer.position(buffer.position() + length);
+            src.position(src.position() + length);
+            if (!buffer.hasRemaining()) {
+                flushBuffer();
+            }
+        }
+        return written;
+    }
+
+    @Override
+    public void flush() throws IOException {
+        ensureOpen();
+        flushBuffer();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        try {
+            flushBuffer();
+            if (allocated > end) {
+                channel.truncate(end);
+            }
+            if (fsyncPolicy != FsyncPolicy.NONE) {
+                channel.force(true);
+            }
+        } finally {
+            closed = true;
+            file.close();
+        }
+    }
+
+    private long position() {
+        return bufferStart + buffer.position();
+    }
+
+    private long size() {
+        return Math.max(end, position());
+    }
+
+    private void seek(long position) throws IOException {
+        flushBuffer();
+        bufferStart = position;
+        align();
+    }
+
+    // Limits the buffer so that a full buffer ends on a boundary
+    private void align() {
+        buffer.limit(buffer.capacity() - (int) (bufferStart % alignment));
+    }
+
+    private void flushBuffer() throws IOException {
+        if (buffer.position() > 0) {
+            buffer.flip();
+            int length = buffer.remaining();
+            writeFully(buffer, bufferStart);
+            buffer.clear();
+            bufferStart += length;
+            end = Math.max(end, bufferStart);
+            align();
+        }
+
+        long requested = requestedAllocation;
+        if (requested > allocated && requested > end) {
+            file.setLength(requested);
+            allocated = requested;
+        }
+    }
+
+    private void writeFully(ByteBuffer src, long position) throws IOException {
+        long length = src.remaining();
+        while (src.hasRemaining()) {
+            position += channel.write(src, position);
+        }
+
+        unsyncedBytes += length;
+        if (fsyncPolicy == FsyncPolicy.PERIODIC && unsyncedBytes >= SYNC_INTERVAL_BYTES) {
+            channel.force(false);
+            unsyncedBytes = 0;
+        }
+    }
+
+    private void ensureOpen() throws IOException {
+        if (closed) {
+            throw new ClosedChannelException();
+        }
+    }
+
+    // Write-only view used by ZipArchiveOutputStream
+    private class Channel implements SeekableByteChannel {
+
+        @Override
+        public int read(ByteBuffer dst) {
+            throw new NonReadableChannelException();
+        }
+
+        @Override
+        public int write(ByteBuffer src) throws IOException {
+            return PackageFile.this.write(src);
+        }
+
+        @Override
+        public long position() throws IOException {
+            ensureOpen();
+            return PackageFile.this.position();
+        }
+
+        @Override
+        public SeekableByteChannel position(long newPosition) throws IOException {
+            ensureOpen();
+            if (newPosition < 0) {
+                throw new IllegalArgumentException("Negative position: " + newPosition);
+            }
+            seek(newPosition);
+            return this;
+        }
+
+        @Override
+        public long size() throws IOException {
+            ensureOpen();
+            return PackageFile.this.size();
+        }
+
+        @Override
+        public SeekableByteChannel truncate(long size) throws IOException {
+            ensureOpen();
+            flushBuffer();
+            if (size < end) {
+                channel.truncate(size);
+                end = size;
+                allocated = Math.min(allocated, size);
+            }
+            bufferStart = Math.min(bufferStart, size);
+            align();
+            return this;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return !closed;
+        }
+
+        @Override
+        public void close() throws IOException {
+            PackageFile.this.close();
+        }
+    }
+}
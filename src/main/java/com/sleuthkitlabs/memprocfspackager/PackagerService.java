@@ -0,0 +1,584 @@
+/*
+ * memprocfs_packager
+ * 
+ * Copyright (C) 2024  Sleuth Kit Labs
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.sleuthkitlabs.memprocfspackager;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Keeps one warm process that packages images on request, so each image
+ * does not pay for starting the JVM and loading the MemProcFS library.
+ *
+ * Jobs are submitted over HTTP and run inside this process, a limited number
+ * at a time. The service only listens on the loopback interface. Every
+ * request has to carry the access token printed at startup in an
+ * Authorization: Bearer header and a Host header naming the loopback address
+ * and port. Requests with an Origin header are rejected, so web pages in a
+ * browser can not reach the service, not even through DNS rebinding.
+ *
+ * <pre>
+ * POST   /jobs       submit a job: input, output and optionally rules, format, deadline, processes and force
+ * GET    /jobs       status of all jobs
+ * GET    /jobs/{id}  status and progress of a job
+ * DELETE /jobs/{id}  cancel a job that has not started yet
+ * </pre>
+ *
+ * Parameters are sent as a JSON object, responses are JSON.
+ */
+class PackagerService {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(PackagerService.class);
+
+    static final int DEFAULT_PORT = 7450;
+
+    private static final String JOBS_PATH = "/jobs";
+
+    private static final int TOKEN_BYTES = 32;
+
+    // Finished jobs kept for status queries, the oldest are forgotten first
+    private static final int MAX_FINISHED_JOBS = 1000;
+
+    enum Status {
+        QUEUED,
+        RUNNING,
+        SUCCEEDED,
+        FAILED,
+        CANCELLED
+    }
+
+    private final HttpServer server;
+    private final ExecutorService executor;
+    private final int concurrency;
+    private final String strPathToNativeBinaries;
+    private final String yaraRulesPath;
+    private final List<String> additionalOptions;
+    private final PackagerSettings settings;
+    private final Map<Long, Job> jobs = new ConcurrentHashMap<>();
+    private final AtomicLong nextId = new AtomicLong(1);
+
+    // Required in the Authorization header of every request
+    private final String token;
+
+    PackagerService(int port, int concurrency, String strPathToNativeBinaries, String yaraRulesPath, List<String> additionalOptions, PackagerSettings settings) throws IOException {
+        this(port, concurrency, newJobExecutor(concurrency), strPathToNativeBinaries, yaraRulesPath, additionalOptions, settings);
+    }
+
+    // Jobs run on the given executor, tests use it to hold jobs in the queue
+    PackagerService(int port, int concurrency, ExecutorService executor, String strPathToNativeBinaries, String yaraRulesPath, List<String> additionalOptions, PackagerSettings settings) throws IOException {
+        this.concurrency = concurrency;
+        this.executor = executor;
+        this.strPathToNativeBinaries = strPathToNativeBinaries;
+        this.yaraRulesPath = yaraRulesPath;
+        this.additionalOptions = additionalOptions;
+        this.settings = settings;
+
+        byte[] tokenBytes = new byte[TOKEN_BYTES];
+        new SecureRandom().nextBytes(tokenBytes);
+        this.token = Base64.getUrlEncoder().withoutPadding().encodeToString(tokenBytes);
+
+
+        this.server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        this.server.createContext(JOBS_PATH, this::handle);
+    }
+
+    private static ExecutorService newJobExecutor(int concurrency) {
+        AtomicInteger threadNumber = new AtomicInteger();
+        return Executors.newFixedThreadPool(concurrency, runnable -> new Thread(runnable, "packager-job-" + threadNumber.incrementAndGet()));
+    }
+
+    void start() {
+        server.start();
+        System.out.println("Packager service listening on http://localhost:" + getPort() + JOBS_PATH + ", " + concurrency + " jobs at a time");
+        System.out.println("Access token: " + token);
+    }
+
+    String getToken() {
+        return token;
+    }
+
+    int getPort() {
+        return server.getAddress().getPort();
+    }
+
+    /**
+     * Stops accepting requests and interrupts running jobs.
+     */
+    void stop() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try {
+            String path = exchange.getRequestURI().getPath();
+            String method = exchange.getRequestMethod();
+
+            String rejection = checkRequest(exchange);
+            if (rejection != null) {
+                LOGGER.warn("Rejected request " + method + " " + path + ": " + rejection);
+                respond(exchange, "Invalid access token".equals(rejection) ? 401 : 403, errorJson(rejection));
+                return;
+            }
+
+            if (JOBS_PATH.equals(path) || (JOBS_PATH + "/").equals(path)) {
+                switch (method) {
+                    case "GET" -> respond(exchange, 200, jobsJson());
+                    case "POST" -> submit(exchange);
+                    default -> respond(exchange, 405, errorJson("Method not allowed: " + method));
+                }
+                return;
+            }
+
+            Job job = findJob(path.substring(JOBS_PATH.length() + 1));
+            if (job == null) {
+                respond(exchange, 404, errorJson("Job not found: " + path));
+                return;
+            }
+            switch (method) {
+                case "GET" -> respond(exchange, 200, job.toJson());
+                case "DELETE" -> {
+                    if (job.cancel()) {
+                        respond(exchange, 200, job.toJson());
+                    } else {
+                        respond(exchange, 409, errorJson("Job " + job.id + " has already started"));
+                    }
+                }
+                default -> respond(exchange, 405, errorJson("Method not allowed: " + method));
+            }
+        } catch (RuntimeException ex) {
+            LOGGER.error("Error handling request " + exchange.getRequestURI(), ex);
+            respond(exchange, 500, errorJson(String.valueOf(ex.getMessage())));
+        } finally {
+            exchange.close();
+        }
+    }
+
+    // Returns why the request is rejected, null if it is accepted
+    private String checkRequest(HttpExchange exchange) {
+        Headers headers = exchange.getRequestHeaders();
+        if (headers.containsKey("Origin")) {
+            return "Requests from web pages are not accepted";
+        }
+
+        String host = headers.getFirst("Host");
+        if (host == null || !isLoopbackHost(host.trim().toLowerCase(Locale.ROOT))) {
+            return "Host must be the loopback address and port of the service: " + host;
+        }
+
+        String authorization = headers.getFirst("Authorization");
+        String expected = "Bearer " + token;
+        if (authorization == null || !MessageDigest.isEqual(authorization.trim().getBytes(StandardCharsets.UTF_8), expected.getBytes(StandardCharsets.UTF_8))) {
+            return "Invalid access token";
+        }
+        return null;
+    }
+
+    private boolean isLoopbackHost(String host) {
+        String port = ":" + getPort();
+        return host.equals("localhost" + port) || host.equals("127.0.0.1" + port) || host.equals("[::1]" + port);
+    }
+
+    private void submit(HttpExchange exchange) throws IOException {
+        String contentType = exchange.getRequestHeaders().getFirst("Content-Type");
+        if (contentType == null || !contentType.trim().toLowerCase(Locale.ROOT).startsWith("application/json")) {
+            respond(exchange, 415, errorJson("Content-Type must be application/json"));
+            return;
+        }
+
+        Job job;
+        try {
+            Map<String, String> parameters;
+            try (InputStream body = exchange.getRequestBody()) {
+                parameters = parseJson(new String(body.readAllBytes(), StandardCharsets.UTF_8));
+            }
+            job = newJob(parameters);
+        } catch (IllegalArgumentException ex) {
+            respond(exchange, 400, errorJson(ex.getMessage()));
+            return;
+        }
+
+        Job conflict;
+        synchronized (jobs) {
+            // Two jobs writing the same package would corrupt it
+            conflict = findActiveJob(job.output);
+            if (conflict == null) {
+                // The job is only published once it can be cancelled
+                job.future = executor.submit(() -> run(job));
+                jobs.put(job.id, job);
+            }
+        }
+        if (conflict != null) {
+            respond(exchange, 409, errorJson("Job " + conflict.id + " is already writing " + conflict.output));
+            return;
+        }
+        removeOldJobs();
+
+        LOGGER.info("Queued job " + job.id + ": " + job.input + " -> " + job.output);
+        respond(exchange, 201, job.toJson());
+    }
+
+    private Job newJob(Map<String, String> parameters) {
+        String input = parameters.get("input");
+        String output = parameters.get("output");
+        if (input == null || input.isBlank()) {
+            throw new IllegalArgumentException("Missing parameter: input");
+        }
+        if (output == null || output.isBlank()) {
+            throw new IllegalArgumentException("Missing parameter: output");
+        }
+
+        Path inputPath = Path.of(input);
+        Path outputPath = Path.of(output);
+        if (!Files.exists(inputPath)) {
+            throw new IllegalArgumentException("File not found: " + input);
+        }
+        if (Files.exists(outputPath) && !Boolean.parseBoolean(parameters.get("force"))) {
+            throw new IllegalArgumentException("Output file exists: " + output);
+        }
+
+        // Each job gets its own copy of the settings of the service
+        PackagerSettings jobSettings = new PackagerSettings(settings);
+        if (parameters.containsKey("format")) {
+            jobSettings.setArchiveFormat(ArchiveFormat.fromString(parameters.get("format")));
+        }
+        if (parameters.containsKey("rules")) {
+            Path rulesFile = Path.of(parameters.get("rules"));
+            if (!Files.isReadable(rulesFile)) {
+                throw new IllegalArgumentException("Rules file not found: " + rulesFile);
+            }
+            jobSettings.setRulesFile(rulesFile);
+        }
+        if (parameters.containsKey("deadline")) {
+            jobSettings.setDeadlineMillis(Long.parseLong(parameters.get("deadline")) * 1000);
+        }
+        if (parameters.containsKey("processes")) {
+            jobSettings.setProcessFilter(ProcessFilter.parse(parameters.get("processes")));
+        }
+
+        return new Job(nextId.getAndIncrement(), inputPath, outputPath, jobSettings);
+    }
+
+    private void run(Job job) {
+        if (!job.start()) {
+            return;
+        }
+
+        System.out.println("Starting job " + job.id + ": " + job.input);
+        try (OutputStream outputStream = new PackageFile(job.output, job.settings.getFsyncPolicy())) {
+            MemProcFSPackager packager = new MemProcFSPackager(job.input.toString(), outputStream, strPathToNativeBinaries, yaraRulesPath, additionalOptions, job.settings);
+            packager.setReportFile(Path.of(job.output + Main.REPORT_FILE_SUFFIX));
+            job.packager = packager;
+            packager.run();
+            job.finish(Status.SUCCEEDED, "");
+            System.out.println("Completed job " + job.id + ": " + job.output);
+        } catch (Exception ex) {
+            LOGGER.error("Job " + job.id + " failed for " + job.input, ex);
+            System.err.println("Failed job " + job.id + ": " + ex.getMessage());
+            job.finish(Status.FAILED, String.valueOf(ex.getMessage()));
+        }
+    }
+
+    private Job findJob(String id) {
+        try {
+            return jobs.get(Long.parseLong(id));
+        } catch (NumberFormatException ex) {
+            return null;
+        }
+    }
+
+    // Returns the queued or running job writing the output, null if there is none
+    private Job findActiveJob(Path output) {
+        Path normalized = output.toAbsolutePath().normalize();
+        for (Job job : jobs.values()) {
+            if (!job.isFinished() && job.output.toAbsolutePath().normalize().equals(normalized)) {
+                return job;
+            }
+        }
+        return null;
+    }
+
+    private void removeOldJobs() {
+        List<Job> finished = jobs.values().stream()
+                .filter(Job::isFinished)
+                .sorted(Comparator.comparingLong(job -> job.id))
+                .toList();
+        for (int i = 0; i < finished.size() - MAX_FINISHED_JOBS; i++) {
+            jobs.remove(finished.get(i).id);
+        }
+    }
+
+    private byte[] jobsJson() {
+        List<Job> sorted = new ArrayList<>(jobs.values());
+        sorted.sort(Comparator.comparingLong(job -> job.id));
+
+        StringBuilder json = new StringBuilder("[");
+        String separator = "\n  ";
+        for (Job job : sorted) {
+            json.append(separator).append(new String(job.toJson(), StandardCharsets.UTF_8).trim());
+            separator = ",\n  ";
+        }
+        json.append("\n]\n");
+        return json.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static byte[] errorJson(String message) {
+        return ("{\"error\": " + RunReport.quote(message) + "}\n").getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static void respond(HttpExchange exchange, int status, byte[] body) throws IOException {
+        exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+        exchange.sendResponseHeaders(status, body.length);
+        try (OutputStream responseBody = exchange.getResponseBody()) {
+            responseBody.write(body);
+        }
+    }
+
+    /**
+     * Parses a JSON object of job parameters. Values must be strings, numbers
+     * or booleans, they are returned as text.
+     *
+     * @throws IllegalArgumentException if the body is not such an object
+     */
+    static Map<String, String> parseJson(String json) {
+        JsonReader reader = new JsonReader(json);
+        Map<String, String> parameters = new HashMap<>();
+        reader.expect('{');
+        if (!reader.consume('}')) {
+            do {
+                String name = reader.readString();
+                reader.expect(':');
+                String value = reader.readValue();
+                if (value != null) {
+                    parameters.put(name.trim(), value);
+                }
+            } while (reader.consume(','));
+            reader.expect('}');
+        }
+        reader.expectEnd();
+        return parameters;
+    }
+
+    // Reads the flat JSON objects of job requests
+    private static final class JsonReader {
+
+        private final String json;
+        private int position = 0;
+
+        private JsonReader(String json) {
+            this.json = json;
+        }
+
+        private void skipWhitespace() {
+            while (position < json.length() && Character.isWhitespace(json.charAt(position))) {
+                position++;
+            }
+        }
+
+        private boolean consume(char c) {
+            skipWhitespace();
+            if (position < json.length() && json.charAt(position) == c) {
+                position++;
+                return true;
+            }
+            return false;
+        }
+
+        private void expect(char c) {
+            if (!consume(c)) {
+                throw new IllegalArgumentException("Invalid JSON, expected '" + c + "' at offset " + position);
+            }
+        }
+
+        private void expectEnd() {
+            skipWhitespace();
+            if (position < json.length()) {
+                throw new IllegalArgumentException("Invalid JSON, unexpected content at offset " + position);
+            }
+        }
+
+        // Returns null for a JSON null
+        private String readValue() {
+            skipWhitespace();
+            if (position < json.length() && json.charAt(position) == '"') {
+                return readString();
+            }
+            int start = position;
+            while (position < json.length() && ",}".indexOf(json.charAt(position)) < 0 && !Character.isWhitespace(json.charAt(position))) {
+                position++;
+            }
+            String literal = json.substring(start, position);
+            if ("null".equals(literal)) {
+                return null;
+            }
+            if ("true".equals(literal) || "false".equals(literal) || literal.matches("-?\\d+(\\.\\d+)?([eE][+-]?\\d+)?")) {
+                return literal;
+            }
+            throw new IllegalArgumentException("Invalid JSON value at offset " + start + ", values must be strings, numbers or booleans");
+        }
+
+        private String readString() {
+            expect('"');
+            StringBuilder value = new StringBuilder();
+            while (position < json.length()) {
+                char c = json.charAt(position++);
+                if (c == '"') {
+                    return value.toString();
+                }
+                if (c != '\\') {
+                    value.append(c);
+                    continue;
+                }
+                if (position >= json.length()) {
+                    break;
+                }
+                char escaped = json.charAt(position++);
+                switch (escaped) {
+                    case 'b' -> value.append('\b');
+                    case 'f' -> value.append('\f');
+                    case 'n' -> value.append('\n');
+                    case 'r' -> value.append('\r');
+                    case 't' -> value.append('\t');
+                    case 'u' -> {
+                        if (position + 4 > json.length()) {
+                            throw new IllegalArgumentException("Invalid JSON escape at offset " + position);
+                        }
+                        try {
+                            value.append((char) Integer.parseInt(json.substring(position, position + 4), 16));
+                        } catch (NumberFormatException ex) {
+                            throw new IllegalArgumentException("Invalid JSON escape at offset " + position);
+                        }
+                        position += 4;
+                    }
+                    default -> value.append(escaped);
+                }
+            }
+            throw new IllegalArgumentException("Invalid JSON, unterminated string");
+        }
+    }
+
+    /**
+     * A packaging job and its state. The state is changed by the job thread
+     * and read by the HTTP handler.
+     */
+    private static final class Job {
+
+        private final long id;
+        private final Path input;
+        private final Path output;
+        private final PackagerSettings settings;
+        private final Instant submitted = Instant.now();
+
+        private volatile Future<?> future;
+        private volatile MemProcFSPackager packager;
+        private Status status = Status.QUEUED;
+        private Instant started;
+        private Instant finished;
+        private String message = "";
+
+        private Job(long id, Path input, Path output, PackagerSettings settings) {
+            this.id = id;
+            this.input = input;
+            this.output = output;
+            this.settings = settings;
+        }
+
+        // Returns false if the job was cancelled before it started
+        private synchronized boolean start() {
+            if (status != Status.QUEUED) {
+                return false;
+            }
+            status = Status.RUNNING;
+            started = Instant.now();
+            return true;
+        }
+
+        private synchronized void finish(Status status, String message) {
+            this.status = status;
+            this.message = message;
+            this.finished = Instant.now();
+        }
+
+        private synchronized boolean cancel() {
+            if (status == Status.CANCELLED) {
+                return true;
+            }
+            if (status != Status.QUEUED) {
+                return false;
+            }
+            future.cancel(false);
+            finish(Status.CANCELLED, "cancelled");
+            return true;
+        }
+
+        private synchronized boolean isFinished() {
+            return finished != null;
+        }
+
+        private synchronized byte[] toJson() {
+            StringBuilder json = new StringBuilder("{");
+            json.append("\"id\": ").append(id);
+            json.append(", \"status\": ").append(RunReport.quote(status.name().toLowerCase(Locale.ROOT)));
+            json.append(", \"input\": ").append(RunReport.quote(input.toString()));
+            json.append(", \"output\": ").append(RunReport.quote(output.toString()));
+            json.append(", \"submitted_utc\": ").append(RunReport.quote(submitted.toString()));
+            json.append(", \"started_utc\": ").append(started != null ? RunReport.quote(started.toString()) : "null");
+            json.append(", \"finished_utc\": ").append(finished != null ? RunReport.quote(finished.toString()) : "null");
+
+            // Progress of a running job, or the final counts of a finished one
+            RunReport report = packager != null ? packager.getRunReport() : null;
+            if (report != null) {
+                json.append(", \"phase\": ").append(RunReport.quote(report.getCurrentPhase()));
+                json.append(", \"entries\": ").append(report.getCollectedEntries());
+                json.append(", \"bytes\": ").append(report.getCollectedBytes());
+            }
+            json.append(", \"message\": ").append(RunReport.quote(message));
+            json.append("}\n");
+            return json.toString().getBytes(StandardCharsets.UTF_8);
+        }
+    }
+}
@@ -0,0 +1,365 @@
+/*
+ * memprocfs_packager
+ * 
+ * Copyright (C) 2024  Sleuth Kit Labs
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.sleuthkitlabs.memprocfspackager;
+
+import java.nio.file.Path;
+import java.security.PrivateKey;
+
+/**
+ * Tuning settings for a packaging run.
+ */
+public class PackagerSettings {
+
+    public static final int DEFAULT_READER_THREADS = 4;
+
+    public static final long DEFAULT_MAX_IN_FLIGHT_BYTES = 256L * 1024 * 1024;
+
+    public static final long DEFAULT_FORENSIC_CACHE_MAX_BYTES = 20L * 1024 * 1024 * 1024;
+
+    public static final long DEFAULT_BUFFER_POOL_BYTES = 64L * 1024 * 1024;
+
+    public static final int DEFAULT_WALK_THREADS = 4;
+
+    public static final int DEFAULT_WALK_FORK_DEPTH = 32;
+
+    public static final int DEFAULT_READ_AHEAD_CHUNKS = 2;
+
+    // Number of worker threads reading files from the VFS at the same time
+    private int readerThreads = DEFAULT_READER_THREADS;
+
+    // Upper bound on file content held in memory between the readers and the writer
+    private long maxInFlightBytes = DEFAULT_MAX_IN_FLIGHT_BYTES;
+
+    // Number of threads listing directories while the rules are resolved, 1 to list them one at a time
+    private int walkThreads = DEFAULT_WALK_THREADS;
+
+    // Directories up to this depth are listed ahead by the walk threads, deeper ones in walk order
+    private int walkForkDepth = DEFAULT_WALK_FORK_DEPTH;
+
+    private CompressionPolicy compressionPolicy = CompressionPolicy.AUTO;
+
+    private ArchiveFormat archiveFormat = ArchiveFormat.ZIP;
+
+    // Number of threads compressing entries in parallel
+    private int compressionThreads = Runtime.getRuntime().availableProcessors();
+
+    // Directory of the forensic result cache, null to always run forensic processing
+    private Path forensicCacheDirectory;
+
+    private long forensicCacheMaxBytes = DEFAULT_FORENSIC_CACHE_MAX_BYTES;
+
+    // Write a manifest with the SHA-256 of every collected file into the package
+    private boolean manifestEnabled = true;
+
+    private boolean md5Enabled = false;
+
+    // Signs the manifest when set
+    private PrivateKey manifestSigningKey;
+
+    // Store files with identical content only once
+    private boolean dedupEnabled = false;
+
+    // Off-heap read buffers kept for reuse, 0 to read through IVmm.vfsRead
+    private long bufferPoolBytes = DEFAULT_BUFFER_POOL_BYTES;
+
+    // Chunks of a streamed file read ahead of the compression, 0 to read them in turn
+    private int readAheadChunks = DEFAULT_READ_AHEAD_CHUNKS;
+
+    // Files at least this large are written as seekable gzip files with a block index, 0 to never do that
+    private long seekableMinBytes = 0;
+
+    // Triage mode: stop collecting this long after the run started, 0 for no deadline
+    private long deadlineMillis = 0;
+
+    // Stop reading a single file after this long and keep what was read, 0 for no limit
+    private long fileReadTimeoutMillis = 0;
+
+    // Rules file used instead of the bundled files_to_collect.txt, null for the bundled one
+    private Path rulesFile;
+
+    private FsyncPolicy fsyncPolicy = FsyncPolicy.CLOSE;
+
+    // Grow the package file to the listed size of the collected files while they are queued
+    private boolean preallocate = false;
+
+    // Processes whose \pid\ and \name\ directories are collected, null for all of them
+    private ProcessFilter processFilter;
+
+    public PackagerSettings() {
+    }
+
+    /**
+     * Copies the settings, so they can be changed for a single run.
+     */
+    public PackagerSettings(PackagerSettings other) {
+        this.readerThreads = other.readerThreads;
+        this.maxInFlightBytes = other.maxInFlightBytes;
+        this.walkThreads = other.walkThreads;
+        this.walkForkDepth = other.walkForkDepth;
+        this.compressionPolicy = other.compressionPolicy;
+        this.archiveFormat = other.archiveFormat;
+        this.compressionThreads = other.compressionThreads;
+        this.forensicCacheDirectory = other.forensicCacheDirectory;
+        this.forensicCacheMaxBytes = other.forensicCacheMaxBytes;
+        this.manifestEnabled = other.manifestEnabled;
+        this.md5Enabled = other.md5Enabled;
+        this.manifestSigningKey = other.manifestSigningKey;
+        this.dedupEnabled = other.dedupEnabled;
+        this.bufferPoolBytes = other.bufferPoolBytes;
+        this.readAheadChunks = other.readAheadChunks;
+        this.seekableMinBytes = other.seekableMinBytes;
+        this.deadlineMillis = other.deadlineMillis;
+        this.fileReadTimeoutMillis = other.fileReadTimeoutMillis;
+        this.rulesFile = other.rulesFile;
+        this.fsyncPolicy = other.fsyncPolicy;
+        this.preallocate = other.preallocate;
+        this.processFilter = other.processFilter;
+    }
+
+    public int getReaderThreads() {
+        return readerThreads;
+    }
+
+    public PackagerSettings setReaderThreads(int readerThreads) {
+        if (readerThreads < 1) {
+            throw new IllegalArgumentException("Reader threads must be at least 1: " + readerThreads);
+        }
+        this.readerThreads = readerThreads;
+        return this;
+    }
+
+    public long getMaxInFlightBytes() {
+        return maxInFlightBytes;
+    }
+
+    public PackagerSettings setMaxInFlightBytes(long maxInFlightBytes) {
+        if (maxInFlightBytes < 1) {
+            throw new IllegalArgumentException("In-flight byte budget must be positive: " + maxInFlightBytes);
+        }
+        this.maxInFlightBytes = maxInFlightBytes;
+        return this;
+    }
+
+    public int getWalkThreads() {
+        return walkThreads;
+    }
+
+    public PackagerSettings setWalkThreads(int walkThreads) {
+        if (walkThreads < 1) {
+            throw new IllegalArgumentException("Walk threads must be at least 1: " + walkThreads);
+        }
+        this.walkThreads = walkThreads;
+        return this;
+    }
+
+    public int getWalkForkDepth() {
+        return walkForkDepth;
+    }
+
+    public PackagerSettings setWalkForkDepth(int walkForkDepth) {
+        if (walkForkDepth < 0) {
+            throw new IllegalArgumentException("Walk fork depth must not be negative: " + walkForkDepth);
+        }
+        this.walkForkDepth = walkForkDepth;
+        return this;
+    }
+
+    public CompressionPolicy getCompressionPolicy() {
+        return compressionPolicy;
+    }
+
+    public PackagerSettings setCompressionPolicy(CompressionPolicy compressionPolicy) {
+        this.compressionPolicy = compressionPolicy;
+        return this;
+    }
+
+    public int getCompressionThreads() {
+        return compressionThreads;
+    }
+
+    public PackagerSettings setCompressionThreads(int compressionThreads) {
+        if (compressionThreads < 1) {
+            throw new IllegalArgumentException("Compression threads must be at least 1: " + compressionThreads);
+        }
+        this.compressionThreads = compressionThreads;
+        return this;
+    }
+
+    public ArchiveFormat getArchiveFormat() {
+        return archiveFormat;
+    }
+
+    public PackagerSettings setArchiveFormat(ArchiveFormat archiveFormat) {
+        this.archiveFormat = archiveFormat;
+        return this;
+    }
+
+    public Path getForensicCacheDirectory() {
+        return forensicCacheDirectory;
+    }
+
+    public PackagerSettings setForensicCacheDirectory(Path forensicCacheDirectory) {
+        this.forensicCacheDirectory = forensicCacheDirectory;
+        return this;
+    }
+
+    public long getForensicCacheMaxBytes() {
+        return forensicCacheMaxBytes;
+    }
+
+    public PackagerSettings setForensicCacheMaxBytes(long forensicCacheMaxBytes) {
+        if (forensicCacheMaxBytes < 0) {
+            throw new IllegalArgumentException("Forensic cache size must not be negative: " + forensicCacheMaxBytes);
+        }
+        this.forensicCacheMaxBytes = forensicCacheMaxBytes;
+        return this;
+    }
+
+    public boolean isManifestEnabled() {
+        return manifestEnabled;
+    }
+
+    public PackagerSettings setManifestEnabled(boolean manifestEnabled) {
+        this.manifestEnabled = manifestEnabled;
+        return this;
+    }
+
+    public boolean isMd5Enabled() {
+        return md5Enabled;
+    }
+
+    public PackagerSettings setMd5Enabled(boolean md5Enabled) {
+        this.md5Enabled = md5Enabled;
+        return this;
+    }
+
+    public PrivateKey getManifestSigningKey() {
+        return manifestSigningKey;
+    }
+
+    public PackagerSettings setManifestSigningKey(PrivateKey manifestSigningKey) {
+        this.manifestSigningKey = manifestSigningKey;
+        return this;
+    }
+
+    public boolean isDedupEnabled() {
+        return dedupEnabled;
+    }
+
+    public PackagerSettings setDedupEnabled(boolean dedupEnabled) {
+        this.dedupEnabled = dedupEnabled;
+        return this;
+    }
+
+    public long getBufferPoolBytes() {
+        return bufferPoolBytes;
+    }
+
+    public PackagerSettings setBufferPoolBytes(long bufferPoolBytes) {
+        if (bufferPoolBytes < 0) {
+            throw new IllegalArgumentException("Buffer pool size must not be negative: " + bufferPoolBytes);
+        }
+        this.bufferPoolBytes = bufferPoolBytes;
+        return this;
+    }
+
+    public int getReadAheadChunks() {
+        return readAheadChunks;
+    }
+
+    public PackagerSettings setReadAheadChunks(int readAheadChunks) {
+        if (readAheadChunks < 0) {
+            throw new IllegalArgumentException("Read-ahead chunks must not be negative: " + readAheadChunks);
+        }
+        this.readAheadChunks = readAheadChunks;
+        return this;
+    }
+
+    public long getSeekableMinBytes() {
+        return seekableMinBytes;
+    }
+
+    public PackagerSettings setSeekableMinBytes(long seekableMinBytes) {
+        if (seekableMinBytes < 0) {
+            throw new IllegalArgumentException("Seekable entry size must not be negative: " + seekableMinBytes);
+        }
+        this.seekableMinBytes = seekableMinBytes;
+        return this;
+    }
+
+    public long getDeadlineMillis() {
+        return deadlineMillis;
+    }
+
+    public PackagerSettings setDeadlineMillis(long deadlineMillis) {
+        if (deadlineMillis < 0) {
+            throw new IllegalArgumentException("Deadline must not be negative: " + deadlineMillis);
+        }
+        this.deadlineMillis = deadlineMillis;
+        return this;
+    }
+
+    public long getFileReadTimeoutMillis() {
+        return fileReadTimeoutMillis;
+    }
+
+    public PackagerSettings setFileReadTimeoutMillis(long fileReadTimeoutMillis) {
+        if (fileReadTimeoutMillis < 0) {
+            throw new IllegalArgumentException("File read timeout must not be negative: " + fileReadTimeoutMillis);
+        }
+        this.fileReadTimeoutMillis = fileReadTimeoutMillis;
+        return this;
+    }
+
+    public Path getRulesFile() {
+        return rulesFile;
+    }
+
+    public PackagerSettings setRulesFile(Path rulesFile) {
+        this.rulesFile = rulesFile;
+        return this;
+    }
+
+    public FsyncPolicy getFsyncPolicy() {
+        return fsyncPolicy;
+    }
+
+    public PackagerSettings setFsyncPolicy(FsyncPolicy fsyncPolicy) {
+        this.fsyncPolicy = fsyncPolicy;
+        return this;
+    }
+
+    public boolean isPreallocate() {
+        return preallocate;
+    }
+
+    public PackagerSettings setPreallocate(boolean preallocate) {
+        this.preallocate = preallocate;
+        return this;
+    }
+
+    ProcessFilter getProcessFilter() {
+        return processFilter;
+    }
+
+    PackagerSettings setProcessFilter(ProcessFilter processFilter) {
+        this.processFilter = processFilter;
+        return this;
+    }
+}
@@ -0,0 +1,143 @@
+/*
+ * memprocfs_packager
+ * 
+ * Copyright (C) 2024  Sleuth Kit Labs
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.sleuthkitlabs.memprocfspackager;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+/**
+ * Selects the processes whose \pid\ directories are collected.
+ *
+ * A filter is a list of conditions separated by semicolons, each a key and a
+ * comma separated list of values, for example
+ * name=lsass.exe,svchost.exe;integrity=system. A process has to match every
+ * condition, and matches a condition if it matches any of its values. Names
+ * are compared case-insensitively and may contain the wildcards * and ?.
+ *
+ * Keys: name, pid, ppid (parent PID), parent (parent name) and integrity.
+ */
+class ProcessFilter {
+
+    private final String text;
+    private final List<Pattern> names = new ArrayList<>();
+    private final Set<Integer> pids = new HashSet<>();
+    private final Set<Integer> parentPids = new HashSet<>();
+    private final List<Pattern> parentNames = new ArrayList<>();
+    private final Set<String> integrityLevels = new HashSet<>();
+
+    private ProcessFilter(String text) {
+        this.text = text;
+    }
+
+    /**
+     * Parses a filter.
+     *
+     * @throws IllegalArgumentException if the filter is malformed
+     */
+    static ProcessFilter parse(String text) {
+        ProcessFilter filter = new ProcessFilter(text);
+        for (String condition : text.split(";")) {
+            if (condition.isBlank()) {
+                continue;
+            }
+            int separator = condition.indexOf('=');
+            if (separator < 0) {
+                throw new IllegalArgumentException("Process filter condition must be key=values: " + condition.trim());
+            }
+            String key = condition.substring(0, separator).trim().toLowerCase(Locale.ROOT);
+            for (String value : condition.substring(separator + 1).split(",")) {
+                value = value.trim();
+                if (value.isEmpty()) {
+                    continue;
+                }
+                switch (key) {
+                    case "name" -> filter.names.add(namePattern(value));
+                    case "pid" -> filter.pids.add(parsePid(value));
+                    case "ppid" -> filter.parentPids.add(parsePid(value));
+                    case "parent" -> filter.parentNames.add(namePattern(value));
+                    case "integrity" -> filter.integrityLevels.add(value.toLowerCase(Locale.ROOT));
+                    default -> throw new IllegalArgumentException("Unknown process filter key: " + key);
+                }
+            }
+        }
+        if (filter.isEmpty()) {
+            throw new IllegalArgumentException("Empty process filter: " + text);
+        }
+        return filter;
+    }
+
+    /**
+     * Returns true if the process is selected.
+     *
+     * @param processes used to look up the parent of the process
+     */
+    boolean matches(ProcessList.Process process, ProcessList processes) {
+        if (!names.isEmpty() && !matchesName(names, process)) {
+            return false;
+        }
+        if (!pids.isEmpty() && !pids.contains(process.pid())) {
+            return false;
+        }
+        if (!parentPids.isEmpty() && !parentPids.contains(process.ppid())) {
+            return false;
+        }
+        if (!parentNames.isEmpty()) {
+            ProcessList.Process parent = processes.get(process.ppid());
+            if (parent == null || !matchesName(parentNames, parent)) {
+                return false;
+            }
+        }
+        return integrityLevels.isEmpty() || integrityLevels.contains(process.integrity().toLowerCase(Locale.ROOT));
+    }
+
+    private boolean isEmpty() {
+        return names.isEmpty() && pids.isEmpty() && parentPids.isEmpty() && parentNames.isEmpty() && integrityLevels.isEmpty();
+    }
+
+    // The short name is the truncated image name kept by the kernel, either one may be given
+    private static boolean matchesName(List<Pattern> patterns, ProcessList.Process process) {
+        for (Pattern pattern : patterns) {
+            if (pattern.matcher(process.name()).matches() || pattern.matcher(process.shortName()).matches()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static Pattern namePattern(String name) {
+        return Pattern.compile(GlobTrie.wildcardToRegex(name), Pattern.CASE_INSENSITIVE | Pattern.UNICODE_CASE);
+    }
+
+    private static int parsePid(String value) {
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException ex) {
+            throw new IllegalArgumentException("Invalid PID in process filter: " + value);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return text;
+    }
+}
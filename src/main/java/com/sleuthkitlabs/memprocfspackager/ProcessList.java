@@ -0,0 +1,223 @@
+/*
+ * memprocfs_packager
+ * 
+ * Copyright (C) 2024  Sleuth Kit Labs
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.sleuthkitlabs.memprocfspackager;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+import vmm.entry.Vmm_VfsListEntry;
+
+/**
+ * The processes of the image, read once from \forensic\csv\process.csv, used
+ * to restrict the \pid\ and \name\ directories to the processes selected by
+ * a {@link ProcessFilter}.
+ *
+ * Columns are looked up by their header, so the order of the columns does not
+ * matter. PID is required, PPID, Name, ShortName and IntegrityLevel are used
+ * if present.
+ */
+class ProcessList {
+
+    static final String PROCESS_CSV_DIRECTORY = VfsListingCache.FORENSIC_PATH + "csv\\";
+
+    static final String PROCESS_CSV_NAME = "process.csv";
+
+    private final Map<Integer, Process> processes = new LinkedHashMap<>();
+
+    private ProcessList() {
+    }
+
+    /**
+     * Reads the process list. Returns null if the VFS has no process.csv.
+     *
+     * @throws IOException if it can not be read or has no PID column
+     */
+    static ProcessList read(VfsSource source, VfsListingCache listingCache) throws IOException {
+        Vmm_VfsListEntry entry = listingCache.list(PROCESS_CSV_DIRECTORY).get(PROCESS_CSV_NAME);
+        if (entry == null) {
+            return null;
+        }
+        try (InputStream inputStream = source.open(PROCESS_CSV_DIRECTORY + PROCESS_CSV_NAME, entry.size, Deadline.NONE)) {
+            return parse(inputStream.readAllBytes());
+        }
+    }
+
+    static ProcessList parse(byte[] csv) throws IOException {
+        String text = new String(csv, StandardCharsets.UTF_8);
+        if (text.startsWith("\uFEFF")) {
+            text = text.substring(1);
+        }
+
+        List<List<String>> rows = parseRows(text);
+        if (rows.isEmpty()) {
+            throw new IOException("Empty process list");
+        }
+
+        Map<String, Integer> columns = new LinkedHashMap<>();
+        List<String> header = rows.get(0);
+        for (int i = 0; i < header.size(); i++) {
+            columns.putIfAbsent(header.get(i).trim().toLowerCase(Locale.ROOT), i);
+        }
+        Integer pidColumn = columns.get("pid");
+        if (pidColumn == null) {
+            throw new IOException("No PID column in process list: " + header);
+        }
+        Integer ppidColumn = columns.get("ppid");
+        Integer nameColumn = columns.get("name");
+        Integer shortNameColumn = columns.get("shortname");
+        Integer integrityColumn = columns.getOrDefault("integritylevel", columns.get("integrity"));
+
+        ProcessList list = new ProcessList();
+        for (List<String> row : rows.subList(1, rows.size())) {
+            int pid;
+            try {
+                pid = Integer.parseInt(column(row, pidColumn));
+            } catch (NumberFormatException ex) {
+                continue;
+            }
+            int ppid;
+            try {
+                ppid = Integer.parseInt(column(row, ppidColumn));
+            } catch (NumberFormatException ex) {
+                ppid = -1;
+            }
+            String name = column(row, nameColumn);
+            String shortName = column(row, shortNameColumn);
+            list.processes.putIfAbsent(pid, new Process(pid, ppid, name.isEmpty() ? shortName : name, shortName.isEmpty() ? name : shortName,
+                    column(row, integrityColumn)));
+        }
+        return list;
+    }
+
+    Process get(int pid) {
+        return processes.get(pid);
+    }
+
+    int size() {
+        return processes.size();
+    }
+
+    /**
+     * Returns the PIDs of the processes selected by the filter.
+     */
+    Set<Integer> select(ProcessFilter filter) {
+        Set<Integer> selected = new LinkedHashSet<>();
+        for (Process process : processes.values()) {
+            if (filter.matches(process, this)) {
+                selected.add(process.pid());
+            }
+        }
+        return selected;
+    }
+
+    /**
+     * Drops the processes that are not selected from a listing of \pid\ or
+     * \name\, whose entries are named by PID and by name-PID. Other listings
+     * are returned as they are.
+     */
+    static Map<String, Vmm_VfsListEntry> restrict(String path, Map<String, Vmm_VfsListEntry> listing, Set<Integer> pids) {
+        boolean byPid = "\\pid\\".equalsIgnoreCase(path);
+        if (!byPid && !"\\name\\".equalsIgnoreCase(path)) {
+            return listing;
+        }
+
+        Map<String, Vmm_VfsListEntry> restricted = new LinkedHashMap<>();
+        for (Map.Entry<String, Vmm_VfsListEntry> entry : listing.entrySet()) {
+            String name = entry.getKey();
+            String pid = byPid ? name : name.substring(name.lastIndexOf('-') + 1);
+            try {
+                if (pids.contains(Integer.parseInt(pid))) {
+                    restricted.put(name, entry.getValue());
+                }
+            } catch (NumberFormatException ex) {
+                // Not a process directory
+                restricted.put(name, entry.getValue());
+            }
+        }
+        return Collections.unmodifiableMap(restricted);
+    }
+
+    private static String column(List<String> row, Integer column) {
+        return column != null && column < row.size() ? row.get(column).trim() : "";
+    }
+
+    // Splits CSV text into rows, quoted values may contain commas, quotes and line breaks
+    private static List<List<String>> parseRows(String text) {
+        List<List<String>> rows = new ArrayList<>();
+        List<String> row = new ArrayList<>();
+        StringBuilder value = new StringBuilder();
+        boolean quoted = false;
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (quoted) {
+                if (c == '"' && i + 1 < text.length() && text.charAt(i + 1) == '"') {
+                    value.append('"');
+                    i++;
+                } else if (c == '"') {
+                    quoted = false;
+                } else {
+                    value.append(c);
+                }
+            } else if (c == '"') {
+                quoted = true;
+            } else if (c == ',') {
+                row.add(value.toString());
+                value.setLength(0);
+            } else if (c == '\n' || c == '\r') {
+                if (c == '\r' && i + 1 < text.length() && text.charAt(i + 1) == '\n') {
+                    i++;
+                }
+                row.add(value.toString());
+                value.setLength(0);
+                if (row.size() > 1 || !row.get(0).isEmpty()) {
+                    rows.add(row);
+                }
+                row = new ArrayList<>();
+            } else {
+                value.append(c);
+            }
+        }
+        if (value.length() > 0 || !row.isEmpty()) {
+            row.add(value.toString());
+            rows.add(row);
+        }
+        return rows;
+    }
+
+    /**
+     * A process of the image.
+     *
+     * @param ppid      PID of the parent, -1 if unknown
+     * @param name      image name, the short name if the full one is unknown
+     * @param shortName image name as truncated by the kernel
+     * @param integrity integrity level, empty if unknown
+     */
+    record Process(int pid, int ppid, String name, String shortName, String integrity) {
+
+    }
+}
@@ -0,0 +1,351 @@
+/*
+ * memprocfs_packager
+ * 
+ * Copyright (C) 2024  Sleuth Kit Labs
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.sleuthkitlabs.memprocfspackager;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Proxy;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+import vmm.IVmm;
+
+/**
+ * Timing and volume statistics of a packaging run, written as JSON into the
+ * package and optionally next to it.
+ *
+ * The same measurements are emitted as JFR events, so a recording taken with
+ * -XX:StartFlightRecording shows the phases, slow MemProcFS calls and every
+ * collected file on a timeline.
+ */
+class RunReport {
+
+    static final String REPORT_NAME = "run_report.json";
+
+    // Stored size of streamed entries, which the archive writers do not report
+    static final long UNKNOWN_SIZE = -1;
+
+    private final String image;
+    private final Instant started = Instant.now();
+    private final long startNanos = System.nanoTime();
+
+    // Phases in the order they started
+    private final Map<String, Long> phaseNanos = new LinkedHashMap<>();
+
+    private final CallStats listCalls = new CallStats();
+    private final CallStats readCalls = new CallStats();
+    private final Queue<EntryStats> entries = new ConcurrentLinkedQueue<>();
+
+    // Conditions that changed what was collected, in the order they were reported
+    private final Queue<String> warnings = new ConcurrentLinkedQueue<>();
+
+    // Set when reads go through pooled native buffers
+    private volatile BufferPool bufferPool;
+
+    // Progress while the run is going, read by the packager service
+    private volatile String currentPhase = "";
+    private final LongAdder collectedEntries = new LongAdder();
+    private final LongAdder collectedBytes = new LongAdder();
+
+    RunReport(String image) {
+        this.image = image;
+    }
+
+    /**
+     * Starts timing a phase, which ends when the returned Phase is closed.
+     */
+    Phase phase(String name) {
+        return new Phase(name);
+    }
+
+    /**
+     * Wraps the IVmm so every vfsList and vfsRead call is counted and timed.
+     */
+    IVmm instrument(IVmm vmm) {
+        return (IVmm) Proxy.newProxyInstance(IVmm.class.getClassLoader(), new Class<?>[]{IVmm.class}, (proxy, method, args) -> {
+            CallStats stats = switch (method.getName()) {
+                case "vfsList" -> listCalls;
+                case "vfsRead" -> readCalls;
+                default -> null;
+            };
+
+            try {
+                if (stats == null) {
+                    return method.invoke(vmm, args);
+                }
+
+                VfsCallEvent event = new VfsCallEvent();
+                event.begin();
+                long start = System.nanoTime();
+                Object result = null;
+                try {
+                    result = method.invoke(vmm, args);
+                    return result;
+                } finally {
+                    long bytes = result instanceof byte[] content ? content.length : 0;
+                    stats.record(System.nanoTime() - start, bytes);
+
+                    event.end();
+                    if (event.shouldCommit()) {
+                        event.call = method.getName();
+                        event.path = (String) args[0];
+                        event.bytes = bytes;
+                        event.commit();
+                    }
+                }
+            } catch (InvocationTargetException ex) {
+                throw ex.getCause();
+            }
+        });
+    }
+
+    /**
+     * Records a read made directly through the MemProcFS library, which
+     * bypasses the instrumented IVmm.
+     */
+    void recordNativeRead(long nanos, long bytes) {
+        readCalls.record(nanos, bytes);
+    }
+
+    void setBufferPool(BufferPool bufferPool) {
+        this.bufferPool = bufferPool;
+    }
+
+    /**
+     * Records a file written to the package and emits its JFR event.
+     *
+     * @param storedSize    size of the entry in the package, or UNKNOWN_SIZE
+     * @param readNanos     time spent reading the file from the VFS
+     * @param compressNanos time spent compressing the buffered file
+     * @param streamed      true if the writer streamed the file, reading
+     *                      and compressing it at once
+     */
+    void addEntry(CollectionItem item, long size, long storedSize, long readNanos, long compressNanos, boolean streamed, FileCollectedEvent event) {
+        entries.add(new EntryStats(item.zipPath(), size, storedSize, readNanos, compressNanos, streamed));
+        collectedEntries.increment();
+        collectedBytes.add(size);
+
+        event.end();
+        if (event.shouldCommit()) {
+            event.vfsPath = item.vfsPath();
+            event.size = size;
+            event.storedSize = storedSize;
+            event.readNanos = readNanos;
+            event.compressNanos = compressNanos;
+            event.streamed = streamed;
+            event.commit();
+        }
+    }
+
+    /**
+     * Records a condition that changed what the run collected, for example a
+     * process filter that could not be applied.
+     */
+    void addWarning(String warning) {
+        warnings.add(warning);
+    }
+
+    // The most recently started phase
+    String getCurrentPhase() {
+        return currentPhase;
+    }
+
+    long getCollectedEntries() {
+        return collectedEntries.sum();
+    }
+
+    long getCollectedBytes() {
+        return collectedBytes.sum();
+    }
+
+    byte[] toJson() {
+        long durationNanos = System.nanoTime() - startNanos;
+
+        long bytesRead = 0;
+        long bytesStored = 0;
+        long readNanos = 0;
+        long compressNanos = 0;
+        List<EntryStats> sorted = new ArrayList<>(entries);
+        sorted.sort((a, b) -> a.zipPath().compareTo(b.zipPath()));
+        for (EntryStats entry : sorted) {
+            bytesRead += entry.size();
+            bytesStored += Math.max(entry.storedSize(), 0);
+            readNanos += entry.readNanos();
+            compressNanos += entry.compressNanos();
+        }
+
+        StringBuilder json = new StringBuilder();
+        json.append("{\n");
+        json.append("  \"image\": ").append(quote(image)).append(",\n");
+        json.append("  \"started_utc\": ").append(quote(started.toString())).append(",\n");
+        json.append("  \"duration_ms\": ").append(millis(durationNanos)).append(",\n");
+
+        json.append("  \"phases_ms\": {");
+        synchronized (phaseNanos) {
+            String separator = "\n";
+            for (Map.Entry<String, Long> phase : phaseNanos.entrySet()) {
+                json.append(separator).append("    ").append(quote(phase.getKey())).append(": ").append(millis(phase.getValue()));
+                separator = ",\n";
+            }
+        }
+        json.append("\n  },\n");
+
+        json.append("  \"vfs_calls\": {\n");
+        json.append("    \"vfsList\": ").append(listCalls.toJson()).append(",\n");
+        json.append("    \"vfsRead\": ").append(readCalls.toJson()).append("\n");
+        json.append("  },\n");
+
+        BufferPool pool = bufferPool;
+        if (pool != null) {
+            json.append("  \"buffer_pool\": {\"max_pooled_bytes\": ").append(pool.getMaxPooledBytes())
+                    .append(", \"pooled_bytes\": ").append(pool.getPooledBytes())
+                    .append(", \"hits\": ").append(pool.getHits())
+                    .append(", \"misses\": ").append(pool.getMisses()).append("},\n");
+        }
+
+        json.append("  \"totals\": {\n");
+        json.append("    \"entries\": ").append(sorted.size()).append(",\n");
+        json.append("    \"bytes_read\": ").append(bytesRead).append(",\n");
+        json.append("    \"bytes_stored\": ").append(bytesStored).append(",\n");
+        json.append("    \"read_ms\": ").append(millis(readNanos)).append(",\n");
+        json.append("    \"compress_ms\": ").append(millis(compressNanos)).append(",\n");
+        json.append("    \"throughput_mb_per_s\": ").append(String.format(Locale.ROOT, "%.2f", bytesRead / 1048576.0 / Math.max(durationNanos / 1e9, 1e-9))).append("\n");
+        json.append("  },\n");
+
+        json.append("  \"warnings\": [");
+        String warningSeparator = "\n";
+        for (String warning : warnings) {
+            json.append(warningSeparator).append("    ").append(quote(warning));
+            warningSeparator = ",\n";
+        }
+        json.append(warnings.isEmpty() ? "],\n" : "\n  ],\n");
+
+        json.append("  \"entries\": [");
+        String separator = "\n";
+        for (EntryStats entry : sorted) {
+            json.append(separator).append("    {\"path\": ").append(quote(entry.zipPath()))
+                    .append(", \"size\": ").append(entry.size())
+                    .append(", \"stored_size\": ").append(entry.storedSize() != UNKNOWN_SIZE ? String.valueOf(entry.storedSize()) : "null")
+                    .append(", \"read_ms\": ").append(millis(entry.readNanos()))
+                    .append(", \"compress_ms\": ").append(millis(entry.compressNanos()))
+                    .append(", \"streamed\": ").append(entry.streamed())
+                    .append("}");
+            separator = ",\n";
+        }
+        json.append("\n  ]\n");
+        json.append("}\n");
+
+        return json.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    // Fixed locale, a decimal comma would break the JSON
+    private static String millis(long nanos) {
+        return String.format(Locale.ROOT, "%.3f", nanos / 1e6);
+    }
+
+    static String quote(String value) {
+        StringBuilder quoted = new StringBuilder("\"");
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '"' -> quoted.append("\\\"");
+                case '\\' -> quoted.append("\\\\");
+                case '\n' -> quoted.append("\\n");
+                case '\r' -> quoted.append("\\r");
+                case '\t' -> quoted.append("\\t");
+                default -> {
+                    if (c < 0x20) {
+                        quoted.append(String.format(Locale.ROOT, "\\u%04x", (int) c));
+                    } else {
+                        quoted.append(c);
+                    }
+                }
+            }
+        }
+        return quoted.append('"').toString();
+    }
+
+    /**
+     * A running phase, recorded in the report and as a JFR event when closed.
+     */
+    class Phase implements AutoCloseable {
+
+        private final String name;
+        private final long start = System.nanoTime();
+        private final PhaseEvent event = new PhaseEvent();
+
+        private Phase(String name) {
+            this.name = name;
+            currentPhase = name;
+            event.begin();
+        }
+
+        @Override
+        public void close() {
+            long duration = System.nanoTime() - start;
+            synchronized (phaseNanos) {
+                phaseNanos.merge(name, duration, Long::sum);
+            }
+
+            event.end();
+            if (event.shouldCommit()) {
+                event.phase = name;
+                event.image = image;
+                event.commit();
+            }
+        }
+    }
+
+    private static final class CallStats {
+
+        private final LongAdder count = new LongAdder();
+        private final LongAdder totalNanos = new LongAdder();
+        private final LongAccumulator maxNanos = new LongAccumulator(Math::max, 0);
+        private final LongAdder bytes = new LongAdder();
+
+        private void record(long nanos, long byteCount) {
+            count.increment();
+            totalNanos.add(nanos);
+            maxNanos.accumulate(nanos);
+            bytes.add(byteCount);
+        }
+
+        private String toJson() {
+            long calls = count.sum();
+            long total = totalNanos.sum();
+            return "{\"count\": " + calls
+                    + ", \"total_ms\": " + millis(total)
+                    + ", \"mean_ms\": " + millis(calls > 0 ? total / calls : 0)
+                    + ", \"max_ms\": " + millis(maxNanos.get())
+                    + ", \"bytes\": " + bytes.sum() + "}";
+        }
+    }
+
+    private record EntryStats(String zipPath, long size, long storedSize, long readNanos, long compressNanos, boolean streamed) {
+
+    }
+}
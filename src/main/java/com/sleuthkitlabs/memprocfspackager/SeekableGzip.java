@@ -0,0 +1,207 @@
+/*
+ * memprocfs_packager
+ * 
+ * Copyright (C) 2024  Sleuth Kit Labs
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.sleuthkitlabs.memprocfspackager;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Compresses a file into a seekable gzip file: a series of gzip members that
+ * each hold one fixed-size block of the content, and a CSV index of the
+ * blocks.
+ *
+ * Consecutive gzip members are a valid gzip file, so any gzip reader can
+ * still decompress all of it. With the index a reader can look up the block
+ * holding an uncompressed offset or a line number, seek to its member and
+ * inflate that block alone. The blocks are independent, so they are
+ * compressed in parallel.
+ */
+class SeekableGzip {
+
+    static final int BLOCK_SIZE = 1024 * 1024;
+
+    static final String SUFFIX = ".gz";
+
+    // Appended to the name of the gzip file
+    static final String INDEX_SUFFIX = ".index.csv";
+
+    static final String INDEX_HEADER = "block,uncompressed_offset,uncompressed_size,compressed_offset,compressed_size,first_line\n";
+
+    // Fixed gzip member header: deflate, no flags, no modification time, unknown OS
+    private static final byte[] MEMBER_HEADER = {0x1f, (byte) 0x8b, 8, 0, 0, 0, 0, 0, 0, (byte) 0xff};
+
+    private final int level;
+    private final ExecutorService executor;
+    private final int parallelism;
+
+    private final StringBuilder index = new StringBuilder(INDEX_HEADER);
+    private final CRC32 crc = new CRC32();
+    private long blocks = 0;
+    private long uncompressedSize = 0;
+    private long compressedSize = 0;
+    private long lines = 0;
+
+    /**
+     * @param level       DEFLATE level of the blocks
+     * @param executor    compresses the blocks
+     * @param parallelism number of blocks compressed at the same time
+     */
+    SeekableGzip(int level, ExecutorService executor, int parallelism) {
+        this.level = level;
+        this.executor = executor;
+        this.parallelism = Math.max(1, parallelism);
+    }
+
+    /**
+     * Returns the archive entry of the seekable gzip file of an item.
+     */
+    static CollectionItem entryFor(CollectionItem item) {
+        return new CollectionItem(item.vfsPath(), item.zipPath() + SUFFIX, true, item.size());
+    }
+
+    /**
+     * Compresses the input into the output. Blocks are read on the calling
+     * thread and written in order.
+     *
+     * @return the number of bytes read from the input
+     */
+    long compress(InputStream inputStream, OutputStream outputStream) throws IOException {
+        Deque<Future<Block>> pending = new ArrayDeque<>();
+        try {
+            boolean endOfInput = false;
+            while (true) {
+                while (!endOfInput && pending.size() < parallelism) {
+                    byte[] content = inputStream.readNBytes(BLOCK_SIZE);
+                    // readNBytes only returns less than asked for at the end of the input
+                    endOfInput = content.length < BLOCK_SIZE;
+                    if (content.length > 0) {
+                        pending.add(executor.submit(() -> compressBlock(content, level)));
+                    }
+                }
+
+                Future<Block> next = pending.poll();
+                if (next == null) {
+                    return uncompressedSize;
+                }
+                write(await(next), outputStream);
+            }
+        } finally {
+            for (Future<Block> future : pending) {
+                future.cancel(true);
+            }
+        }
+    }
+
+    long getCompressedSize() {
+        return compressedSize;
+    }
+
+    /**
+     * Returns the CRC-32 of the compressed output.
+     */
+    long getCrc() {
+        return crc.getValue();
+    }
+
+    byte[] index() {
+        return index.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    private void write(Block block, OutputStream outputStream) throws IOException {
+        outputStream.write(block.member());
+        crc.update(block.member());
+
+        index.append(blocks).append(',')
+                .append(uncompressedSize).append(',')
+                .append(block.size()).append(',')
+                .append(compressedSize).append(',')
+                .append(block.member().length).append(',')
+                .append(lines + 1).append('\n');
+
+        blocks++;
+        uncompressedSize += block.size();
+        compressedSize += block.member().length;
+        lines += block.lineBreaks();
+    }
+
+    private static Block await(Future<Block> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted compressing block");
+        } catch (ExecutionException ex) {
+            throw new IOException("Error compressing block", ex.getCause());
+        }
+    }
+
+    // Compresses one block into a complete gzip member
+    private static Block compressBlock(byte[] content, int level) {
+        CRC32 contentCrc = new CRC32();
+        contentCrc.update(content);
+
+        int lineBreaks = 0;
+        for (byte b : content) {
+            if (b == '\n') {
+                lineBreaks++;
+            }
+        }
+
+        ByteArrayOutputStream member = new ByteArrayOutputStream(content.length / 4 + 64);
+        member.writeBytes(MEMBER_HEADER);
+        Deflater deflater = new Deflater(level, true);
+        try {
+            deflater.setInput(content);
+            deflater.finish();
+            byte[] buffer = new byte[64 * 1024];
+            while (!deflater.finished()) {
+                int count = deflater.deflate(buffer);
+                member.write(buffer, 0, count);
+            }
+        } finally {
+            deflater.end();
+        }
+        writeIntLE(member, contentCrc.getValue());
+        writeIntLE(member, content.length);
+        return new Block(member.toByteArray(), content.length, lineBreaks);
+    }
+
+    private static void writeIntLE(ByteArrayOutputStream outputStream, long value) {
+        outputStream.write((int) value);
+        outputStream.write((int) (value >>> 8));
+        outputStream.write((int) (value >>> 16));
+        outputStream.write((int) (value >>> 24));
+    }
+
+    // A compressed block as a gzip member, with the size and line feeds of the uncompressed block
+    private record Block(byte[] member, int size, int lineBreaks) {
+
+    }
+}
@@ -0,0 +1,311 @@
+/*
+ * memprocfs_packager
+ * 
+ * Copyright (C) 2024  Sleuth Kit Labs
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.sleuthkitlabs.memprocfspackager;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.InterruptedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Spreads the entries of a package over several archive volumes, each
+ * written by its own thread to its own stream.
+ *
+ * Every volume is a complete archive that can be opened on its own. Entries
+ * go to the volume with the fewest bytes assigned so far, hard links go to
+ * the volume of their target, the block index of a seekable entry goes to the
+ * volume of the entry, and entries generated by the packager, such as the
+ * manifest and the run report, go to the first volume. The first volume
+ * also gets an index that maps every entry to its volume.
+ *
+ * Buffered entries are handed to the volume threads and written in the
+ * background, capped by a share of the in-flight byte budget of the run.
+ * Streamed entries and links are written by the volume thread while the
+ * caller waits, since the caller needs the result. This is a limit of
+ * sharding: while a large file streams into one volume, the other volumes
+ * only write what is already queued for them and nothing new is handed out,
+ * so a package made up mostly of files too large to buffer is written about
+ * one volume at a time.
+ */
+class ShardedArchiveWriter implements ArchiveWriter {
+
+    static final String INDEX_NAME = "shard_index.csv";
+
+    private final List<Shard> shards = new ArrayList<>();
+    private final ByteBudget queued;
+
+    // Only accessed from the calling thread
+    private final Map<String, Integer> shardByZipPath = new HashMap<>();
+    private final StringBuilder index = new StringBuilder("vfs_path,archive_path,shard,shard_name\n");
+
+    private volatile IOException error;
+
+    /**
+     * @param writers         one writer per volume, the first one is the
+     *                        primary volume
+     * @param names           file names of the volumes, written into the index
+     * @param maxQueuedBytes  upper bound on entry content waiting for the
+     *                        volume threads
+     */
+    ShardedArchiveWriter(List<ArchiveWriter> writers, List<String> names, long maxQueuedBytes) {
+        if (writers.size() != names.size()) {
+            throw new IllegalArgumentException("Expected " + writers.size() + " shard names: " + names);
+        }
+        for (int i = 0; i < writers.size(); i++) {
+            shards.add(new Shard(i + 1, names.get(i), writers.get(i)));
+        }
+        this.queued = new ByteBudget(maxQueuedBytes);
+    }
+
+    /**
+     * Returns the path of a volume: the output path itself for the first
+     * volume, the output path with the volume number before the extension
+     * for the others, for example host.3.zip.
+     */
+    static Path shardPath(Path output, int shard) {
+        if (shard == 1) {
+            return output;
+        }
+        String name = output.getFileName().toString();
+        int dot = name.lastIndexOf('.');
+        String shardName = dot > 0
+                ? name.substring(0, dot) + "." + shard + name.substring(dot)
+                : name + "." + shard;
+        return output.resolveSibling(shardName);
+    }
+
+    @Override
+    public void writeEntry(CollectionItem item, CompressedContent content, long time) throws IOException {
+        Shard shard = assign(item, content.data().length);
+        long reserved;
+        try {
+            reserved = queued.acquire(content.data().length);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting to write " + item.zipPath());
+        }
+        shard.execute(() -> shard.writer.writeEntry(item, content, time), reserved);
+    }
+
+    @Override
+    public long writeStreamed(CollectionItem item, InputStream inputStream, int level, long time) throws IOException {
+        // Blocks the caller until the entry is written, the stream belongs to the caller and it needs the size
+        Shard shard = assign(item, item.size());
+        return shard.call(() -> shard.writer.writeStreamed(item, inputStream, level, time));
+    }
+
+    @Override
+    public void writeStored(CollectionItem item, InputStream inputStream, long size, long crc, long time) throws IOException {
+        Shard shard = assign(item, size);
+        shard.call(() -> {
+            shard.writer.writeStored(item, inputStream, size, crc, time);
+            return null;
+        });
+    }
+
+    @Override
+    public boolean isSeekable() {
+        return shards.stream().allMatch(shard -> shard.writer.isSeekable());
+    }
+
+    @Override
+    public OutputStream openStored(CollectionItem item, long time) throws IOException {
+        // The entry is started once everything queued before it is written, the caller then writes it on its
+        // own thread. It writes nothing else until the entry is closed, so the volume thread stays idle meanwhile.
+        Shard shard = assign(item, item.size());
+        return shard.call(() -> shard.writer.openStored(item, time));
+    }
+
+    @Override
+    public void writeDirectory(CollectionItem item, long time) throws IOException {
+        Shard shard = assign(item, 0);
+        shard.execute(() -> shard.writer.writeDirectory(item, time), 0);
+    }
+
+    @Override
+    public boolean writeLink(CollectionItem item, CollectionItem target, long time) throws IOException {
+        // A link only resolves within the volume that has its target
+        Integer targetShard = shardByZipPath.get(target.zipPath());
+        if (targetShard == null) {
+            return false;
+        }
+        Shard shard = shards.get(targetShard - 1);
+        boolean written = shard.call(() -> shard.writer.writeLink(item, target, time));
+        if (written) {
+            record(item, shard);
+        }
+        return written;
+    }
+
+    // Picks the volume for an entry and records it in the index
+    private Shard assign(CollectionItem item, long bytes) throws IOException {
+        IOException failure = error;
+        if (failure != null) {
+            throw failure;
+        }
+
+        Shard shard = shards.get(0);
+        Integer dataShard = item.zipPath().endsWith(SeekableGzip.INDEX_SUFFIX)
+                ? shardByZipPath.get(item.zipPath().substring(0, item.zipPath().length() - SeekableGzip.INDEX_SUFFIX.length()))
+                : null;
+        if (dataShard != null) {
+            // The block index of a seekable entry only applies to the volume that has the entry
+            shard = shards.get(dataShard - 1);
+        } else if (item.vfsPath().startsWith("\\")) {
+            for (Shard candidate : shards) {
+                if (candidate.assignedBytes < shard.assignedBytes) {
+                    shard = candidate;
+                }
+            }
+        }
+        shard.assignedBytes += bytes;
+        record(item, shard);
+        return shard;
+    }
+
+    private void record(CollectionItem item, Shard shard) {
+        shardByZipPath.put(item.zipPath(), shard.number);
+        index.append(Manifest.quote(item.vfsPath())).append(',')
+                .append(Manifest.quote(item.zipPath())).append(',')
+                .append(shard.number).append(',')
+                .append(Manifest.quote(shard.name)).append('\n');
+    }
+
+    /**
+     * Writes the index into the first volume, waits for all volumes to be
+     * written and closes them.
+     */
+    @Override
+    public void close() throws IOException {
+        IOException failure = null;
+        try {
+            byte[] csv = index.toString().getBytes(StandardCharsets.UTF_8);
+            CollectionItem indexItem = new CollectionItem(INDEX_NAME, INDEX_NAME, true, csv.length);
+            Shard first = shards.get(0);
+            first.call(() -> {
+                first.writer.writeEntry(indexItem, CompressedContent.compress(csv, CompressionPolicy.DEFAULT_LEVEL), System.currentTimeMillis());
+                return null;
+            });
+        } catch (IOException ex) {
+            failure = ex;
+        }
+
+        for (Shard shard : shards) {
+            try {
+                shard.finish();
+            } catch (IOException ex) {
+                if (failure == null) {
+                    failure = ex;
+                }
+            }
+        }
+
+        if (failure == null) {
+            failure = error;
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    @FunctionalInterface
+    private interface IOTask {
+
+        void run() throws IOException;
+    }
+
+    private final class Shard {
+
+        private final int number;
+        private final String name;
+        private final ArchiveWriter writer;
+        private final ExecutorService executor;
+
+        // Only accessed from the calling thread
+        private long assignedBytes = 0;
+
+        private Shard(int number, String name, ArchiveWriter writer) {
+            this.number = number;
+            this.name = name;
+            this.writer = writer;
+            this.executor = Executors.newSingleThreadExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "shard-writer-" + number);
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+
+        // Writes in the background, a failure is reported by the next call. The
+        // reserved bytes are released even when the task is skipped after a failure.
+        private void execute(IOTask task, long reserved) {
+            executor.execute(() -> {
+                try {
+                    if (error == null) {
+                        task.run();
+                    }
+                } catch (IOException ex) {
+                    error = ex;
+                } finally {
+                    queued.release(reserved);
+                }
+            });
+        }
+
+        // Writes on the volume thread, after everything queued before, and waits for the result
+        private <T> T call(Callable<T> task) throws IOException {
+            Future<T> future = executor.submit(task);
+            try {
+                return future.get();
+            } catch (InterruptedException ex) {
+                future.cancel(true);
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted writing to shard " + number);
+            } catch (ExecutionException ex) {
+                if (ex.getCause() instanceof IOException ioException) {
+                    throw ioException;
+                }
+                throw new IOException("Error writing to shard " + number, ex.getCause());
+            }
+        }
+
+        private void finish() throws IOException {
+            executor.shutdown();
+            try {
+                executor.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+            } catch (InterruptedException ex) {
+                executor.shutdownNow();
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted closing shard " + number);
+            }
+            writer.close();
+        }
+    }
+}
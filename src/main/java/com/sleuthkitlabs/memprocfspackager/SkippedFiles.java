@@ -0,0 +1,84 @@
+/*
+ * memprocfs_packager
+ * 
+ * Copyright (C) 2024  Sleuth Kit Labs
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.sleuthkitlabs.memprocfspackager;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Files a run did not collect, or only collected in part, because of the
+ * deadline or a failed read. Written into the package, so an incomplete
+ * package says what it is missing.
+ */
+class SkippedFiles {
+
+    static final String SKIPPED_NAME = "skipped.csv";
+
+    enum Reason {
+        // The run deadline passed before the file was read
+        DEADLINE,
+        // The file took longer to read than the per-file timeout, only the start of it was collected
+        READ_TIMEOUT,
+        // Forensic processing had not finished by the run deadline
+        FORENSIC_INCOMPLETE,
+        // The file ended before its listed size, usually because reading it failed part way
+        SHORT_READ
+    }
+
+    // Added to from the reader threads and the writer thread
+    private final Queue<Skipped> skipped = new ConcurrentLinkedQueue<>();
+
+    /**
+     * Records a file or rule that was not collected in full.
+     *
+     * @param collected bytes that made it into the package, 0 if the file was
+     *                  skipped entirely
+     */
+    void add(String vfsPath, long size, long collected, Reason reason) {
+        skipped.add(new Skipped(vfsPath, size, collected, reason));
+    }
+
+    boolean isEmpty() {
+        return skipped.isEmpty();
+    }
+
+    int size() {
+        return skipped.size();
+    }
+
+    /**
+     * Returns the list as CSV, in the order the files were skipped.
+     */
+    byte[] toCsv() {
+        StringBuilder csv = new StringBuilder("vfs_path,size,collected,reason\n");
+        for (Skipped entry : skipped) {
+            csv.append(Manifest.quote(entry.vfsPath())).append(',')
+                    .append(entry.size() >= 0 ? String.valueOf(entry.size()) : "").append(',')
+                    .append(entry.collected()).append(',')
+                    .append(entry.reason().name().toLowerCase(Locale.ROOT)).append('\n');
+        }
+        return csv.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    private record Skipped(String vfsPath, long size, long collected, Reason reason) {
+
+    }
+}
@@ -0,0 +1,211 @@
+/*
+ * memprocfs_packager
+ * 
+ * Copyright (C) 2024  Sleuth Kit Labs
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.sleuthkitlabs.memprocfspackager;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.ZipEntry;
+
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveOutputStream;
+import org.apache.commons.compress.archivers.tar.TarConstants;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Writes the package as a TAR stream with per-file compression.
+ *
+ * Every deflated entry is written as its own gzip member named after the
+ * file with a .gz suffix, so consumers can decompress entries one by one as
+ * they arrive. The gzip members are built from the raw DEFLATE data produced
+ * by the compression pool, nothing is compressed twice.
+ *
+ * TAR headers need the size up front, so streamed entries are spooled to a
+ * temporary file first, deflated into a gzip member unless the compression
+ * policy stores them, and written with the size actually spooled.
+ *
+ * Deduplicated entries are written as hard links to the entry holding the
+ * same content.
+ */
+class TarArchiveWriter implements ArchiveWriter {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(TarArchiveWriter.class);
+
+    static final String GZIP_SUFFIX = ".gz";
+
+    private static final int GZIP_HEADER_SIZE = 10;
+
+    private static final int GZIP_TRAILER_SIZE = 8;
+
+    private static final int SPOOL_BUFFER_SIZE = 64 * 1024;
+
+    private final TarArchiveOutputStream tarOutputStream;
+
+    // Name of the TAR entry written for each archive path, which has a .gz suffix when deflated
+    private final Map<String, String> entryNames = new HashMap<>();
+
+    TarArchiveWriter(OutputStream outputStream) {
+        this.tarOutputStream = new TarArchiveOutputStream(outputStream);
+        this.tarOutputStream.setLongFileMode(TarArchiveOutputStream.LONGFILE_POSIX);
+        this.tarOutputStream.setBigNumberMode(TarArchiveOutputStream.BIGNUMBER_POSIX);
+    }
+
+    @Override
+    public void writeEntry(CollectionItem item, CompressedContent content, long time) throws IOException {
+        if (content.method() == ZipEntry.STORED) {
+            TarArchiveEntry tarEntry = newEntry(item.zipPath(), time);
+            tarEntry.setSize(content.data().length);
+            tarOutputStream.putArchiveEntry(tarEntry);
+            tarOutputStream.write(content.data());
+            tarOutputStream.closeArchiveEntry();
+            entryNames.put(item.zipPath(), tarEntry.getName());
+            return;
+        }
+
+        TarArchiveEntry tarEntry = newEntry(item.zipPath() + GZIP_SUFFIX, time);
+        tarEntry.setSize(GZIP_HEADER_SIZE + content.data().length + GZIP_TRAILER_SIZE);
+        tarOutputStream.putArchiveEntry(tarEntry);
+        tarOutputStream.write(gzipHeader(time));
+        tarOutputStream.write(content.data());
+        tarOutputStream.write(gzipTrailer(content.crc(), content.size()));
+        tarOutputStream.closeArchiveEntry();
+        entryNames.put(item.zipPath(), tarEntry.getName());
+    }
+
+    @Override
+    public long writeStreamed(CollectionItem item, InputStream inputStream, int level, long time) throws IOException {
+        // The VFS may return less than it listed, so the content is spooled to learn the size for the header
+        Path spool = Files.createTempFile("memprocfs_packager", ".tar");
+        try {
+            CheckedInputStream checkedInputStream = new CheckedInputStream(inputStream, new CRC32());
+            long size;
+            if (level == CompressionPolicy.STORED) {
+                try (OutputStream outputStream = new BufferedOutputStream(Files.newOutputStream(spool))) {
+                    size = checkedInputStream.transferTo(outputStream);
+                }
+            } else {
+                Deflater deflater = new Deflater(level, true);
+                try (OutputStream outputStream = new DeflaterOutputStream(new BufferedOutputStream(Files.newOutputStream(spool)), deflater, SPOOL_BUFFER_SIZE)) {
+                    size = checkedInputStream.transferTo(outputStream);
+                } finally {
+                    deflater.end();
+                }
+            }
+            if (size != item.size()) {
+                LOGGER.warn("Read " + size + " bytes of " + item.vfsPath() + ", listed with " + item.size() + " bytes");
+            }
+
+            boolean stored = level == CompressionPolicy.STORED;
+            long spooledSize = Files.size(spool);
+            TarArchiveEntry tarEntry = newEntry(stored ? item.zipPath() : item.zipPath() + GZIP_SUFFIX, time);
+            tarEntry.setSize(stored ? spooledSize : GZIP_HEADER_SIZE + spooledSize + GZIP_TRAILER_SIZE);
+            tarOutputStream.putArchiveEntry(tarEntry);
+            if (!stored) {
+                tarOutputStream.write(gzipHeader(time));
+            }
+            try (InputStream spooled = Files.newInputStream(spool)) {
+                spooled.transferTo(tarOutputStream);
+            }
+            if (!stored) {
+                tarOutputStream.write(gzipTrailer(checkedInputStream.getChecksum().getValue(), size));
+            }
+            tarOutputStream.closeArchiveEntry();
+            entryNames.put(item.zipPath(), tarEntry.getName());
+            return size;
+        } finally {
+            Files.deleteIfExists(spool);
+        }
+    }
+
+    @Override
+    public void writeStored(CollectionItem item, InputStream inputStream, long size, long crc, long time) throws IOException {
+        TarArchiveEntry tarEntry = newEntry(item.zipPath(), time);
+        tarEntry.setSize(size);
+        tarOutputStream.putArchiveEntry(tarEntry);
+        long written = inputStream.transferTo(tarOutputStream);
+        if (written != size) {
+            throw new IOException("Expected " + size + " bytes for " + item.zipPath() + ", got " + written);
+        }
+        tarOutputStream.closeArchiveEntry();
+        entryNames.put(item.zipPath(), tarEntry.getName());
+    }
+
+    @Override
+    public void writeDirectory(CollectionItem item, long time) throws IOException {
+        tarOutputStream.putArchiveEntry(newEntry(item.zipPath(), time));
+        tarOutputStream.closeArchiveEntry();
+    }
+
+    @Override
+    public boolean writeLink(CollectionItem item, CollectionItem target, long time) throws IOException {
+        String targetName = entryNames.get(target.zipPath());
+        if (targetName == null) {
+            return false;
+        }
+
+        // The link gets the same suffix as its target, so both extract the same way
+        String suffix = targetName.substring(target.zipPath().length());
+        TarArchiveEntry tarEntry = new TarArchiveEntry(item.zipPath() + suffix, TarConstants.LF_LINK);
+        tarEntry.setLinkName(targetName);
+        tarEntry.setLastModifiedTime(FileTime.fromMillis(time));
+        tarOutputStream.putArchiveEntry(tarEntry);
+        tarOutputStream.closeArchiveEntry();
+        return true;
+    }
+
+    @Override
+    public void close() throws IOException {
+        tarOutputStream.close();
+    }
+
+    private static TarArchiveEntry newEntry(String name, long time) {
+        TarArchiveEntry tarEntry = new TarArchiveEntry(name);
+        tarEntry.setLastModifiedTime(FileTime.fromMillis(time));
+        return tarEntry;
+    }
+
+    // RFC 1952 member header: magic, DEFLATE, no flags, mtime, no extra flags, unknown OS
+    private static byte[] gzipHeader(long time) {
+        long seconds = time / 1000;
+        return new byte[] {
+            (byte) 0x1f, (byte) 0x8b, 8, 0,
+            (byte) seconds, (byte) (seconds >> 8), (byte) (seconds >> 16), (byte) (seconds >> 24),
+            0, (byte) 0xff
+        };
+    }
+
+    // RFC 1952 member trailer: CRC-32 and size modulo 2^32, both little endian
+    private static byte[] gzipTrailer(long crc, long size) {
+        return new byte[] {
+            (byte) crc, (byte) (crc >> 8), (byte) (crc >> 16), (byte) (crc >> 24),
+            (byte) size, (byte) (size >> 8), (byte) (size >> 16), (byte) (size >> 24)
+        };
+    }
+}
@@ -20,73 +20,396 @@ package com.sleuthkitlabs.memprocfspackager;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.Objects;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.sun.jna.Memory;
+
 import vmm.IVmm;
 import vmm.VmmException;
 
+/**
+ * Reads a file from the MemProcFS virtual file system.
+ *
+ * Data is fetched from the VFS in chunks. The chunk size starts small and is
+ * adjusted after every read based on the observed throughput, so small files
+ * cost a single call and large files are read in few, large calls.
+ *
+ * A deadline bounds the time spent on one file. Once it has passed the
+ * stream ends early, so a slow VFS node can not stall the run. Callers check
+ * {@link #isTruncated} to tell a truncated file from a complete one.
+ *
+ * With a NativeVfsReader the chunks are read into a pooled off-heap buffer
+ * and copied straight into the caller's array, so reading allocates nothing
+ * on the heap. Each buffer goes back to the pool once its chunk has been
+ * read.
+ *
+ * With read-ahead the chunks are fetched on a background thread, up to a
+ * given number ahead of the reader, so the VFS is read while the caller
+ * compresses the previous chunk.
+ */
 public class VFSInputStream extends InputStream {
 
     private static final Logger LOGGER = LoggerFactory.getLogger(VFSInputStream.class);
 
-    private static final int CHUNK_SIZE = 1024;
+    static final int MIN_CHUNK_SIZE = 64 * 1024;
+
+    static final int MAX_CHUNK_SIZE = 16 * 1024 * 1024;
+
+    // Reads faster than this are considered cheap enough to double the chunk size
+    private static final long GROW_THRESHOLD_NANOS = 50_000_000L;
+
+    // Reads slower than this are considered too expensive and the chunk size is halved
+    private static final long SHRINK_THRESHOLD_NANOS = 500_000_000L;
+
+    // Marks the end of the file
+    private static final Chunk END = new Chunk(null, null, 0);
 
     private final String file;
     private final IVmm vmm;
-    private final int size;
-    private int offset = 0;
-    private byte[] buffer;
+    private final long size;
+    private Deadline deadline = Deadline.NONE;
+
+    // Only accessed by the thread fetching chunks, the reader or the read-ahead task
+    private long offset = 0;
+    private int chunkSize = MIN_CHUNK_SIZE;
+    private volatile boolean truncated = false;
+
+    // Chunk being read by the caller
+    private Chunk chunk;
     private int bufferPos = 0;
     private int bufferLimit = 0;
-    private int bytesRead = 0;
+    private boolean endOfFile = false;
+
+    // Null when reading through IVmm.vfsRead
+    private final NativeVfsReader nativeReader;
+    private final NativeVfsReader.FileName nativeFileName;
+
+    // Null unless chunks are fetched in the background
+    private ReadAhead readAhead;
 
-    public VFSInputStream(String file, int size, IVmm vmm) {
+    public VFSInputStream(String file, long size, IVmm vmm) {
+        this(file, size, vmm, null);
+    }
+
+    VFSInputStream(String file, long size, IVmm vmm, NativeVfsReader nativeReader) {
         this.file = file;
         this.size = size;
         this.vmm = vmm;
+        this.nativeReader = nativeReader;
+        this.nativeFileName = nativeReader != null ? NativeVfsReader.fileName(file) : null;
+    }
+
+    /**
+     * Ends the stream at the first chunk boundary after the deadline.
+     */
+    void setDeadline(Deadline deadline) {
+        this.deadline = deadline;
+    }
+
+    /**
+     * Fetches chunks on the given executor, up to depth chunks ahead of the
+     * reader. Must be called before the first read. Files of a single chunk
+     * are read directly, there is nothing to overlap.
+     */
+    void setReadAhead(int depth, ExecutorService executor) {
+        if (depth < 1 || size <= MIN_CHUNK_SIZE || readAhead != null) {
+            return;
+        }
+        readAhead = new ReadAhead(depth);
+        readAhead.start(executor);
+    }
+
+    /**
+     * Returns true if the stream ended early because the deadline passed.
+     */
+    boolean isTruncated() {
+        return truncated;
     }
 
     @Override
     public int read() throws IOException {
 
-        if (bytesRead >= size) {
-            return -1; // End of stream
+        if (bufferPos >= bufferLimit) {
+            loadNextChunk();
+            if (endOfFile) {
+                return -1; // End of stream
+            }
+        }
+
+        if (chunk.memory() != null) {
+            return chunk.memory().getByte(bufferPos++) & 0xFF;
+        }
+        return chunk.bytes()[bufferPos++] & 0xFF; // Return the next byte as unsigned int
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        Objects.checkFromIndexSize(off, len, b.length);
+        if (len == 0) {
+            return 0;
         }
 
         if (bufferPos >= bufferLimit) {
             loadNextChunk();
-            if (bufferLimit == -1) {
+            if (endOfFile) {
                 return -1; // End of stream
             }
         }
 
-        bytesRead++;
-        return buffer[bufferPos++] & 0xFF; // Return the next byte as unsigned int
+        int count = Math.min(len, bufferLimit - bufferPos);
+        if (chunk.memory() != null) {
+            chunk.memory().read(bufferPos, b, off, count);
+        } else {
+            System.arraycopy(chunk.bytes(), bufferPos, b, off, count);
+        }
+        bufferPos += count;
+        return count;
+    }
+
+    @Override
+    public int available() {
+        return bufferLimit - bufferPos;
+    }
+
+    @Override
+    public long transferTo(OutputStream out) throws IOException {
+        Objects.requireNonNull(out, "out");
+        if (nativeReader != null) {
+            // Off-heap chunks have to be copied to the heap for the OutputStream anyway
+            return super.transferTo(out);
+        }
+
+        // Write the chunks directly, without copying them through an intermediate buffer
+        long transferred = 0;
+        while (true) {
+            if (bufferPos >= bufferLimit) {
+                loadNextChunk();
+                if (endOfFile) {
+                    return transferred;
+                }
+            }
+            int count = bufferLimit - bufferPos;
+            out.write(chunk.bytes(), bufferPos, count);
+            bufferPos += count;
+            transferred += count;
+        }
     }
 
     private void loadNextChunk() throws IOException {
+        if (endOfFile) {
+            return;
+        }
+
+        releaseChunk();
+        Chunk next = readAhead != null ? readAhead.take() : fetchChunk();
+        if (next == END) {
+            endOfFile = true;
+            return;
+        }
+
+        chunk = next;
+        bufferPos = 0;
+        bufferLimit = next.length();
+    }
+
+    // Reads the chunk at the current offset, returns END at the end of the file or once the deadline has passed
+    private Chunk fetchChunk() {
+
+        long remaining = size - offset;
+        if (remaining <= 0) {
+            return END;
+        }
 
-        int remaining = size - bytesRead;
-        int sizeToRead = Math.min(remaining, CHUNK_SIZE);
+        if (deadline.isExpired()) {
+            // A single call can not be interrupted, but no further chunks are read
+            LOGGER.warn("Read deadline passed, " + file + " truncated at " + offset + " of " + size + " bytes");
+            truncated = true;
+            return END;
+        }
+
+        int sizeToRead = (int) Math.min(remaining, chunkSize);
+        if (nativeReader != null) {
+            return fetchNativeChunk(sizeToRead);
+        }
 
         byte[] bytes = null;
+        long start = System.nanoTime();
         try {
             bytes = vmm.vfsRead(file, offset, sizeToRead);
         } catch (VmmException ex) {
             LOGGER.error("Error reading file " + file + " : ", ex);
         }
+        long elapsed = System.nanoTime() - start;
 
         if (bytes == null || bytes.length == 0) {
-            bufferLimit = -1; // End of file reached
-            return;
+            return END; // End of file reached
+        }
+
+        // Only adjust the chunk size when a full chunk was read, short reads say nothing about throughput
+        if (bytes.length == sizeToRead) {
+            adjustChunkSize(elapsed);
+        }
+
+        offset += bytes.length; // Update the offset for the next read
+        return new Chunk(bytes, null, bytes.length);
+    }
+
+    private Chunk fetchNativeChunk(int sizeToRead) {
+        // Each chunk gets its own buffer, the pool hands the previous one out again once it is released
+        Memory buffer = nativeReader.getBufferPool().acquire(sizeToRead);
+
+        int count = 0;
+        long start = System.nanoTime();
+        try {
+            count = nativeReader.read(nativeFileName, offset, buffer, sizeToRead);
+        } catch (VmmException ex) {
+            LOGGER.error("Error reading file " + file + " : ", ex);
         }
+        long elapsed = System.nanoTime() - start;
 
-        // Convert the chunk data to bytes
-        buffer = bytes;
+        if (count <= 0) {
+            nativeReader.getBufferPool().release(buffer);
+            return END;
+        }
+
+        if (count == sizeToRead) {
+            adjustChunkSize(elapsed);
+        }
+
+        offset += count;
+        return new Chunk(null, buffer, count);
+    }
+
+    // Returns the native buffer of the current chunk to the pool
+    private void releaseChunk() {
+        release(chunk);
+        chunk = null;
         bufferPos = 0;
-        bufferLimit = buffer.length;
-        offset += bufferLimit; // Update the offset for the next read
+        bufferLimit = 0;
+    }
+
+    private void release(Chunk released) {
+        if (released != null && released.memory() != null) {
+            nativeReader.getBufferPool().release(released.memory());
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (readAhead != null) {
+            readAhead.close();
+        }
+        releaseChunk();
+        endOfFile = true;
+    }
+
+    // Grow the chunk size while reads are cheap and shrink it when a single read stalls for too long
+    private void adjustChunkSize(long elapsedNanos) {
+        if (elapsedNanos < GROW_THRESHOLD_NANOS && chunkSize < MAX_CHUNK_SIZE) {
+            chunkSize = Math.min(chunkSize * 2, MAX_CHUNK_SIZE);
+        } else if (elapsedNanos > SHRINK_THRESHOLD_NANOS && chunkSize > MIN_CHUNK_SIZE) {
+            chunkSize = Math.max(chunkSize / 2, MIN_CHUNK_SIZE);
+        }
+    }
+
+    // A chunk read from the VFS, on the heap or in a pooled native buffer
+    private record Chunk(byte[] bytes, Memory memory, int length) {
+
+    }
+
+    // Fetches the chunks on a background thread into a bounded queue
+    private final class ReadAhead {
+
+        private final BlockingQueue<Chunk> chunks;
+        private Future<?> task;
+        private volatile boolean closed = false;
+        private volatile RuntimeException error;
+
+        private ReadAhead(int depth) {
+            this.chunks = new ArrayBlockingQueue<>(depth);
+        }
+
+        private void start(ExecutorService executor) {
+            task = executor.submit(this::fetchAll);
+        }
+
+        private void fetchAll() {
+            try {
+                Chunk next;
+                do {
+                    next = fetchChunk();
+                } while (put(next) && next != END);
+            } catch (RuntimeException ex) {
+                error = ex;
+                put(END);
+            }
+        }
+
+        // Waits for room in the queue, returns false if the stream has been closed meanwhile
+        private boolean put(Chunk next) {
+            try {
+                while (!closed) {
+                    if (chunks.offer(next, 100, TimeUnit.MILLISECONDS)) {
+                        if (closed) {
+                            // Closed while offering, nobody is going to take it
+                            drain();
+                        }
+                        return true;
+                    }
+                }
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+            release(next);
+            return false;
+        }
+
+        private Chunk take() throws IOException {
+            Chunk next;
+            try {
+                next = chunks.take();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted reading " + file);
+            }
+            if (error != null) {
+                throw new IOException("Error reading file " + file, error);
+            }
+            return next;
+        }
+
+        // Waits for the task, so it is not in the middle of a VFS call once the stream is closed
+        private void close() throws IOException {
+            closed = true;
+            drain();
+            try {
+                task.get();
+            } catch (ExecutionException ex) {
+                LOGGER.warn("Error reading ahead " + file, ex.getCause());
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted closing " + file);
+            } finally {
+                drain();
+            }
+        }
+
+        private void drain() {
+            Chunk next;
+            while ((next = chunks.poll()) != null) {
+                release(next);
+            }
+        }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,91 @@
+/*
+ * memprocfs_packager
+ * 
+ * Copyright (C) 2024  Sleuth Kit Labs
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.sleuthkitlabs.memprocfspackager;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import vmm.entry.Vmm_VfsListEntry;
+
+/**
+ * Caches VFS directory listings for the duration of a run, so each directory
+ * is listed from the VfsSource only once no matter how many rules touch it.
+ *
+ * Listings are kept as maps from entry name to entry, in the order returned
+ * by MemProcFS. The \forensic\ directory keeps changing while forensic
+ * processing runs, so listings below it are not cached until
+ * {@link #setForensicComplete} has been called.
+ */
+class VfsListingCache {
+
+    static final String FORENSIC_PATH = "\\forensic\\";
+
+    private final VfsSource source;
+    private final Map<String, Map<String, Vmm_VfsListEntry>> listings = new ConcurrentHashMap<>();
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private volatile boolean forensicComplete = false;
+
+    VfsListingCache(VfsSource source) {
+        this.source = source;
+    }
+
+    /**
+     * Returns the entries of a directory by name. Returns an empty map if the
+     * directory does not exist or can not be listed.
+     */
+    Map<String, Vmm_VfsListEntry> list(String path) {
+        String key = path.endsWith("\\") ? path : path + "\\";
+
+        Map<String, Vmm_VfsListEntry> listing = listings.get(key);
+        if (listing != null) {
+            hits.increment();
+            return listing;
+        }
+
+        misses.increment();
+        listing = source.list(key);
+        if (listing != null && isCacheable(key)) {
+            listings.putIfAbsent(key, listing);
+        }
+        return listing != null ? listing : Map.of();
+    }
+
+    /**
+     * Marks forensic processing as complete. Listings below \forensic\ are
+     * cached from now on.
+     */
+    void setForensicComplete() {
+        forensicComplete = true;
+        listings.keySet().removeIf(key -> key.startsWith(FORENSIC_PATH));
+    }
+
+    long getHits() {
+        return hits.sum();
+    }
+
+    long getMisses() {
+        return misses.sum();
+    }
+
+    private boolean isCacheable(String path) {
+        return forensicComplete || !path.startsWith(FORENSIC_PATH);
+    }
+}
@@ -0,0 +1,55 @@
+/*
+ * memprocfs_packager
+ * 
+ * Copyright (C) 2024  Sleuth Kit Labs
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.sleuthkitlabs.memprocfspackager;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Map;
+
+import vmm.entry.Vmm_VfsListEntry;
+
+/**
+ * Where VFS directories are listed and files are read from: MemProcFS
+ * through vmmjava, or a directory such as a mounted MemProcFS file system.
+ *
+ * Paths use backslashes and start with one, directory paths end with one.
+ * Implementations are used from many threads at the same time.
+ */
+interface VfsSource extends Closeable {
+
+    /**
+     * Returns the entries of a directory by name, in the order of the
+     * source. Returns null if the directory does not exist or can not be
+     * listed.
+     */
+    Map<String, Vmm_VfsListEntry> list(String path);
+
+    /**
+     * Opens a file for reading.
+     *
+     * @param size     size reported by the listing
+     * @param deadline sources that read in chunks stop at the first chunk
+     *                 boundary after it
+     */
+    InputStream open(String path, long size, Deadline deadline) throws IOException;
+
+    @Override
+    void close();
+}
@@ -0,0 +1,89 @@
+/*
+ * memprocfs_packager
+ * 
+ * Copyright (C) 2024  Sleuth Kit Labs
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.sleuthkitlabs.memprocfspackager;
+
+import java.io.InputStream;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import vmm.IVmm;
+import vmm.VmmException;
+import vmm.entry.Vmm_VfsListEntry;
+
+/**
+ * Lists and reads the VFS of a MemProcFS instance through vmmjava.
+ */
+class VmmVfsSource implements VfsSource {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(VmmVfsSource.class);
+
+    private final IVmm vmm;
+
+    // Null when reading through IVmm.vfsRead
+    private final NativeVfsReader nativeReader;
+
+    VmmVfsSource(IVmm vmm, NativeVfsReader nativeReader) {
+        this.vmm = vmm;
+        this.nativeReader = nativeReader;
+    }
+
+    @Override
+    public Map<String, Vmm_VfsListEntry> list(String path) {
+        String vmmPath = path;
+        if (vmmPath.startsWith("\\registry\\") && vmmPath.endsWith("\\")) {
+            // workaround for issue: https://github.com/ufrisk/MemProcFS/issues/321
+            vmmPath = vmmPath.substring(0, vmmPath.length() - 1);
+        }
+
+        try {
+            List<Vmm_VfsListEntry> directoryListing = vmm.vfsList(vmmPath);
+            Map<String, Vmm_VfsListEntry> listing = new LinkedHashMap<>();
+            for (Vmm_VfsListEntry entry : directoryListing) {
+                listing.putIfAbsent(entry.name, entry);
+            }
+            return Collections.unmodifiableMap(listing);
+        } catch (VmmException ex) {
+            LOGGER.error("Error listing files for path: " + vmmPath, ex);
+        }
+
+        return null;
+    }
+
+    @Override
+    public InputStream open(String path, long size, Deadline deadline) {
+        VFSInputStream inputStream = new VFSInputStream(path, size, vmm, nativeReader);
+        inputStream.setDeadline(deadline);
+        return inputStream;
+    }
+
+    // Null when reading through IVmm.vfsRead
+    NativeVfsReader getNativeReader() {
+        return nativeReader;
+    }
+
+    @Override
+    public void close() {
+        vmm.close();
+    }
+}
@@ -0,0 +1,163 @@
+/*
+ * memprocfs_packager
+ * 
+ * Copyright (C) 2024  Sleuth Kit Labs
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.sleuthkitlabs.memprocfspackager;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.SeekableByteChannel;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+
+import org.apache.commons.compress.archivers.zip.Zip64Mode;
+import org.apache.commons.compress.archivers.zip.ZipArchiveEntry;
+import org.apache.commons.compress.archivers.zip.ZipArchiveOutputStream;
+
+/**
+ * Writes the package as a ZIP file.
+ *
+ * Pre-compressed entries are copied in raw, with their sizes and CRC in the
+ * local header. Streamed entries are deflated on the fly and followed by a
+ * data descriptor, so the output never has to be seeked and can be a pipe.
+ * Streamed entries that should not be compressed are deflated at level 0.
+ *
+ * Written to a seekable channel instead, the local header of a streamed entry
+ * is filled in once the entry is complete. Its size is then left unset up
+ * front, so entries that turn out larger than 4 GB, such as ntfs_files.txt of
+ * a large volume, get Zip64 sizes instead of failing the run. Streamed
+ * entries that should not be compressed are then STORED.
+ */
+class ZipArchiveWriter implements ArchiveWriter {
+
+    private final ZipArchiveOutputStream zipOutputStream;
+
+    // The output can be seeked to rewrite local headers
+    private final boolean seekable;
+
+    ZipArchiveWriter(OutputStream outputStream) {
+        this.zipOutputStream = new ZipArchiveOutputStream(outputStream);
+        this.zipOutputStream.setUseZip64(Zip64Mode.AsNeeded);
+        this.seekable = false;
+    }
+
+    ZipArchiveWriter(SeekableByteChannel channel) {
+        this.zipOutputStream = new ZipArchiveOutputStream(channel);
+        this.zipOutputStream.setUseZip64(Zip64Mode.AsNeeded);
+        this.seekable = true;
+    }
+
+    @Override
+    public void writeEntry(CollectionItem item, CompressedContent content, long time) throws IOException {
+        ZipArchiveEntry zipEntry = new ZipArchiveEntry(item.zipPath());
+        zipEntry.setTime(time);
+        zipEntry.setMethod(content.method());
+        zipEntry.setCrc(content.crc());
+        zipEntry.setSize(content.size());
+        zipEntry.setCompressedSize(content.data().length);
+        zipOutputStream.addRawArchiveEntry(zipEntry, new ByteArrayInputStream(content.data()));
+    }
+
+    @Override
+    public long writeStreamed(CollectionItem item, InputStream inputStream, int level, long time) throws IOException {
+        ZipArchiveEntry zipEntry = new ZipArchiveEntry(item.zipPath());
+        zipEntry.setTime(time);
+        if (level == CompressionPolicy.STORED && seekable) {
+            // The size and CRC of the stored entry are filled into its local header once it is complete
+            zipEntry.setMethod(ZipEntry.STORED);
+        } else {
+            // Without seeking a STORED entry needs its CRC up front, so the content is deflated without compression instead
+            zipEntry.setMethod(ZipEntry.DEFLATED);
+            zipOutputStream.setLevel(level == CompressionPolicy.STORED ? Deflater.NO_COMPRESSION : level);
+        }
+        if (!seekable) {
+            // Without seeking the Zip64 decision is made from the size listed by MemProcFS
+            zipEntry.setSize(item.size());
+        }
+        zipOutputStream.putArchiveEntry(zipEntry);
+        long written = inputStream.transferTo(zipOutputStream);
+        zipOutputStream.closeArchiveEntry();
+        return written;
+    }
+
+    @Override
+    public void writeStored(CollectionItem item, InputStream inputStream, long size, long crc, long time) throws IOException {
+        ZipArchiveEntry zipEntry = new ZipArchiveEntry(item.zipPath());
+        zipEntry.setTime(time);
+        zipEntry.setMethod(ZipEntry.STORED);
+        zipEntry.setSize(size);
+        zipEntry.setCompressedSize(size);
+        zipEntry.setCrc(crc);
+        zipOutputStream.addRawArchiveEntry(zipEntry, inputStream);
+    }
+
+    @Override
+    public boolean isSeekable() {
+        return seekable;
+    }
+
+    @Override
+    public OutputStream openStored(CollectionItem item, long time) throws IOException {
+        if (!seekable) {
+            return ArchiveWriter.super.openStored(item, time);
+        }
+        ZipArchiveEntry zipEntry = new ZipArchiveEntry(item.zipPath());
+        zipEntry.setTime(time);
+        zipEntry.setMethod(ZipEntry.STORED);
+        zipOutputStream.putArchiveEntry(zipEntry);
+        return new OutputStream() {
+            private boolean closed = false;
+
+            @Override
+            public void write(int b) throws IOException {
+                zipOutputStream.write(b);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                zipOutputStream.write(b, off, len);
+            }
+
+            // Closes the entry, not the archive
+            @Override
+            public void close() throws IOException {
+                if (!closed) {
+                    closed = true;
+                    zipOutputStream.closeArchiveEntry();
+                }
+            }
+        };
+    }
+
+    @Override
+    public void writeDirectory(CollectionItem item, long time) throws IOException {
+        ZipArchiveEntry zipEntry = new ZipArchiveEntry(item.zipPath());
+        zipEntry.setTime(time);
+        zipEntry.setMethod(ZipEntry.STORED);
+        zipEntry.setSize(0);
+        zipEntry.setCrc(0);
+        zipOutputStream.putArchiveEntry(zipEntry);
+        zipOutputStream.closeArchiveEntry();
+    }
+
+    @Override
+    public void close() throws IOException {
+        zipOutputStream.close();
+    }
+}
@@ -0,0 +1,82 @@
+/*
+ * memprocfs_packager
+ * 
+ * Copyright (C) 2024  Sleuth Kit Labs
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.sleuthkitlabs.memprocfspackager;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class BatchRunnerTest {
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void reportsTheSizeOfAllShards() throws IOException {
+        Path output = Files.createDirectory(directory.resolve("packages"));
+        List<Path> inputs = List.of(Files.createFile(directory.resolve("host1.raw")), Files.createFile(directory.resolve("host2.raw")));
+
+        BatchRunner runner = new BatchRunner(inputs, output, ArchiveFormat.ZIP, false, 2, 3);
+        List<BatchRunner.BatchResult> results = runner.run((input, packagePath) -> {
+            for (int shard = 1; shard <= 3; shard++) {
+                Files.write(ShardedArchiveWriter.shardPath(packagePath, shard), new byte[100 * shard]);
+            }
+        });
+
+        assertEquals(2, results.size());
+        for (BatchRunner.BatchResult result : results) {
+            assertEquals(BatchRunner.Status.SUCCEEDED, result.status());
+            assertEquals(600, result.outputBytes());
+        }
+        String summary = Files.readString(output.resolve(BatchRunner.SUMMARY_FILE_NAME), StandardCharsets.UTF_8);
+        assertTrue(summary.contains(",SUCCEEDED,") && summary.contains(",600,"), summary);
+    }
+
+    @Test
+    void skipsPackagesWithAnExistingShard() throws IOException {
+        Path output = Files.createDirectory(directory.resolve("packages"));
+        Path input = Files.createFile(directory.resolve("host1.raw"));
+        Files.createFile(output.resolve("host1.2.zip"));
+
+        BatchRunner runner = new BatchRunner(List.of(input), output, ArchiveFormat.ZIP, false, 1, 2);
+        List<BatchRunner.BatchResult> results = runner.run((image, packagePath) -> {
+            throw new IOException("Not expected to run");
+        });
+
+        assertEquals(BatchRunner.Status.SKIPPED, results.get(0).status());
+    }
+
+    @Test
+    void concurrencyFitsTheHeap() {
+        long heap = Runtime.getRuntime().maxMemory();
+        assertEquals(2, BatchRunner.concurrency(2, 1, 0));
+        assertEquals(1, BatchRunner.concurrency(4, 1, heap));
+        assertEquals(1, BatchRunner.concurrency(4, 1, heap * 2));
+        assertEquals(2, BatchRunner.concurrency(2, 1, heap / 4));
+        assertThrows(IllegalArgumentException.class, () -> BatchRunner.concurrency(0, 1, 0));
+    }
+}
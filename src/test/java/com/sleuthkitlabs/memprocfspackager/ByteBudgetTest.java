@@ -0,0 +1,84 @@
+/*
+ * memprocfs_packager
+ * 
+ * Copyright (C) 2024  Sleuth Kit Labs
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.sleuthkitlabs.memprocfspackager;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.junit.jupiter.api.Test;
+
+class ByteBudgetTest {
+
+    @Test
+    void acquireClampsToCapacity() throws InterruptedException {
+        ByteBudget budget = new ByteBudget(100);
+        assertEquals(100, budget.acquire(1000));
+        budget.release(100);
+        assertEquals(0, budget.acquire(-5));
+        assertEquals(40, budget.acquire(40));
+    }
+
+    @Test
+    void acquireWaitsForRelease() throws InterruptedException {
+        ByteBudget budget = new ByteBudget(100);
+        assertEquals(70, budget.acquire(70));
+
+        AtomicLong acquired = new AtomicLong(-1);
+        CountDownLatch done = new CountDownLatch(1);
+        Thread waiter = new Thread(() -> {
+            try {
+                acquired.set(budget.acquire(50));
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            } finally {
+                done.countDown();
+            }
+        });
+        waiter.start();
+
+        assertFalse(done.await(100, TimeUnit.MILLISECONDS));
+        budget.release(70);
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        assertEquals(50, acquired.get());
+    }
+
+    @Test
+    void releaseDoesNotGrowPastCapacity() throws InterruptedException {
+        ByteBudget budget = new ByteBudget(100);
+        budget.release(500);
+        assertEquals(100, budget.acquire(100));
+
+        Thread waiter = new Thread(() -> {
+            try {
+                budget.acquire(1);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        waiter.start();
+        waiter.join(100);
+        assertTrue(waiter.isAlive());
+        waiter.interrupt();
+        waiter.join();
+    }
+}
@@ -0,0 +1,227 @@
+/*
+ * memprocfs_packager
+ * 
+ * Copyright (C) 2024  Sleuth Kit Labs
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.sleuthkitlabs.memprocfspackager;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.GZIPInputStream;
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveInputStream;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import vmm.entry.Vmm_VfsListEntry;
+
+class CollectionEngineTest {
+
+    private static final List<CollectionRule> FORENSIC_RULES = List.of(new CollectionRule("\\forensic\\csv\\*"));
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void everyFileIsWrittenIntact() throws IOException {
+        // Empty, batched, read by a reader and streamed by the writer
+        long[] sizes = {0, 100, 3000, 8192};
+        FakeVfs vfs = new FakeVfs();
+        List<CollectionItem> items = new ArrayList<>();
+        for (int i = 0; i < 40; i++) {
+            String path = "\\sys\\files\\file" + i + ".txt";
+            vfs.file(path, sizes[i % sizes.length]);
+            items.add(TestPackages.item(path, sizes[i % sizes.length]));
+        }
+
+        Map<String, byte[]> entries = TestPackages.collect(vfs, new PackagerSettings().setMaxInFlightBytes(4096), null, items);
+
+        for (CollectionItem item : items) {
+            byte[] expected = vfs.open(item.vfsPath(), item.size(), Deadline.NONE).readAllBytes();
+            assertArrayEquals(expected, entries.get(item.zipPath()), item.zipPath());
+        }
+        assertNull(entries.get(SkippedFiles.SKIPPED_NAME));
+        // A header and a row per file
+        assertEquals(items.size() + 1, new String(entries.get(Manifest.MANIFEST_NAME), StandardCharsets.UTF_8).split("\n").length);
+    }
+
+    @Test
+    void identicalFilesAreStoredOnce() throws IOException {
+        byte[] content = TarArchiveWriterTest.text(3000);
+        FakeVfs vfs = new FakeVfs()
+                .file("\\sys\\a.txt", content, content.length)
+                .file("\\sys\\b.txt", content.clone(), content.length)
+                .file("\\sys\\c.txt", 3000);
+
+        Map<String, byte[]> entries = TestPackages.collect(vfs, new PackagerSettings().setDedupEnabled(true), null, List.of(
+                TestPackages.item("\\sys\\a.txt", content.length),
+                TestPackages.item("\\sys\\b.txt", content.length),
+                TestPackages.item("\\sys\\c.txt", 3000)));
+
+        // Either file may be the one stored, the other refers to it
+        String stored = entries.containsKey("sys/a.txt") ? "sys/a.txt" : "sys/b.txt";
+        String duplicate = stored.equals("sys/a.txt") ? "sys/b.txt" : "sys/a.txt";
+        assertArrayEquals(content, entries.get(stored));
+        assertNull(entries.get(duplicate));
+        assertNotNull(entries.get("sys/c.txt"));
+        assertEquals("archive_path,stored_as,size,sha256\n" + duplicate + "," + stored + ",3000," + ContentHasher.hash(content, false).sha256() + "\n",
+                new String(entries.get(DedupIndex.INDEX_NAME), StandardCharsets.UTF_8));
+        // Both are in the manifest
+        String manifest = new String(entries.get(Manifest.MANIFEST_NAME), StandardCharsets.UTF_8);
+        assertTrue(manifest.contains("\n\\sys\\a.txt,") && manifest.contains("\n\\sys\\b.txt,"), manifest);
+    }
+
+    @Test
+    void identicalFilesAreHardLinksInTar() throws IOException {
+        byte[] content = TarArchiveWriterTest.text(3000);
+        FakeVfs vfs = new FakeVfs()
+                .file("\\sys\\a.txt", content, content.length)
+                .file("\\sys\\b.txt", content.clone(), content.length);
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        try (TarArchiveWriter writer = new TarArchiveWriter(output);
+             CollectionEngine engine = new CollectionEngine(vfs, writer, new PackagerSettings().setDedupEnabled(true), new RunReport("test.raw"))) {
+            engine.submit(TestPackages.item("\\sys\\a.txt", content.length));
+            engine.submit(TestPackages.item("\\sys\\b.txt", content.length));
+        }
+
+        Map<String, String> links = new HashMap<>();
+        try (TarArchiveInputStream tarInputStream = new TarArchiveInputStream(new ByteArrayInputStream(output.toByteArray()))) {
+            TarArchiveEntry entry;
+            while ((entry = tarInputStream.getNextEntry()) != null) {
+                if (entry.isLink()) {
+                    links.put(entry.getName(), entry.getLinkName());
+                }
+            }
+        }
+        assertEquals(1, links.size(), links.toString());
+        assertTrue(links.equals(Map.of("sys/a.txt", "sys/b.txt")) || links.equals(Map.of("sys/b.txt", "sys/a.txt")), links.toString());
+    }
+
+    @Test
+    void completeForensicFilesAreCached() throws IOException {
+        FakeVfs vfs = new FakeVfs()
+                .file("\\forensic\\csv\\small.csv", 100)
+                .file("\\forensic\\csv\\large.csv", 8192);
+        ForensicResultCache cache = new ForensicResultCache(directory, Long.MAX_VALUE);
+        ForensicResultCache.EntryWriter entry = cache.newEntry("abc", FORENSIC_RULES);
+
+        Map<String, byte[]> entries = TestPackages.collect(vfs, new PackagerSettings().setMaxInFlightBytes(4096), entry, List.of(
+                TestPackages.item("\\forensic\\csv\\small.csv", 100),
+                TestPackages.item("\\forensic\\csv\\large.csv", 8192)));
+        entry.commit();
+
+        assertNull(entries.get(SkippedFiles.SKIPPED_NAME));
+        Path files = cache.lookup("abc", FORENSIC_RULES);
+        assertNotNull(files);
+        assertArrayEquals(entries.get("forensic/csv/large.csv"), Files.readAllBytes(files.resolve("forensic/csv/large.csv")));
+    }
+
+    @Test
+    void batchedFilesGetTheirOwnReadDeadline() throws IOException {
+        FakeVfs vfs = new FakeVfs();
+        List<CollectionItem> items = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            vfs.file("\\pid\\4\\token\\sid-" + i + ".txt", 100);
+            items.add(TestPackages.item("\\pid\\4\\token\\sid-" + i + ".txt", 100));
+        }
+        Map<String, Deadline> deadlines = new ConcurrentHashMap<>();
+        VfsSource source = new VfsSource() {
+            @Override
+            public Map<String, Vmm_VfsListEntry> list(String path) {
+                return vfs.list(path);
+            }
+
+            @Override
+            public InputStream open(String path, long size, Deadline deadline) throws IOException {
+                deadlines.put(path, deadline);
+                return vfs.open(path, size, deadline);
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+
+        Map<String, byte[]> entries = TestPackages.collect(source, new PackagerSettings().setFileReadTimeoutMillis(60_000), null, items);
+
+        assertEquals(10, deadlines.size());
+        for (CollectionItem item : items) {
+            assertTrue(deadlines.get(item.vfsPath()).isSet(), item.vfsPath());
+            assertEquals(100, entries.get(item.zipPath()).length);
+        }
+    }
+
+    @Test
+    void seekableEntriesAreWrittenInPlace() throws IOException {
+        byte[] content = TarArchiveWriterTest.text(3 * 1024 * 1024);
+        FakeVfs vfs = new FakeVfs().file("\\forensic\\timeline\\timeline_all.txt", content, content.length);
+        PackagerSettings settings = new PackagerSettings().setSeekableMinBytes(1024 * 1024).setMd5Enabled(true);
+        Path zip = directory.resolve("seekable.zip");
+        try (PackageFile packageFile = new PackageFile(zip, FsyncPolicy.NONE);
+             ZipArchiveWriter writer = new ZipArchiveWriter(packageFile.seekableChannel());
+             CollectionEngine engine = new CollectionEngine(vfs, writer, settings, new RunReport("test.raw"))) {
+            engine.submit(TestPackages.item("\\forensic\\timeline\\timeline_all.txt", content.length));
+        }
+
+        Map<String, byte[]> entries = TestPackages.readZip(Files.readAllBytes(zip));
+        byte[] gzip = entries.get("forensic/timeline/timeline_all.txt.gz");
+        try (InputStream inputStream = new GZIPInputStream(new ByteArrayInputStream(gzip))) {
+            assertArrayEquals(content, inputStream.readAllBytes());
+        }
+        assertEquals(4, new String(entries.get("forensic/timeline/timeline_all.txt.gz.index.csv"), StandardCharsets.UTF_8).split("\n").length);
+        // The manifest has the hashes of the entry as stored
+        String manifest = new String(entries.get(Manifest.MANIFEST_NAME), StandardCharsets.UTF_8);
+        assertTrue(manifest.contains(ContentHasher.hash(gzip, true).sha256()), manifest);
+
+        // Written to a pipe, the entry is spooled first and comes out the same
+        Map<String, byte[]> piped = TestPackages.collect(vfs, settings, null, List.of(TestPackages.item("\\forensic\\timeline\\timeline_all.txt", content.length)));
+        assertArrayEquals(gzip, piped.get("forensic/timeline/timeline_all.txt.gz"));
+    }
+
+    @Test
+    void shortReadsAreSkippedAndNotCached() throws IOException {
+        // Read in a batch, read by a reader and streamed by the writer
+        for (long listedSize : new long[]{100, 3000, 8192}) {
+            FakeVfs vfs = new FakeVfs().file("\\forensic\\csv\\short.csv", new byte[40], listedSize);
+            ForensicResultCache cache = new ForensicResultCache(directory.resolve(String.valueOf(listedSize)), Long.MAX_VALUE);
+            ForensicResultCache.EntryWriter entry = cache.newEntry("abc", FORENSIC_RULES);
+
+            Map<String, byte[]> entries = TestPackages.collect(vfs, new PackagerSettings().setMaxInFlightBytes(4096), entry,
+                    List.of(TestPackages.item("\\forensic\\csv\\short.csv", listedSize)));
+            entry.commit();
+
+            assertEquals(40, entries.get("forensic/csv/short.csv").length);
+            assertEquals("vfs_path,size,collected,reason\n\\forensic\\csv\\short.csv," + listedSize + ",40,short_read\n",
+                    new String(entries.get(SkippedFiles.SKIPPED_NAME), StandardCharsets.UTF_8));
+            assertNull(cache.lookup("abc", FORENSIC_RULES), "listed size " + listedSize);
+        }
+    }
+}
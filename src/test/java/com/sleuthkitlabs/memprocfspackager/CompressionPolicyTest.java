@@ -0,0 +1,66 @@
+/*
+ * memprocfs_packager
+ * 
+ * Copyright (C) 2024  Sleuth Kit Labs
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.sleuthkitlabs.memprocfspackager;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.util.zip.Deflater;
+import org.junit.jupiter.api.Test;
+
+class CompressionPolicyTest {
+
+    @Test
+    void fixedPoliciesIgnoreTheEntry() {
+        for (String name : new String[]{"a/b.txt", "a/b.zip", "a/b"}) {
+            assertEquals(CompressionPolicy.STORED, CompressionPolicy.STORE.levelFor(name, 1 << 20));
+            assertEquals(Deflater.BEST_SPEED, CompressionPolicy.FAST.levelFor(name, 1 << 20));
+            assertEquals(CompressionPolicy.DEFAULT_LEVEL, CompressionPolicy.DEFAULT.levelFor(name, 1 << 20));
+            assertEquals(Deflater.BEST_COMPRESSION, CompressionPolicy.BEST.levelFor(name, 1 << 20));
+        }
+    }
+
+    @Test
+    void autoStoresSmallAndCompressedEntries() {
+        assertEquals(CompressionPolicy.STORED, CompressionPolicy.AUTO.levelFor("sys/users/users.txt", CompressionPolicy.SMALL_ENTRY_SIZE - 1));
+        assertEquals(CompressionPolicy.STORED, CompressionPolicy.AUTO.levelFor("files/archive.ZIP", 1 << 20));
+        assertEquals(CompressionPolicy.STORED, CompressionPolicy.AUTO.levelFor("files/a.b/image.jpg", 1 << 20));
+    }
+
+    @Test
+    void autoCompressesTextWithTheDefaultLevel() {
+        assertEquals(CompressionPolicy.DEFAULT_LEVEL, CompressionPolicy.AUTO.levelFor("forensic/csv/process.csv", CompressionPolicy.SMALL_ENTRY_SIZE));
+        assertEquals(CompressionPolicy.DEFAULT_LEVEL, CompressionPolicy.AUTO.levelFor("forensic/ntfs/ntfs_files.TXT", 1 << 20));
+    }
+
+    @Test
+    void autoCompressesLargeAndBinaryEntriesFast() {
+        assertEquals(Deflater.BEST_SPEED, CompressionPolicy.AUTO.levelFor("forensic/ntfs/ntfs_files.txt", CompressionPolicy.LARGE_ENTRY_SIZE));
+        assertEquals(Deflater.BEST_SPEED, CompressionPolicy.AUTO.levelFor("pid/4/minidump/minidump.dmp", 1 << 20));
+        // A dot in a directory name is not an extension
+        assertEquals(Deflater.BEST_SPEED, CompressionPolicy.AUTO.levelFor("pid/4/modules/ntdll.txt/pefile", 1 << 20));
+    }
+
+    @Test
+    void fromStringIgnoresCaseAndRejectsUnknownPolicies() {
+        assertEquals(CompressionPolicy.FAST, CompressionPolicy.fromString(" fast "));
+        assertEquals(CompressionPolicy.AUTO, CompressionPolicy.fromString("Auto"));
+        assertThrows(IllegalArgumentException.class, () -> CompressionPolicy.fromString("zstd"));
+    }
+}
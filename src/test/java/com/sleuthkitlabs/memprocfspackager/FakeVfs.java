@@ -0,0 +1,123 @@
+/*
+ * memprocfs_packager
+ * 
+ * Copyright (C) 2024  Sleuth Kit Labs
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.sleuthkitlabs.memprocfspackager;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import vmm.entry.Vmm_VfsListEntry;
+
+/**
+ * An in-memory VFS tree for tests, listed the same way as
+ * {@link VfsListingCache#list}. Directories are created for the parents of
+ * every file added. Thread safe once populated.
+ */
+class FakeVfs implements VfsSource {
+
+    private final Map<String, Map<String, Vmm_VfsListEntry>> directories = new ConcurrentHashMap<>();
+    private final Map<String, byte[]> contents = new ConcurrentHashMap<>();
+
+    FakeVfs() {
+        directories.put("\\", new LinkedHashMap<>());
+    }
+
+    /**
+     * Adds a file, for example \sys\drivers\drivers.txt.
+     */
+    FakeVfs file(String path, long size) {
+        byte[] content = new byte[(int) size];
+        Arrays.fill(content, (byte) path.hashCode());
+        return file(path, content, size);
+    }
+
+    /**
+     * Adds a file with the given content, listed with the given size. A
+     * listed size above the length of the content reads like a file whose
+     * read fails part way.
+     */
+    FakeVfs file(String path, byte[] content, long listedSize) {
+        add(path, true, listedSize);
+        contents.put(path, content);
+        return this;
+    }
+
+    /**
+     * Adds an empty directory.
+     */
+    FakeVfs directory(String path) {
+        add(path, false, 0);
+        return this;
+    }
+
+    /**
+     * Returns the entries of a directory by name, empty rather than null if
+     * it does not exist, so it can be given to GlobTrie.walk directly. The
+     * path ends with a separator.
+     */
+    @Override
+    public Map<String, Vmm_VfsListEntry> list(String path) {
+        Map<String, Vmm_VfsListEntry> listing = directories.get(path);
+        return listing == null ? Map.of() : Collections.unmodifiableMap(listing);
+    }
+
+    @Override
+    public InputStream open(String path, long size, Deadline deadline) throws IOException {
+        byte[] content = content(path);
+        return new ByteArrayInputStream(content, 0, (int) Math.min(content.length, size));
+    }
+
+    @Override
+    public void close() {
+    }
+
+    private byte[] content(String path) throws IOException {
+        byte[] content = contents.get(path);
+        if (content == null) {
+            throw new IOException("No such file: " + path);
+        }
+        return content;
+    }
+
+    private void add(String path, boolean isFile, long size) {
+        int separator = path.lastIndexOf('\\');
+        String parent = path.substring(0, separator + 1);
+        String name = path.substring(separator + 1);
+        if (!directories.containsKey(parent)) {
+            add(parent.substring(0, parent.length() - 1), false, 0);
+        }
+
+        Map<String, Vmm_VfsListEntry> listing = directories.get(parent);
+        if (listing.containsKey(name)) {
+            return;
+        }
+        Vmm_VfsListEntry entry = new Vmm_VfsListEntry();
+        entry.name = name;
+        entry.isFile = isFile;
+        entry.size = size;
+        listing.put(name, entry);
+        if (!isFile) {
+            directories.put(path + "\\", new LinkedHashMap<>());
+        }
+    }
+}
@@ -0,0 +1,149 @@
+/*
+ * memprocfs_packager
+ * 
+ * Copyright (C) 2024  Sleuth Kit Labs
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.sleuthkitlabs.memprocfspackager;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.List;
+import java.util.stream.Stream;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class ForensicResultCacheTest {
+
+    private static final List<CollectionRule> RULES = List.of(
+            new CollectionRule("\\forensic\\csv\\process.csv"),
+            new CollectionRule("\\forensic\\timeline\\**"));
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void committedEntryServesItsRules() throws IOException {
+        ForensicResultCache cache = new ForensicResultCache(directory.resolve("cache"), Long.MAX_VALUE);
+        ForensicResultCache.EntryWriter entry = cache.newEntry("abc", RULES);
+        entry.write(TestPackages.item("\\forensic\\csv\\process.csv", 5), ascii("a,b,c"));
+        try (InputStream inputStream = entry.tee(TestPackages.item("\\forensic\\timeline\\timeline_all.txt", 4), new ByteArrayInputStream(ascii("line")))) {
+            assertArrayEquals(ascii("line"), inputStream.readAllBytes());
+        }
+        entry.writeDirectory(new CollectionItem("\\forensic\\timeline\\empty", "forensic/timeline/empty/", false, 0));
+        assertNull(cache.lookup("abc", RULES));
+        entry.commit();
+
+        Path files = cache.lookup("abc", RULES.subList(0, 1));
+        assertNotNull(files);
+        assertEquals("a,b,c", Files.readString(files.resolve("forensic/csv/process.csv")));
+        assertEquals("line", Files.readString(files.resolve("forensic/timeline/timeline_all.txt")));
+        assertTrue(Files.isDirectory(files.resolve("forensic/timeline/empty")));
+
+        // A run with a rule the entry was not collected for can not use it
+        assertNull(cache.lookup("abc", List.of(new CollectionRule("\\forensic\\csv\\net.csv"))));
+        assertNull(cache.lookup("def", RULES));
+    }
+
+    @Test
+    void failedEntryIsDiscarded() throws IOException {
+        ForensicResultCache cache = new ForensicResultCache(directory, Long.MAX_VALUE);
+        ForensicResultCache.EntryWriter entry = cache.newEntry("abc", RULES);
+        CollectionItem item = TestPackages.item("\\forensic\\csv\\process.csv", 5);
+        entry.write(item, ascii("a,b,c"));
+        entry.fail(item, new IOException("Read 3 of 5 bytes"));
+        entry.commit();
+
+        assertNull(cache.lookup("abc", RULES));
+        try (Stream<Path> children = Files.list(directory)) {
+            assertEquals(0, children.count());
+        }
+    }
+
+    @Test
+    void commitReplacesAnEarlierEntry() throws IOException {
+        ForensicResultCache cache = new ForensicResultCache(directory, Long.MAX_VALUE);
+        ForensicResultCache.EntryWriter first = cache.newEntry("abc", RULES);
+        first.write(TestPackages.item("\\forensic\\csv\\old.csv", 3), ascii("old"));
+        first.commit();
+        ForensicResultCache.EntryWriter second = cache.newEntry("abc", RULES);
+        second.write(TestPackages.item("\\forensic\\csv\\process.csv", 3), ascii("new"));
+        second.commit();
+
+        Path files = cache.lookup("abc", RULES);
+        assertFalse(Files.exists(files.resolve("forensic/csv/old.csv")));
+        assertEquals("new", Files.readString(files.resolve("forensic/csv/process.csv")));
+    }
+
+    @Test
+    void evictsLeastRecentlyUsedEntries() throws IOException {
+        ForensicResultCache unlimited = new ForensicResultCache(directory, Long.MAX_VALUE);
+        for (String fingerprint : List.of("old", "used", "new")) {
+            ForensicResultCache.EntryWriter entry = unlimited.newEntry(fingerprint, RULES);
+            entry.write(TestPackages.item("\\forensic\\csv\\process.csv", 1000), new byte[1000]);
+            entry.commit();
+            Files.setLastModifiedTime(directory.resolve(fingerprint).resolve("rules.txt"), FileTime.fromMillis(0));
+        }
+        ForensicResultCache cache = new ForensicResultCache(directory, 2500);
+        // Looking an entry up marks it as used
+        assertNotNull(cache.lookup("used", RULES));
+        Files.setLastModifiedTime(directory.resolve("new").resolve("rules.txt"), FileTime.fromMillis(1000));
+
+        cache.evict("old");
+
+        assertNotNull(cache.lookup("old", RULES));
+        assertNotNull(cache.lookup("used", RULES));
+        assertNull(cache.lookup("new", RULES));
+    }
+
+    @Test
+    void fingerprintCoversImageRulesAndOptions() throws IOException {
+        Path image = directory.resolve("image.raw");
+        byte[] content = new byte[1024 * 1024];
+        Files.write(image, content);
+        FileTime modified = Files.getLastModifiedTime(image);
+        Path yara = directory.resolve("rules.yar");
+        Files.writeString(yara, "rule a { condition: true }");
+
+        String fingerprint = ForensicResultCache.fingerprint(image, null, null);
+        assertEquals(64, fingerprint.length());
+        assertEquals(fingerprint, ForensicResultCache.fingerprint(image, null, List.of()));
+        assertNotEquals(fingerprint, ForensicResultCache.fingerprint(image, yara.toString(), null));
+        assertNotEquals(fingerprint, ForensicResultCache.fingerprint(image, null, List.of("-pagefile0", "pagefile.sys")));
+
+        // Same size and time, different content at the end of the image
+        content[content.length - 1] = 1;
+        Files.write(image, content);
+        Files.setLastModifiedTime(image, modified);
+        assertNotEquals(fingerprint, ForensicResultCache.fingerprint(image, null, null));
+    }
+
+    private static byte[] ascii(String text) {
+        return text.getBytes(StandardCharsets.US_ASCII);
+    }
+}
@@ -0,0 +1,263 @@
+/*
+ * memprocfs_packager
+ * 
+ * Copyright (C) 2024  Sleuth Kit Labs
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.sleuthkitlabs.memprocfspackager;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.Function;
+import java.util.regex.Pattern;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import vmm.entry.Vmm_VfsListEntry;
+
+class GlobTrieTest {
+
+    private static final List<String> WILDCARD_RULES = List.of(
+            "\\registry\\*\\SYSTEM\\**\\v?.txt",
+            "\\registry\\HKLM\\SOFTWARE\\**",
+            "\\registry\\HKU\\*\\k1\\*.bin",
+            "\\pid\\*\\token\\sid-*.txt",
+            "\\pid\\1?0\\**\\*.bin",
+            "\\sys\\**\\**\\drivers.txt",
+            "\\sys\\users\\users.txt",
+            "\\sys\\users\\missing.txt");
+
+    private FakeVfs vfs;
+
+    @BeforeEach
+    void setUp() {
+        vfs = new FakeVfs()
+                .file("\\sys\\users\\users.txt", 10)
+                .file("\\sys\\drivers\\drivers.txt", 20)
+                .file("\\sys\\sysinfo\\sysinfo.txt", 30)
+                .file("\\forensic\\csv\\process.csv", 40)
+                .file("\\forensic\\csv\\services.csv", 50)
+                .file("\\forensic\\csv\\net.csv", 60)
+                .file("\\forensic\\prefetch\\00-prefetch-summary.txt", 70)
+                .directory("\\forensic\\yara");
+        for (int pid : new int[]{4, 100, 120, 130, 1000}) {
+            vfs.file("\\pid\\" + pid + "\\token\\sid-all.txt", pid);
+            vfs.file("\\pid\\" + pid + "\\token\\sid-user.txt", pid);
+            vfs.file("\\pid\\" + pid + "\\modules\\ntdll.dll\\pefile.bin", pid);
+        }
+        vfs.directory("\\pid\\200\\token");
+
+        Random random = new Random(42);
+        populate("\\registry\\HKLM\\SYSTEM\\ControlSet001\\Enum\\USB", 0, random);
+        populate("\\registry\\HKLM\\SYSTEM\\ControlSet001\\Services", 1, random);
+        populate("\\registry\\HKLM\\SOFTWARE", 1, random);
+        populate("\\registry\\HKU\\S-1-5-18", 2, random);
+        populate("\\registry\\HKU\\S-1-5-21", 2, random);
+    }
+
+    // Adds a random registry-like tree of keys k0, k1, ... and values v0.txt, v1.bin
+    private void populate(String path, int depth, Random random) {
+        vfs.directory(path);
+        vfs.file(path + "\\v0.txt", depth);
+        vfs.file(path + "\\v1.bin", depth);
+        if (depth < 6) {
+            int keys = depth < 2 ? 3 : random.nextInt(4);
+            for (int i = 0; i < keys; i++) {
+                populate(path + "\\k" + i, depth + 1, random);
+            }
+        }
+    }
+
+    @Test
+    void bundledRulesMatchBaseline() {
+        List<CollectionRule> rules = new MemProcFSPackager(null, null, null, null, null).getFilesToCollect();
+        assertFalse(rules.isEmpty());
+
+        List<String> matches = walk(GlobTrie.compile(rules));
+        assertEquals(BaselineMatcher.match(rules, vfs::list), new LinkedHashSet<>(matches));
+        assertTrue(matches.contains("\\pid\\4\\token\\sid-all.txt"));
+        assertTrue(matches.contains("\\registry\\HKLM\\SYSTEM\\ControlSet001\\Enum\\USB\\k2\\v1.bin"));
+    }
+
+    @Test
+    void wildcardRulesMatchBaseline() {
+        List<CollectionRule> rules = WILDCARD_RULES.stream().map(CollectionRule::new).toList();
+
+        List<String> matches = walk(GlobTrie.compile(rules));
+        assertEquals(BaselineMatcher.match(rules, vfs::list), new LinkedHashSet<>(matches));
+        assertTrue(matches.contains("\\pid\\120\\modules\\ntdll.dll\\pefile.bin"));
+        assertFalse(matches.contains("\\pid\\1000\\modules\\ntdll.dll\\pefile.bin"));
+    }
+
+    @Test
+    void overlappingRulesReportEntriesOnce() {
+        List<CollectionRule> rules = List.of(
+                new CollectionRule("\\registry\\HKLM\\**"),
+                new CollectionRule("\\registry\\*\\SYSTEM\\**\\v0.txt"),
+                new CollectionRule("\\registry\\HKLM\\SYSTEM\\ControlSet001\\Enum\\USB\\v0.txt"));
+
+        List<String> matches = walk(GlobTrie.compile(rules));
+        assertEquals(new LinkedHashSet<>(matches).size(), matches.size());
+        assertEquals(BaselineMatcher.match(rules, vfs::list), new LinkedHashSet<>(matches));
+    }
+
+    @Test
+    void literalDirectoriesAreNotListed() {
+        Set<String> listed = ConcurrentHashMap.newKeySet();
+        GlobTrie trie = GlobTrie.compile(List.of(new CollectionRule("\\sys\\users\\users.txt"), new CollectionRule("\\pid\\*\\token\\sid-all.txt")));
+        trie.walk(path -> {
+            listed.add(path);
+            return vfs.list(path);
+        }, (parentPath, entry) -> {
+        });
+
+        assertEquals(Set.of("\\sys\\users\\", "\\pid\\", "\\pid\\4\\token\\", "\\pid\\100\\token\\", "\\pid\\120\\token\\",
+                "\\pid\\130\\token\\", "\\pid\\1000\\token\\", "\\pid\\200\\token\\"), listed);
+    }
+
+    @Test
+    void parallelWalkMatchesSequentialOrder() {
+        List<CollectionRule> rules = new ArrayList<>(WILDCARD_RULES.stream().map(CollectionRule::new).toList());
+        rules.add(new CollectionRule("\\registry\\**"));
+        GlobTrie trie = GlobTrie.compile(rules);
+        List<String> sequential = walk(trie);
+
+        ForkJoinPool pool = GlobTrie.newWalkPool(4);
+        try {
+            for (int maxForkDepth : new int[]{PackagerSettings.DEFAULT_WALK_FORK_DEPTH, 3, 1, 0}) {
+                List<String> parallel = new ArrayList<>();
+                trie.walk(vfs::list, (parentPath, entry) -> parallel.add(parentPath + entry.name), pool, maxForkDepth);
+                assertEquals(sequential, parallel, "fork depth " + maxForkDepth);
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    private List<String> walk(GlobTrie trie) {
+        List<String> matches = new ArrayList<>();
+        trie.walk(vfs::list, (parentPath, entry) -> matches.add(parentPath + entry.name));
+        return matches;
+    }
+
+    /**
+     * The matcher the trie replaced: rules are grouped by parent directory,
+     * wildcard parents are expanded by walking the VFS once per group and
+     * the file names are matched against each directory listing.
+     */
+    private static final class BaselineMatcher {
+
+        private final Function<String, Map<String, Vmm_VfsListEntry>> lister;
+        private final Set<String> matches = new LinkedHashSet<>();
+
+        private BaselineMatcher(Function<String, Map<String, Vmm_VfsListEntry>> lister) {
+            this.lister = lister;
+        }
+
+        static Set<String> match(List<CollectionRule> rules, Function<String, Map<String, Vmm_VfsListEntry>> lister) {
+            Map<String, List<String>> namesByParentPath = new LinkedHashMap<>();
+            for (CollectionRule rule : rules) {
+                String line = rule.path();
+                int lastSeparatorIndex = line.lastIndexOf('\\');
+                String parentPath = line.substring(0, lastSeparatorIndex + 1);
+                String fileName = line.substring(lastSeparatorIndex + 1);
+                if ("**".equals(fileName)) {
+                    parentPath = line;
+                    fileName = "*";
+                }
+                namesByParentPath.computeIfAbsent(parentPath, path -> new ArrayList<>()).add(fileName);
+            }
+
+            BaselineMatcher matcher = new BaselineMatcher(lister);
+            for (Map.Entry<String, List<String>> entry : namesByParentPath.entrySet()) {
+                if (GlobTrie.containsWildcard(entry.getKey())) {
+                    List<String> directories = new ArrayList<>();
+                    matcher.matchDirectories(entry.getKey(), directories);
+                    for (String directory : directories) {
+                        matcher.matchFiles(directory, entry.getValue());
+                    }
+                } else {
+                    matcher.matchFiles(entry.getKey(), entry.getValue());
+                }
+            }
+            return matcher.matches;
+        }
+
+        private void matchFiles(String parentPath, List<String> names) {
+            Map<String, Vmm_VfsListEntry> listing = lister.apply(parentPath);
+            for (String name : names) {
+                if (GlobTrie.containsWildcard(name)) {
+                    Pattern pattern = Pattern.compile(GlobTrie.wildcardToRegex(name));
+                    for (Vmm_VfsListEntry entry : listing.values()) {
+                        if (pattern.matcher(entry.name).matches()) {
+                            matches.add(parentPath + entry.name);
+                        }
+                    }
+                } else if (listing.containsKey(name)) {
+                    matches.add(parentPath + name);
+                }
+            }
+        }
+
+        // Walks from the literal prefix of the parent path, once per group of rules
+        private void matchDirectories(String parentPath, List<String> directories) {
+            List<String> segments = new ArrayList<>();
+            StringBuilder prefix = new StringBuilder("\\");
+            for (String segment : parentPath.substring(1).split("\\\\")) {
+                if (!segments.isEmpty() || GlobTrie.containsWildcard(segment)) {
+                    segments.add(segment);
+                } else {
+                    prefix.append(segment).append('\\');
+                }
+            }
+            traverse(prefix.toString(), segments, 0, directories);
+        }
+
+        private void traverse(String path, List<String> segments, int index, List<String> directories) {
+            if (index == segments.size()) {
+                directories.add(path);
+                return;
+            }
+
+            String segment = segments.get(index);
+            Map<String, Vmm_VfsListEntry> listing = lister.apply(path);
+            if ("**".equals(segment)) {
+                traverse(path, segments, index + 1, directories);
+                for (Vmm_VfsListEntry entry : listing.values()) {
+                    if (!entry.isFile) {
+                        traverse(path + entry.name + "\\", segments, index, directories);
+                    }
+                }
+            } else {
+                Pattern pattern = Pattern.compile(GlobTrie.wildcardToRegex(segment));
+                for (Vmm_VfsListEntry entry : listing.values()) {
+                    if (!entry.isFile && pattern.matcher(entry.name).matches()) {
+                        traverse(path + entry.name + "\\", segments, index + 1, directories);
+                    }
+                }
+            }
+        }
+    }
+}
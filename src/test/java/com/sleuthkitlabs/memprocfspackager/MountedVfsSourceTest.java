@@ -0,0 +1,121 @@
+/*
+ * memprocfs_packager
+ * 
+ * Copyright (C) 2024  Sleuth Kit Labs
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.sleuthkitlabs.memprocfspackager;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTimeoutPreemptively;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import vmm.entry.Vmm_VfsListEntry;
+
+class MountedVfsSourceTest {
+
+    @TempDir
+    Path root;
+
+    private MountedVfsSource source;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        Files.createDirectories(root.resolve("sys/drivers"));
+        Files.writeString(root.resolve("sys/drivers/drivers.txt"), "drivers");
+        Files.createDirectories(root.resolve("forensic/csv"));
+        Files.write(root.resolve("forensic/csv/process.csv"), new byte[200_000]);
+        source = new MountedVfsSource(root);
+    }
+
+    @Test
+    void listsDirectoriesSorted() {
+        Map<String, Vmm_VfsListEntry> listing = source.list("\\");
+        assertEquals(List.of("forensic", "sys"), new ArrayList<>(listing.keySet()));
+        assertFalse(listing.get("sys").isFile);
+
+        Vmm_VfsListEntry entry = source.list("\\forensic\\csv\\").get("process.csv");
+        assertTrue(entry.isFile);
+        assertEquals(200_000, entry.size);
+        assertNull(source.list("\\missing\\"));
+    }
+
+    @Test
+    void readsFilesUpToTheListedSize() throws IOException {
+        try (InputStream inputStream = source.open("\\sys\\drivers\\drivers.txt", 7, Deadline.NONE)) {
+            assertEquals("drivers", new String(inputStream.readAllBytes()));
+        }
+        // The file grew since it was listed
+        try (InputStream inputStream = source.open("\\forensic\\csv\\process.csv", 100_000, Deadline.NONE)) {
+            assertEquals(100_000, inputStream.readAllBytes().length);
+        }
+    }
+
+    @Test
+    void doesNotFollowLinksToDirectories() throws IOException {
+        Files.createSymbolicLink(root.resolve("sys/drivers/loop"), root.resolve("sys"));
+        Files.createSymbolicLink(root.resolve("sys/drivers/link.txt"), root.resolve("sys/drivers/drivers.txt"));
+
+        Map<String, Vmm_VfsListEntry> listing = source.list("\\sys\\drivers\\");
+        assertEquals(List.of("drivers.txt", "link.txt"), new ArrayList<>(listing.keySet()));
+        assertTrue(listing.get("link.txt").isFile);
+
+        // A ** rule walks the tree once instead of going round the loop forever
+        List<String> matches = assertTimeoutPreemptively(Duration.ofSeconds(30), () -> {
+            List<String> found = new ArrayList<>();
+            GlobTrie.compile(List.of(new CollectionRule("\\sys\\**"))).walk(source::list, (parentPath, entry) -> found.add(parentPath + entry.name));
+            return found;
+        });
+        assertEquals(List.of("\\sys\\drivers\\drivers.txt", "\\sys\\drivers\\link.txt"), matches.stream().filter(path -> path.endsWith(".txt")).toList());
+    }
+
+    @Test
+    void mappedStreamReadsSingleBytesAndTransfers() throws IOException {
+        byte[] content = new byte[3 * 1024 * 1024 + 17];
+        for (int i = 0; i < content.length; i++) {
+            content[i] = (byte) (i * 31);
+        }
+        Path file = root.resolve("large.bin");
+        Files.write(file, content);
+
+        try (MappedFileInputStream inputStream = new MappedFileInputStream(file, content.length)) {
+            assertEquals(content[0] & 0xFF, inputStream.read());
+            assertEquals(content[1] & 0xFF, inputStream.read());
+            ByteArrayOutputStream output = new ByteArrayOutputStream();
+            assertEquals(content.length - 2, inputStream.transferTo(output));
+            assertArrayEquals(Arrays.copyOfRange(content, 2, content.length), output.toByteArray());
+            assertEquals(-1, inputStream.read());
+        }
+        try (MappedFileInputStream inputStream = new MappedFileInputStream(file, 1000)) {
+            assertArrayEquals(Arrays.copyOf(content, 1000), inputStream.readAllBytes());
+        }
+    }
+}
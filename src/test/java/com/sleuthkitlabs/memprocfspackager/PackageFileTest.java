@@ -0,0 +1,161 @@
+/*
+ * memprocfs_packager
+ * 
+ * Copyright (C) 2024  Sleuth Kit Labs
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.sleuthkitlabs.memprocfspackager;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class PackageFileTest {
+
+    // Small enough that the tests cross buffer boundaries
+    private static final int BUFFER_SIZE = 16;
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void writesThroughTheBuffer() throws IOException {
+        Path path = directory.resolve("package.zip");
+        byte[] content = new byte[BUFFER_SIZE * 5 + 3];
+        for (int i = 0; i < content.length; i++) {
+            content[i] = (byte) i;
+        }
+        try (PackageFile file = new PackageFile(path, FsyncPolicy.NONE, BUFFER_SIZE)) {
+            file.write(content, 0, 7);
+            file.write(content[7]);
+            file.write(content, 8, content.length - 8);
+        }
+        assertArrayEquals(content, Files.readAllBytes(path));
+    }
+
+    @Test
+    void seekOverwritesEarlierContent() throws IOException {
+        Path path = directory.resolve("package.zip");
+        try (PackageFile file = new PackageFile(path, FsyncPolicy.NONE, BUFFER_SIZE)) {
+            SeekableByteChannel channel = file.seekableChannel();
+            channel.write(ascii("local header, then a long entry body"));
+            assertEquals(36, channel.position());
+
+            // Patch the header as the ZIP writer does once the sizes are known
+            channel.position(0);
+            channel.write(ascii("LOCAL"));
+            assertEquals(5, channel.position());
+            assertEquals(36, channel.size());
+
+            channel.position(channel.size());
+            channel.write(ascii("!"));
+        }
+        assertEquals("LOCAL header, then a long entry body!", Files.readString(path));
+    }
+
+    @Test
+    void writesAfterAnUnalignedSeekLandInPlace() throws IOException {
+        Path path = directory.resolve("package.zip");
+        byte[] content = new byte[BUFFER_SIZE * 6 + 7];
+        for (int i = 0; i < content.length; i++) {
+            content[i] = (byte) i;
+        }
+        try (PackageFile file = new PackageFile(path, FsyncPolicy.NONE, BUFFER_SIZE)) {
+            SeekableByteChannel channel = file.seekableChannel();
+            channel.write(ByteBuffer.wrap(content, 0, 5));
+            channel.position(3);
+            channel.position(5);
+            // Larger than the buffer, then smaller pieces that fill it across boundaries
+            channel.write(ByteBuffer.wrap(content, 5, BUFFER_SIZE * 2 + 1));
+            int position = 5 + BUFFER_SIZE * 2 + 1;
+            while (position < content.length) {
+                int length = Math.min(5, content.length - position);
+                channel.write(ByteBuffer.wrap(content, position, length));
+                position += length;
+            }
+            assertEquals(content.length, channel.position());
+        }
+        assertArrayEquals(content, Files.readAllBytes(path));
+    }
+
+    @Test
+    void truncateDropsTheTail() throws IOException {
+        Path path = directory.resolve("package.zip");
+        try (PackageFile file = new PackageFile(path, FsyncPolicy.NONE, BUFFER_SIZE)) {
+            SeekableByteChannel channel = file.seekableChannel();
+            channel.write(ascii("0123456789abcdefghijklmnopqrstuvwxyz"));
+            channel.truncate(10);
+            assertEquals(10, channel.size());
+            assertEquals(10, channel.position());
+
+            channel.write(ascii("ABC"));
+            // Truncating to a larger size leaves the file as it is
+            channel.truncate(100);
+            assertEquals(13, channel.size());
+        }
+        assertEquals("0123456789ABC", Files.readString(path));
+    }
+
+    @Test
+    void preallocatedSpaceIsTrimmedOnClose() throws IOException {
+        Path path = directory.resolve("package.zip");
+        try (PackageFile file = new PackageFile(path, FsyncPolicy.NONE, BUFFER_SIZE)) {
+            file.preallocate(1 << 20);
+            file.write("content".getBytes(StandardCharsets.US_ASCII));
+            file.flush();
+            assertEquals(1 << 20, Files.size(path));
+
+            // Smaller requests than what has been allocated are ignored
+            file.preallocate(100);
+            file.flush();
+            assertEquals(1 << 20, Files.size(path));
+            assertEquals(7, file.seekableChannel().size());
+        }
+        assertEquals("content", Files.readString(path));
+    }
+
+    @Test
+    void overwritesAnExistingFile() throws IOException {
+        Path path = directory.resolve("package.zip");
+        Files.writeString(path, "an older and longer package");
+        try (PackageFile file = new PackageFile(path, FsyncPolicy.CLOSE)) {
+            file.write("new".getBytes(StandardCharsets.US_ASCII));
+        }
+        assertEquals("new", Files.readString(path));
+    }
+
+    @Test
+    void writeAfterCloseFails() throws IOException {
+        PackageFile file = new PackageFile(directory.resolve("package.zip"), FsyncPolicy.NONE, BUFFER_SIZE);
+        file.close();
+        file.close();
+        assertThrows(ClosedChannelException.class, () -> file.write(1));
+        assertThrows(ClosedChannelException.class, () -> file.seekableChannel().position(0));
+    }
+
+    private static ByteBuffer ascii(String text) {
+        return ByteBuffer.wrap(text.getBytes(StandardCharsets.US_ASCII));
+    }
+}
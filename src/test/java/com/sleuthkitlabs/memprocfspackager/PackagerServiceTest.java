@@ -0,0 +1,166 @@
+/*
+ * memprocfs_packager
+ * 
+ * Copyright (C) 2024  Sleuth Kit Labs
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.sleuthkitlabs.memprocfspackager;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class PackagerServiceTest {
+
+    @TempDir
+    Path directory;
+
+    private final HttpClient client = HttpClient.newHttpClient();
+    private final CountDownLatch release = new CountDownLatch(1);
+    private ExecutorService executor;
+    private PackagerService service;
+    private Path image;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        // The only job thread waits, so submitted jobs stay queued
+        executor = Executors.newSingleThreadExecutor();
+        executor.execute(() -> {
+            try {
+                release.await();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        service = new PackagerService(0, 1, executor, null, null, List.of(), new PackagerSettings());
+        service.start();
+        image = Files.createFile(directory.resolve("image.raw"));
+    }
+
+    @AfterEach
+    void tearDown() {
+        // Stopping drops the queued jobs, so none of them runs
+        service.stop();
+        release.countDown();
+    }
+
+    @Test
+    void rejectsRequestsWithoutTheToken() throws Exception {
+        assertEquals(401, send(request("/jobs").GET().build()).statusCode());
+        assertEquals(401, send(request("/jobs").header("Authorization", "Bearer wrong").GET().build()).statusCode());
+        assertEquals(200, send(authorized("/jobs").GET().build()).statusCode());
+    }
+
+    @Test
+    void rejectsRequestsFromWebPages() throws Exception {
+        HttpResponse<String> response = send(authorized("/jobs").header("Origin", "http://example.com").GET().build());
+        assertEquals(403, response.statusCode());
+    }
+
+    @Test
+    void rejectsJobsThatAreNotJson() throws Exception {
+        HttpRequest request = authorized("/jobs").header("Content-Type", "text/plain")
+                .POST(HttpRequest.BodyPublishers.ofString(job(directory.resolve("host.zip")))).build();
+        assertEquals(415, send(request).statusCode());
+        assertEquals(400, send(post("{\"input\": \"" + json(image) + "\"}")).statusCode());
+    }
+
+    @Test
+    void cancelsQueuedJobs() throws Exception {
+        HttpResponse<String> submitted = send(post(job(directory.resolve("host.zip"))));
+        assertEquals(201, submitted.statusCode());
+        String id = PackagerService.parseJson(submitted.body()).get("id");
+
+        HttpResponse<String> cancelled = send(authorized("/jobs/" + id).DELETE().build());
+        assertEquals(200, cancelled.statusCode());
+        assertEquals("cancelled", PackagerService.parseJson(cancelled.body()).get("status"));
+        // Cancelling again reports the same
+        assertEquals(200, send(authorized("/jobs/" + id).DELETE().build()).statusCode());
+        assertEquals(404, send(authorized("/jobs/99").DELETE().build()).statusCode());
+
+        release.countDown();
+        executor.shutdown();
+        executor.awaitTermination(30, TimeUnit.SECONDS);
+        Map<String, String> status = PackagerService.parseJson(send(authorized("/jobs/" + id).GET().build()).body());
+        assertEquals("cancelled", status.get("status"));
+        assertNull(status.get("started_utc"));
+        assertTrue(Files.notExists(directory.resolve("host.zip")));
+    }
+
+    @Test
+    void rejectsJobsForAnOutputInUse() throws Exception {
+        Path output = directory.resolve("host.zip");
+        HttpResponse<String> first = send(post(job(output)));
+        assertEquals(201, first.statusCode());
+        assertEquals(409, send(post(job(directory.resolve("sub").resolve("..").resolve("host.zip")))).statusCode());
+        assertEquals(201, send(post(job(directory.resolve("other.zip")))).statusCode());
+
+        // Once the first job is cancelled, the output is free again
+        String id = PackagerService.parseJson(first.body()).get("id");
+        assertEquals(200, send(authorized("/jobs/" + id).DELETE().build()).statusCode());
+        assertEquals(201, send(post(job(output))).statusCode());
+    }
+
+    @Test
+    void parseJsonRejectsNestedValues() {
+        assertEquals(Map.of("input", "a\"b", "deadline", "60", "force", "true"),
+                PackagerService.parseJson("{\"input\": \"a\\\"b\", \"deadline\": 60, \"force\": true, \"rules\": null}"));
+        assertThrows(IllegalArgumentException.class, () -> PackagerService.parseJson("{\"input\": {\"path\": \"a\"}}"));
+        assertThrows(IllegalArgumentException.class, () -> PackagerService.parseJson("{\"input\": \"a\"} trailing"));
+    }
+
+    private String job(Path output) {
+        return "{\"input\": \"" + json(image) + "\", \"output\": \"" + json(output) + "\"}";
+    }
+
+    private static String json(Path path) {
+        return path.toString().replace("\\", "\\\\");
+    }
+
+    private HttpRequest post(String body) {
+        return authorized("/jobs").header("Content-Type", "application/json").POST(HttpRequest.BodyPublishers.ofString(body)).build();
+    }
+
+    private HttpRequest.Builder authorized(String path) {
+        return request(path).header("Authorization", "Bearer " + service.getToken());
+    }
+
+    private HttpRequest.Builder request(String path) {
+        return HttpRequest.newBuilder(URI.create("http://localhost:" + service.getPort() + path));
+    }
+
+    private HttpResponse<String> send(HttpRequest request) throws IOException, InterruptedException {
+        return client.send(request, HttpResponse.BodyHandlers.ofString());
+    }
+}
@@ -0,0 +1,66 @@
+/*
+ * memprocfs_packager
+ * 
+ * Copyright (C) 2024  Sleuth Kit Labs
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.sleuthkitlabs.memprocfspackager;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.IOException;
+import java.util.Set;
+import org.junit.jupiter.api.Test;
+
+class ProcessFilterTest {
+
+    @Test
+    void namesMatchFullOrShortNameIgnoringCase() throws IOException {
+        ProcessList processes = ProcessListTest.sample();
+        assertEquals(Set.of(700, 812), processes.select(ProcessFilter.parse("name=LSASS.EXE,svc*.exe")));
+        assertEquals(Set.of(4200), processes.select(ProcessFilter.parse("name=MicrosoftEdge")));
+        assertEquals(Set.of(4200), processes.select(ProcessFilter.parse("name=microsoftedgec?.exe")));
+    }
+
+    @Test
+    void conditionsMustAllMatch() throws IOException {
+        ProcessList processes = ProcessListTest.sample();
+        assertEquals(Set.of(4200, 4300), processes.select(ProcessFilter.parse("ppid=4100")));
+        assertEquals(Set.of(4300), processes.select(ProcessFilter.parse("ppid=4100; integrity=Medium")));
+        assertEquals(Set.of(812), processes.select(ProcessFilter.parse("parent=lsass.exe")));
+        assertEquals(Set.of(4, 512), processes.select(ProcessFilter.parse("pid=4,512,9999;integrity=system")));
+    }
+
+    @Test
+    void unknownParentDoesNotMatch() throws IOException {
+        // The parents of System and explorer.exe are not in the list
+        assertEquals(Set.of(512, 640, 700, 812, 4200, 4300), ProcessListTest.sample().select(ProcessFilter.parse("parent=*")));
+    }
+
+    @Test
+    void parseRejectsMalformedFilters() {
+        assertThrows(IllegalArgumentException.class, () -> ProcessFilter.parse(""));
+        assertThrows(IllegalArgumentException.class, () -> ProcessFilter.parse("name=; pid= ,"));
+        assertThrows(IllegalArgumentException.class, () -> ProcessFilter.parse("lsass.exe"));
+        assertThrows(IllegalArgumentException.class, () -> ProcessFilter.parse("user=SYSTEM"));
+        assertThrows(IllegalArgumentException.class, () -> ProcessFilter.parse("pid=four"));
+    }
+
+    @Test
+    void toStringIsTheFilterText() {
+        assertEquals("name=lsass.exe;pid=4", ProcessFilter.parse("name=lsass.exe;pid=4").toString());
+    }
+}
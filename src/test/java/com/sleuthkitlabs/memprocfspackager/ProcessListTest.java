@@ -0,0 +1,96 @@
+/*
+ * memprocfs_packager
+ * 
+ * Copyright (C) 2024  Sleuth Kit Labs
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.sleuthkitlabs.memprocfspackager;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import org.junit.jupiter.api.Test;
+import vmm.entry.Vmm_VfsListEntry;
+
+class ProcessListTest {
+
+    // Column order and quoting as written by MemProcFS, with a byte order mark and CRLF line ends
+    static final String PROCESS_CSV = "\uFEFFPID,PPID,State,ShortName,Name,IntegrityLevel,User\r\n"
+            + "4,0,0,System,System,system,SYSTEM\r\n"
+            + "512,4,0,smss.exe,smss.exe,system,SYSTEM\r\n"
+            + "640,512,0,csrss.exe,csrss.exe,system,SYSTEM\r\n"
+            + "700,640,0,lsass.exe,lsass.exe,system,SYSTEM\r\n"
+            + "812,700,0,svchost.exe,svchost.exe,system,\"NETWORK SERVICE\"\r\n"
+            + "4100,3900,0,explorer.exe,explorer.exe,medium,\"Doe, John\"\r\n"
+            + "4200,4100,0,MicrosoftEdge,MicrosoftEdgeCP.exe,low,\"Doe, John\"\r\n"
+            + "4300,4100,0,notepad.exe,\"note\"\"pad.exe\",medium,\"multi\r\nline\"\r\n"
+            + "not-a-pid,4,0,bad,bad,system,SYSTEM\r\n";
+
+    static ProcessList sample() throws IOException {
+        return ProcessList.parse(PROCESS_CSV.getBytes(StandardCharsets.UTF_8));
+    }
+
+    @Test
+    void parseReadsColumnsByName() throws IOException {
+        ProcessList processes = sample();
+        assertEquals(8, processes.size());
+        assertEquals(new ProcessList.Process(4200, 4100, "MicrosoftEdgeCP.exe", "MicrosoftEdge", "low"), processes.get(4200));
+        assertEquals(new ProcessList.Process(4300, 4100, "note\"pad.exe", "notepad.exe", "medium"), processes.get(4300));
+        assertNull(processes.get(9999));
+    }
+
+    @Test
+    void parseFillsInMissingColumns() throws IOException {
+        ProcessList processes = ProcessList.parse("pid,name\n10,a.exe\n11\n".getBytes(StandardCharsets.UTF_8));
+        assertEquals(new ProcessList.Process(10, -1, "a.exe", "a.exe", ""), processes.get(10));
+        assertEquals(new ProcessList.Process(11, -1, "", "", ""), processes.get(11));
+    }
+
+    @Test
+    void parseRejectsListsWithoutPids() {
+        assertThrows(IOException.class, () -> ProcessList.parse(new byte[0]));
+        assertThrows(IOException.class, () -> ProcessList.parse("name,ppid\na.exe,4\n".getBytes(StandardCharsets.UTF_8)));
+    }
+
+    @Test
+    void restrictKeepsSelectedProcessDirectories() {
+        Map<String, Vmm_VfsListEntry> byPid = listing("4", "700", "812");
+        assertEquals(List.of("4", "812"), List.copyOf(ProcessList.restrict("\\pid\\", byPid, Set.of(4, 812)).keySet()));
+
+        Map<String, Vmm_VfsListEntry> byName = listing("System-4", "lsass.exe-700", "svc-host.exe-812", "summary.txt");
+        assertEquals(List.of("lsass.exe-700", "svc-host.exe-812", "summary.txt"),
+                List.copyOf(ProcessList.restrict("\\name\\", byName, Set.of(700, 812)).keySet()));
+
+        assertEquals(byPid, ProcessList.restrict("\\pid\\4\\", byPid, Set.of()));
+    }
+
+    private static Map<String, Vmm_VfsListEntry> listing(String... names) {
+        Map<String, Vmm_VfsListEntry> listing = new LinkedHashMap<>();
+        for (String name : names) {
+            Vmm_VfsListEntry entry = new Vmm_VfsListEntry();
+            entry.name = name;
+            entry.isFile = name.endsWith(".txt");
+            listing.put(name, entry);
+        }
+        return listing;
+    }
+}
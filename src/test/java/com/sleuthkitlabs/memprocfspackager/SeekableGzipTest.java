@@ -0,0 +1,148 @@
+/*
+ * memprocfs_packager
+ * 
+ * Copyright (C) 2024  Sleuth Kit Labs
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.sleuthkitlabs.memprocfspackager;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.CRC32;
+import java.util.zip.GZIPInputStream;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+class SeekableGzipTest {
+
+    private ExecutorService executor;
+
+    @BeforeEach
+    void setUp() {
+        executor = Executors.newFixedThreadPool(2);
+    }
+
+    @AfterEach
+    void tearDown() {
+        executor.shutdownNow();
+    }
+
+    @Test
+    void outputIsOneGzipStream() throws IOException {
+        byte[] content = lines(SeekableGzip.BLOCK_SIZE * 5 / 2);
+        SeekableGzip gzip = new SeekableGzip(CompressionPolicy.DEFAULT_LEVEL, executor, 2);
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+
+        assertEquals(content.length, gzip.compress(new ByteArrayInputStream(content), output));
+
+        byte[] compressed = output.toByteArray();
+        assertArrayEquals(content, gunzip(compressed));
+        assertEquals(compressed.length, gzip.getCompressedSize());
+        CRC32 crc = new CRC32();
+        crc.update(compressed);
+        assertEquals(crc.getValue(), gzip.getCrc());
+    }
+
+    @Test
+    void indexOffsetsPointAtTheBlockMembers() throws IOException {
+        byte[] content = lines(SeekableGzip.BLOCK_SIZE * 5 / 2);
+        SeekableGzip gzip = new SeekableGzip(CompressionPolicy.DEFAULT_LEVEL, executor, 2);
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        gzip.compress(new ByteArrayInputStream(content), output);
+        byte[] compressed = output.toByteArray();
+
+        String index = new String(gzip.index(), StandardCharsets.UTF_8);
+        assertTrue(index.startsWith(SeekableGzip.INDEX_HEADER));
+        List<String> rows = index.substring(SeekableGzip.INDEX_HEADER.length()).lines().toList();
+        assertEquals(3, rows.size());
+
+        long expectedOffset = 0;
+        long expectedCompressedOffset = 0;
+        for (int block = 0; block < rows.size(); block++) {
+            String[] columns = rows.get(block).split(",");
+            assertEquals(block, Integer.parseInt(columns[0]));
+            int offset = Integer.parseInt(columns[1]);
+            int size = Integer.parseInt(columns[2]);
+            int compressedOffset = Integer.parseInt(columns[3]);
+            int compressedSize = Integer.parseInt(columns[4]);
+            assertEquals(expectedOffset, offset);
+            assertEquals(expectedCompressedOffset, compressedOffset);
+            assertEquals(Math.min(SeekableGzip.BLOCK_SIZE, content.length - offset), size);
+
+            // Each member inflates on its own to its block
+            byte[] member = Arrays.copyOfRange(compressed, compressedOffset, compressedOffset + compressedSize);
+            assertArrayEquals(Arrays.copyOfRange(content, offset, offset + size), gunzip(member));
+            assertEquals(lineNumber(content, offset), Long.parseLong(columns[5]));
+
+            expectedOffset += size;
+            expectedCompressedOffset += compressedSize;
+        }
+        assertEquals(content.length, expectedOffset);
+        assertEquals(compressed.length, expectedCompressedOffset);
+    }
+
+    @Test
+    void emptyInputHasNoMembers() throws IOException {
+        SeekableGzip gzip = new SeekableGzip(CompressionPolicy.DEFAULT_LEVEL, executor, 2);
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+
+        assertEquals(0, gzip.compress(new ByteArrayInputStream(new byte[0]), output));
+        assertEquals(0, output.size());
+        assertEquals(SeekableGzip.INDEX_HEADER, new String(gzip.index(), StandardCharsets.UTF_8));
+    }
+
+    @Test
+    void entryForAppendsTheSuffix() {
+        CollectionItem item = new CollectionItem("\\forensic\\ntfs\\ntfs_files.txt", "forensic/ntfs/ntfs_files.txt", true, 123);
+        assertEquals(new CollectionItem(item.vfsPath(), "forensic/ntfs/ntfs_files.txt.gz", true, 123), SeekableGzip.entryFor(item));
+    }
+
+    // Numbered lines of varying length, so blocks start in the middle of a line
+    private static byte[] lines(int size) {
+        StringBuilder text = new StringBuilder(size + 100);
+        for (int line = 1; text.length() < size; line++) {
+            text.append(line).append(",file").append("x".repeat(line % 97)).append('\n');
+        }
+        return text.substring(0, size).getBytes(StandardCharsets.US_ASCII);
+    }
+
+    private static long lineNumber(byte[] content, int offset) {
+        long line = 1;
+        for (int i = 0; i < offset; i++) {
+            if (content[i] == '\n') {
+                line++;
+            }
+        }
+        return line;
+    }
+
+    private static byte[] gunzip(byte[] compressed) throws IOException {
+        try (InputStream inputStream = new GZIPInputStream(new ByteArrayInputStream(compressed))) {
+            return inputStream.readAllBytes();
+        }
+    }
+}
@@ -0,0 +1,209 @@
+/*
+ * memprocfs_packager
+ * 
+ * Copyright (C) 2024  Sleuth Kit Labs
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.sleuthkitlabs.memprocfspackager;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTimeoutPreemptively;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.InflaterInputStream;
+import java.util.zip.Inflater;
+import java.util.zip.ZipEntry;
+import org.junit.jupiter.api.Test;
+
+class ShardedArchiveWriterTest {
+
+    @Test
+    void entriesGoToTheShardWithTheFewestBytes() throws IOException {
+        RecordingWriter first = new RecordingWriter();
+        RecordingWriter second = new RecordingWriter();
+        ShardedArchiveWriter writer = new ShardedArchiveWriter(List.of(first, second), List.of("host.zip", "host.2.zip"), 1000);
+
+        writer.writeEntry(item("a", 100), content(100), 0);
+        writer.writeEntry(item("b", 10), content(10), 0);
+        writer.writeEntry(item("c", 10), content(10), 0);
+        writer.writeDirectory(new CollectionItem("\\d", "d/", false, 0), 0);
+        writer.close();
+
+        assertEquals(List.of("a", ShardedArchiveWriter.INDEX_NAME), first.paths);
+        assertEquals(List.of("b", "c", "d/"), second.paths);
+        assertTrue(first.closed && second.closed);
+    }
+
+    @Test
+    void linksGoToTheShardOfTheirTarget() throws IOException {
+        RecordingWriter first = new RecordingWriter();
+        RecordingWriter second = new RecordingWriter();
+        ShardedArchiveWriter writer = new ShardedArchiveWriter(List.of(first, second), List.of("host.zip", "host.2.zip"), 1000);
+
+        writer.writeEntry(item("a", 100), content(100), 0);
+        writer.writeEntry(item("b", 10), content(10), 0);
+        assertTrue(writer.writeLink(item("link-to-b", 10), item("b", 10), 0));
+        assertTrue(writer.writeLink(item("link-to-a", 100), item("a", 100), 0));
+        assertFalse(writer.writeLink(item("link-to-missing", 10), item("missing", 10), 0));
+        writer.close();
+
+        assertEquals(List.of("a", "link-to-a", ShardedArchiveWriter.INDEX_NAME), first.paths);
+        assertEquals(List.of("b", "link-to-b"), second.paths);
+
+        String index = new String(first.contents.get(ShardedArchiveWriter.INDEX_NAME), StandardCharsets.UTF_8);
+        assertEquals("vfs_path,archive_path,shard,shard_name\n"
+                + "\\a,a,1,host.zip\n"
+                + "\\b,b,2,host.2.zip\n"
+                + "\\link-to-b,link-to-b,2,host.2.zip\n"
+                + "\\link-to-a,link-to-a,1,host.zip\n", index);
+    }
+
+    @Test
+    void generatedEntriesGoToTheFirstShard() throws IOException {
+        RecordingWriter first = new RecordingWriter();
+        RecordingWriter second = new RecordingWriter();
+        ShardedArchiveWriter writer = new ShardedArchiveWriter(List.of(first, second), List.of("host.zip", "host.2.zip"), 1000);
+
+        writer.writeEntry(item("a", 100), content(100), 0);
+        writer.writeEntry(new CollectionItem("manifest.csv", "manifest.csv", true, 10), content(10), 0);
+        writer.writeStored(new CollectionItem("report.json", "report.json", true, 10), new ByteArrayInputStream(new byte[10]), 10, 0, 0);
+        writer.writeStreamed(item("b", 10), new ByteArrayInputStream(new byte[10]), CompressionPolicy.STORED, 0);
+        writer.close();
+
+        assertEquals(List.of("a", "manifest.csv", "report.json", ShardedArchiveWriter.INDEX_NAME), first.paths);
+        assertEquals(List.of("b"), second.paths);
+    }
+
+    @Test
+    void seekableIndexGoesToTheShardOfItsEntry() throws IOException {
+        RecordingWriter first = new RecordingWriter();
+        RecordingWriter second = new RecordingWriter();
+        ShardedArchiveWriter writer = new ShardedArchiveWriter(List.of(first, second), List.of("host.zip", "host.2.zip"), 1000);
+
+        writer.writeEntry(item("a", 100), content(100), 0);
+        writer.writeStored(new CollectionItem("\\b", "b.gz", true, 10), new ByteArrayInputStream(new byte[10]), 10, 0, 0);
+        writer.writeEntry(new CollectionItem("b.gz.index.csv", "b.gz.index.csv", true, 10), content(10), 0);
+        writer.writeEntry(new CollectionItem("c.gz.index.csv", "c.gz.index.csv", true, 10), content(10), 0);
+        writer.close();
+
+        assertEquals(List.of("a", "c.gz.index.csv", ShardedArchiveWriter.INDEX_NAME), first.paths);
+        assertEquals(List.of("b.gz", "b.gz.index.csv"), second.paths);
+    }
+
+    @Test
+    void failedWriteReleasesQueuedBytes() {
+        RecordingWriter failing = new RecordingWriter();
+        failing.failure = new IOException("Disk full");
+        ShardedArchiveWriter writer = new ShardedArchiveWriter(List.of(failing), List.of("host.zip"), 10);
+
+        // Each entry takes the whole queue, a write that never gives it back blocks the next one forever
+        IOException thrown = assertTimeoutPreemptively(Duration.ofSeconds(30), () -> assertThrows(IOException.class, () -> {
+            for (int i = 0; ; i++) {
+                writer.writeEntry(item("entry" + i, 10), content(10), 0);
+            }
+        }));
+        assertEquals("Disk full", thrown.getMessage());
+        assertThrows(IOException.class, writer::close);
+        assertTrue(failing.closed);
+    }
+
+    @Test
+    void shardPathNumbersTheVolumes() {
+        Path output = Path.of("out", "host.zip");
+        assertEquals(output, ShardedArchiveWriter.shardPath(output, 1));
+        assertEquals(Path.of("out", "host.3.zip"), ShardedArchiveWriter.shardPath(output, 3));
+        assertEquals(Path.of("out", "host.2"), ShardedArchiveWriter.shardPath(Path.of("out", "host"), 2));
+        assertEquals(Path.of("out", ".tar.2"), ShardedArchiveWriter.shardPath(Path.of("out", ".tar"), 2));
+    }
+
+    @Test
+    void rejectsMissingShardNames() {
+        assertThrows(IllegalArgumentException.class,
+                () -> new ShardedArchiveWriter(List.of(new RecordingWriter(), new RecordingWriter()), List.of("host.zip"), 1000));
+    }
+
+    private static CollectionItem item(String name, long size) {
+        return new CollectionItem("\\" + name, name, true, size);
+    }
+
+    // Stored, so the shards are balanced by the given size
+    private static CompressedContent content(int size) {
+        return CompressedContent.compress(new byte[size], CompressionPolicy.STORED);
+    }
+
+    // Records the entries written to one volume, called from the volume thread
+    private static final class RecordingWriter implements ArchiveWriter {
+
+        private final List<String> paths = new ArrayList<>();
+        private final Map<String, byte[]> contents = new LinkedHashMap<>();
+        private IOException failure;
+        private boolean closed = false;
+
+        @Override
+        public void writeEntry(CollectionItem item, CompressedContent content, long time) throws IOException {
+            if (failure != null) {
+                throw failure;
+            }
+            paths.add(item.zipPath());
+            if (content.method() == ZipEntry.DEFLATED) {
+                try (InputStream inputStream = new InflaterInputStream(new ByteArrayInputStream(content.data()), new Inflater(true))) {
+                    contents.put(item.zipPath(), inputStream.readAllBytes());
+                }
+            } else {
+                contents.put(item.zipPath(), content.data());
+            }
+        }
+
+        @Override
+        public long writeStreamed(CollectionItem item, InputStream inputStream, int level, long time) throws IOException {
+            paths.add(item.zipPath());
+            return inputStream.readAllBytes().length;
+        }
+
+        @Override
+        public void writeStored(CollectionItem item, InputStream inputStream, long size, long crc, long time) throws IOException {
+            paths.add(item.zipPath());
+            inputStream.readAllBytes();
+        }
+
+        @Override
+        public void writeDirectory(CollectionItem item, long time) {
+            paths.add(item.zipPath());
+        }
+
+        @Override
+        public boolean writeLink(CollectionItem item, CollectionItem target, long time) {
+            paths.add(item.zipPath());
+            return true;
+        }
+
+        @Override
+        public void close() {
+            closed = true;
+        }
+    }
+}
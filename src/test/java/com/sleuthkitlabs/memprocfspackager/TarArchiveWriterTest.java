@@ -0,0 +1,130 @@
+/*
+ * memprocfs_packager
+ * 
+ * Copyright (C) 2024  Sleuth Kit Labs
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.sleuthkitlabs.memprocfspackager;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.zip.GZIPInputStream;
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveInputStream;
+import org.junit.jupiter.api.Test;
+
+class TarArchiveWriterTest {
+
+    private static final long TIME = 1_700_000_000_000L;
+
+    private final ByteArrayOutputStream output = new ByteArrayOutputStream();
+
+    @Test
+    void compressedEntriesAreGzipMembers() throws IOException {
+        byte[] content = text(100_000);
+        try (TarArchiveWriter writer = new TarArchiveWriter(output)) {
+            writer.writeEntry(TestPackages.item("\\sys\\a.txt", content.length), CompressedContent.compress(content, 6), TIME);
+            writer.writeStreamed(TestPackages.item("\\sys\\b.txt", content.length), new ByteArrayInputStream(content), 6, TIME);
+        }
+
+        Map<String, byte[]> entries = readTar();
+        assertEquals(2, entries.size());
+        assertArrayEquals(content, gunzip(entries.get("sys/a.txt.gz")));
+        byte[] streamed = entries.get("sys/b.txt.gz");
+        assertTrue(streamed.length < content.length / 10);
+        assertArrayEquals(content, gunzip(streamed));
+    }
+
+    @Test
+    void storedEntriesAreWrittenAsIs() throws IOException {
+        byte[] content = new byte[10_000];
+        new Random(1).nextBytes(content);
+        try (TarArchiveWriter writer = new TarArchiveWriter(output)) {
+            writer.writeEntry(TestPackages.item("\\sys\\a.bin", content.length), CompressedContent.compress(content, CompressionPolicy.STORED), TIME);
+            long written = writer.writeStreamed(TestPackages.item("\\sys\\b.bin", content.length), new ByteArrayInputStream(content), CompressionPolicy.STORED, TIME);
+            assertEquals(content.length, written);
+        }
+
+        Map<String, byte[]> entries = readTar();
+        assertArrayEquals(content, entries.get("sys/a.bin"));
+        assertArrayEquals(content, entries.get("sys/b.bin"));
+    }
+
+    @Test
+    void streamedEntriesTakeTheSizeRead() throws IOException {
+        byte[] content = text(5000);
+        try (TarArchiveWriter writer = new TarArchiveWriter(output)) {
+            // Listed larger than the content, as when a read fails part way
+            assertEquals(content.length, writer.writeStreamed(TestPackages.item("\\sys\\short.txt", 8000), new ByteArrayInputStream(content), 6, TIME));
+            assertEquals(content.length, writer.writeStreamed(TestPackages.item("\\sys\\short.bin", 8000), new ByteArrayInputStream(content), CompressionPolicy.STORED, TIME));
+        }
+
+        Map<String, byte[]> entries = readTar();
+        assertArrayEquals(content, gunzip(entries.get("sys/short.txt.gz")));
+        assertArrayEquals(content, entries.get("sys/short.bin"));
+    }
+
+    @Test
+    void linksKeepTheSuffixOfTheirTarget() throws IOException {
+        byte[] content = text(3000);
+        CollectionItem streamed = TestPackages.item("\\sys\\a.txt", content.length);
+        try (TarArchiveWriter writer = new TarArchiveWriter(output)) {
+            writer.writeStreamed(streamed, new ByteArrayInputStream(content), 6, TIME);
+            assertTrue(writer.writeLink(TestPackages.item("\\sys\\copy.txt", content.length), streamed, TIME));
+        }
+
+        try (TarArchiveInputStream tarInputStream = new TarArchiveInputStream(new ByteArrayInputStream(output.toByteArray()))) {
+            tarInputStream.getNextEntry();
+            TarArchiveEntry link = tarInputStream.getNextEntry();
+            assertEquals("sys/copy.txt.gz", link.getName());
+            assertEquals("sys/a.txt.gz", link.getLinkName());
+            assertTrue(link.isLink());
+        }
+    }
+
+    private Map<String, byte[]> readTar() throws IOException {
+        Map<String, byte[]> entries = new LinkedHashMap<>();
+        try (TarArchiveInputStream tarInputStream = new TarArchiveInputStream(new ByteArrayInputStream(output.toByteArray()))) {
+            TarArchiveEntry entry;
+            while ((entry = tarInputStream.getNextEntry()) != null) {
+                entries.put(entry.getName(), tarInputStream.readAllBytes());
+            }
+        }
+        return entries;
+    }
+
+    private static byte[] gunzip(byte[] gzip) throws IOException {
+        try (InputStream inputStream = new GZIPInputStream(new ByteArrayInputStream(gzip))) {
+            return inputStream.readAllBytes();
+        }
+    }
+
+    static byte[] text(int size) {
+        byte[] content = new byte[size];
+        for (int i = 0; i < size; i++) {
+            content[i] = (byte) ('a' + i % 7 + (i / 64) % 3);
+        }
+        return content;
+    }
+}
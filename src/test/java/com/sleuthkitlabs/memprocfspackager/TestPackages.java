@@ -0,0 +1,74 @@
+/*
+ * memprocfs_packager
+ * 
+ * Copyright (C) 2024  Sleuth Kit Labs
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.sleuthkitlabs.memprocfspackager;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+/**
+ * Runs a CollectionEngine over a VfsSource into an in-memory ZIP package and
+ * reads the package back, for tests.
+ */
+final class TestPackages {
+
+    private TestPackages() {
+    }
+
+    /**
+     * Returns the item of a file, with its archive path derived the same way
+     * as MemProcFSPackager does.
+     */
+    static CollectionItem item(String vfsPath, long size) {
+        return new CollectionItem(vfsPath, vfsPath.substring(1).replace('\\', '/'), true, size);
+    }
+
+    /**
+     * Collects the items and returns the entries of the package by name.
+     *
+     * @param cache null unless forensic results are cached
+     */
+    static Map<String, byte[]> collect(VfsSource source, PackagerSettings settings, ForensicResultCache.EntryWriter cache, List<CollectionItem> items) throws IOException {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        try (ZipArchiveWriter writer = new ZipArchiveWriter(output);
+             CollectionEngine engine = new CollectionEngine(source, writer, settings, new RunReport("test.raw"))) {
+            if (cache != null) {
+                engine.setCacheEntry(cache);
+            }
+            items.forEach(engine::submit);
+        }
+        return readZip(output.toByteArray());
+    }
+
+    static Map<String, byte[]> readZip(byte[] zip) throws IOException {
+        Map<String, byte[]> entries = new LinkedHashMap<>();
+        try (ZipInputStream zipInputStream = new ZipInputStream(new ByteArrayInputStream(zip))) {
+            ZipEntry entry;
+            while ((entry = zipInputStream.getNextEntry()) != null) {
+                entries.put(entry.getName(), zipInputStream.readAllBytes());
+            }
+        }
+        return entries;
+    }
+}
@@ -0,0 +1,205 @@
+/*
+ * memprocfs_packager
+ * 
+ * Copyright (C) 2024  Sleuth Kit Labs
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.sleuthkitlabs.memprocfspackager;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.Proxy;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import org.junit.jupiter.api.Test;
+import vmm.IVmm;
+
+class VFSInputStreamTest {
+
+    private static final String FILE = "\\sys\\memory\\physmemory.txt";
+
+    @Test
+    void smallFileIsReadInOneCall() throws IOException {
+        FakeVmm vmm = new FakeVmm(content(1000));
+        try (InputStream inputStream = new VFSInputStream(FILE, 1000, vmm.proxy())) {
+            assertArrayEquals(vmm.content, inputStream.readAllBytes());
+        }
+        assertEquals(List.of(1000), vmm.requests);
+    }
+
+    @Test
+    void chunksGrowWhileReadsAreFast() throws IOException {
+        int size = VFSInputStream.MIN_CHUNK_SIZE * 7;
+        FakeVmm vmm = new FakeVmm(content(size));
+        try (InputStream inputStream = new VFSInputStream(FILE, size, vmm.proxy())) {
+            assertArrayEquals(vmm.content, inputStream.readAllBytes());
+        }
+        // 64 KB, 128 KB, then the remaining 256 KB
+        int min = VFSInputStream.MIN_CHUNK_SIZE;
+        assertEquals(List.of(min, min * 2, min * 4), vmm.requests);
+    }
+
+    @Test
+    void transferToWritesEveryChunk() throws IOException {
+        int size = VFSInputStream.MIN_CHUNK_SIZE * 3 + 17;
+        FakeVmm vmm = new FakeVmm(content(size));
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (InputStream inputStream = new VFSInputStream(FILE, size, vmm.proxy())) {
+            assertEquals(size, inputStream.transferTo(out));
+        }
+        assertArrayEquals(vmm.content, out.toByteArray());
+    }
+
+    @Test
+    void fileShorterThanListedEndsAtItsEnd() throws IOException {
+        FakeVmm vmm = new FakeVmm(content(300));
+        try (VFSInputStream inputStream = new VFSInputStream(FILE, 1000, vmm.proxy())) {
+            assertArrayEquals(vmm.content, inputStream.readAllBytes());
+            assertFalse(inputStream.isTruncated());
+        }
+    }
+
+    @Test
+    void streamEndsOnceTheDeadlinePasses() throws IOException {
+        int size = VFSInputStream.MIN_CHUNK_SIZE * 3;
+        FakeVmm vmm = new FakeVmm(content(size));
+        vmm.delayMillis = 200;
+        try (VFSInputStream inputStream = new VFSInputStream(FILE, size, vmm.proxy())) {
+            inputStream.setDeadline(Deadline.afterMillis(100));
+            // The first read is under way when the deadline passes, no further chunk is read
+            assertEquals(VFSInputStream.MIN_CHUNK_SIZE, inputStream.readAllBytes().length);
+            assertTrue(inputStream.isTruncated());
+        }
+        assertEquals(1, vmm.requests.size());
+    }
+
+    @Test
+    void readAheadReturnsTheSameContent() throws IOException {
+        int size = VFSInputStream.MIN_CHUNK_SIZE * 9 + 5;
+        FakeVmm vmm = new FakeVmm(content(size));
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try (VFSInputStream inputStream = new VFSInputStream(FILE, size, vmm.proxy())) {
+            inputStream.setReadAhead(2, executor);
+            assertArrayEquals(vmm.content, inputStream.readAllBytes());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    void readAheadStaysWithinItsDepth() throws Exception {
+        int size = VFSInputStream.MIN_CHUNK_SIZE * 64;
+        FakeVmm vmm = new FakeVmm(content(size));
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try (VFSInputStream inputStream = new VFSInputStream(FILE, size, vmm.proxy())) {
+            inputStream.setReadAhead(2, executor);
+            assertEquals(vmm.content[0] & 0xFF, inputStream.read());
+            Thread.sleep(200);
+            // The chunk being read, two queued and one waiting for room
+            assertTrue(vmm.requests.size() <= 4, vmm.requests.toString());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    void closeStopsReadingAhead() throws Exception {
+        int size = VFSInputStream.MIN_CHUNK_SIZE * 64;
+        FakeVmm vmm = new FakeVmm(content(size));
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            VFSInputStream inputStream = new VFSInputStream(FILE, size, vmm.proxy());
+            inputStream.setReadAhead(2, executor);
+            inputStream.read();
+            inputStream.close();
+
+            // The task has finished, nothing is read after the stream is closed
+            int requests = vmm.requests.size();
+            Thread.sleep(200);
+            assertEquals(requests, vmm.requests.size());
+            assertEquals(-1, inputStream.read());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    void readAheadFailureIsThrownToTheReader() throws IOException {
+        int size = VFSInputStream.MIN_CHUNK_SIZE * 4;
+        FakeVmm vmm = new FakeVmm(content(size));
+        vmm.failAtOffset = VFSInputStream.MIN_CHUNK_SIZE;
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try (VFSInputStream inputStream = new VFSInputStream(FILE, size, vmm.proxy())) {
+            inputStream.setReadAhead(2, executor);
+            assertThrows(IOException.class, inputStream::readAllBytes);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    static byte[] content(int size) {
+        byte[] content = new byte[size];
+        for (int i = 0; i < size; i++) {
+            content[i] = (byte) (i * 31);
+        }
+        return content;
+    }
+
+    /**
+     * Serves vfsRead from an array and records the size of every read.
+     */
+    static class FakeVmm {
+
+        final byte[] content;
+        final List<Integer> requests = new CopyOnWriteArrayList<>();
+        volatile long delayMillis = 0;
+        volatile long failAtOffset = -1;
+
+        FakeVmm(byte[] content) {
+            this.content = content;
+        }
+
+        IVmm proxy() {
+            return (IVmm) Proxy.newProxyInstance(IVmm.class.getClassLoader(), new Class<?>[]{IVmm.class}, (proxy, method, args) -> {
+                if (!method.getName().equals("vfsRead")) {
+                    throw new UnsupportedOperationException(method.getName());
+                }
+                return read((Long) args[1], (Integer) args[2]);
+            });
+        }
+
+        private byte[] read(long offset, int size) throws InterruptedException {
+            requests.add(size);
+            if (offset == failAtOffset) {
+                throw new IllegalStateException("Read failed at " + offset);
+            }
+            if (delayMillis > 0) {
+                Thread.sleep(delayMillis);
+            }
+            int start = (int) Math.min(offset, content.length);
+            return Arrays.copyOfRange(content, start, (int) Math.min(content.length, offset + size));
+        }
+    }
+}
@@ -0,0 +1,99 @@
+/*
+ * memprocfs_packager
+ * 
+ * Copyright (C) 2024  Sleuth Kit Labs
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.sleuthkitlabs.memprocfspackager;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import org.junit.jupiter.api.Test;
+import vmm.entry.Vmm_VfsListEntry;
+
+class VfsListingCacheTest {
+
+    @Test
+    void directoryIsListedOnce() {
+        CountingVfs source = new CountingVfs(new FakeVfs()
+                .file("\\sys\\drivers\\drivers.txt", 10)
+                .file("\\sys\\services\\services.txt", 10));
+        VfsListingCache cache = new VfsListingCache(source);
+
+        assertEquals(2, cache.list("\\sys\\").size());
+        // With or without the trailing separator
+        assertEquals(2, cache.list("\\sys").size());
+        assertEquals(1, cache.list("\\sys\\drivers\\").size());
+
+        assertEquals(List.of("\\sys\\", "\\sys\\drivers\\"), source.listed);
+        assertEquals(1, cache.getHits());
+        assertEquals(2, cache.getMisses());
+    }
+
+    @Test
+    void missingDirectoryIsEmpty() {
+        VfsListingCache cache = new VfsListingCache(new CountingVfs(new FakeVfs()));
+        assertTrue(cache.list("\\nothere\\").isEmpty());
+    }
+
+    @Test
+    void forensicListingsAreCachedOnceComplete() {
+        CountingVfs source = new CountingVfs(new FakeVfs().file("\\forensic\\timeline\\timeline_all.txt", 10));
+        VfsListingCache cache = new VfsListingCache(source);
+
+        // Still changing while forensic processing runs
+        cache.list("\\forensic\\timeline\\");
+        cache.list("\\forensic\\timeline\\");
+        assertEquals(2, source.listed.size());
+
+        cache.setForensicComplete();
+        cache.list("\\forensic\\timeline\\");
+        cache.list("\\forensic\\timeline\\");
+        assertEquals(3, source.listed.size());
+    }
+
+    // Records the directories listed from the source
+    private static class CountingVfs implements VfsSource {
+
+        private final VfsSource source;
+        private final List<String> listed = new CopyOnWriteArrayList<>();
+
+        private CountingVfs(VfsSource source) {
+            this.source = source;
+        }
+
+        @Override
+        public Map<String, Vmm_VfsListEntry> list(String path) {
+            listed.add(path);
+            return source.list(path);
+        }
+
+        @Override
+        public InputStream open(String path, long size, Deadline deadline) throws IOException {
+            return source.open(path, size, deadline);
+        }
+
+        @Override
+        public void close() {
+            source.close();
+        }
+    }
+}
@@ -0,0 +1,113 @@
+/*
+ * memprocfs_packager
+ * 
+ * Copyright (C) 2024  Sleuth Kit Labs
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.sleuthkitlabs.memprocfspackager;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Random;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class ZipArchiveWriterTest {
+
+    private static final long TIME = 1_700_000_000_000L;
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void streamedOutputCanBeRead() throws IOException {
+        byte[] text = TarArchiveWriterTest.text(100_000);
+        byte[] random = random(20_000);
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        try (ZipArchiveWriter writer = new ZipArchiveWriter(output)) {
+            writeAll(writer, text, random);
+        }
+        Path zip = directory.resolve("streamed.zip");
+        Files.write(zip, output.toByteArray());
+
+        try (ZipFile zipFile = new ZipFile(zip.toFile())) {
+            assertContent(zipFile, text, random);
+            // Without seeking, stored content is deflated at level 0
+            assertEquals(ZipEntry.DEFLATED, zipFile.getEntry("sys/stored_streamed.bin").getMethod());
+        }
+    }
+
+    @Test
+    void seekableOutputStoresStreamedEntries() throws IOException {
+        byte[] text = TarArchiveWriterTest.text(100_000);
+        byte[] random = random(20_000);
+        Path zip = directory.resolve("seekable.zip");
+        try (SeekableByteChannel channel = Files.newByteChannel(zip, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+             ZipArchiveWriter writer = new ZipArchiveWriter(channel)) {
+            writeAll(writer, text, random);
+        }
+
+        try (ZipFile zipFile = new ZipFile(zip.toFile())) {
+            assertContent(zipFile, text, random);
+            ZipEntry stored = zipFile.getEntry("sys/stored_streamed.bin");
+            assertEquals(ZipEntry.STORED, stored.getMethod());
+            assertEquals(random.length, stored.getCompressedSize());
+        }
+    }
+
+    private static void writeAll(ZipArchiveWriter writer, byte[] text, byte[] random) throws IOException {
+        writer.writeEntry(TestPackages.item("\\sys\\compressed.txt", text.length), CompressedContent.compress(text, 6), TIME);
+        writer.writeEntry(TestPackages.item("\\sys\\stored.bin", random.length), CompressedContent.compress(random, CompressionPolicy.STORED), TIME);
+        assertEquals(text.length, writer.writeStreamed(TestPackages.item("\\sys\\streamed.txt", text.length), new ByteArrayInputStream(text), 6, TIME));
+        assertEquals(random.length, writer.writeStreamed(TestPackages.item("\\sys\\stored_streamed.bin", random.length),
+                new ByteArrayInputStream(random), CompressionPolicy.STORED, TIME));
+        CRC32 crc = new CRC32();
+        crc.update(random);
+        writer.writeStored(TestPackages.item("\\sys\\raw.bin", random.length), new ByteArrayInputStream(random), random.length, crc.getValue(), TIME);
+        writer.writeDirectory(new CollectionItem("\\sys\\empty", "sys/empty/", false, 0), TIME);
+    }
+
+    private static void assertContent(ZipFile zipFile, byte[] text, byte[] random) throws IOException {
+        assertEquals(6, zipFile.size());
+        assertArrayEquals(text, read(zipFile, "sys/compressed.txt"));
+        assertArrayEquals(random, read(zipFile, "sys/stored.bin"));
+        assertArrayEquals(text, read(zipFile, "sys/streamed.txt"));
+        assertArrayEquals(random, read(zipFile, "sys/stored_streamed.bin"));
+        assertArrayEquals(random, read(zipFile, "sys/raw.bin"));
+        assertEquals(ZipEntry.STORED, zipFile.getEntry("sys/raw.bin").getMethod());
+        assertEquals(TIME / 2000, zipFile.getEntry("sys/streamed.txt").getTime() / 2000);
+    }
+
+    private static byte[] read(ZipFile zipFile, String name) throws IOException {
+        return zipFile.getInputStream(zipFile.getEntry(name)).readAllBytes();
+    }
+
+    private static byte[] random(int size) {
+        byte[] content = new byte[size];
+        new Random(size).nextBytes(content);
+        return content;
+    }
+}